@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.jameshartig.android.media_router.routing.Receiver;
+
+/**
+ * Synthetic device state for the benchmarks: media button receivers and the
+ * running services the {@code ActivityManager} would report. Generated from a
+ * fixed seed so runs are comparable.
+ *
+ * @author James Hartig
+ */
+final class DeviceProfile {
+
+    /**
+     * Stand-in for {@code ActivityManager.RunningServiceInfo}, just the fields
+     * routing looks at.
+     */
+    static final class Service {
+        final String packageName;
+        final boolean started;
+        final boolean foreground;
+
+        Service(String packageName, boolean started, boolean foreground) {
+            this.packageName = packageName;
+            this.started = started;
+            this.foreground = foreground;
+        }
+    }
+
+    final List<Receiver> receivers;
+
+    /**
+     * Where each receiver's apk lives, parallel to {@link #receivers}. Part of
+     * the hidden app key.
+     */
+    final List<String> sourceDirs;
+
+    final List<Service> services;
+
+    /**
+     * The comma separated hidden app preference, hiding every fourth receiver.
+     */
+    final String hiddenApps;
+
+    /**
+     * A receiver package with a foreground service, the lowest priority one
+     * so matching has to walk the whole list.
+     */
+    final String playingPackage;
+
+    DeviceProfile(int receiverCount, int serviceCount) {
+        Random random = new Random(receiverCount * 31L + serviceCount);
+
+        receivers = new ArrayList<Receiver>(receiverCount);
+        sourceDirs = new ArrayList<String>(receiverCount);
+        StringBuilder hidden = new StringBuilder();
+        for (int i = 0; i < receiverCount; i++) {
+            String packageName = "com.example.player" + i;
+            String className = packageName + ".MediaButtonIntentReceiver";
+            String sourceDir = "/data/app/" + packageName + "-1.apk";
+            receivers.add(new Receiver(packageName, className));
+            sourceDirs.add(sourceDir);
+            if (i % 4 == 3) {
+                if (hidden.length() > 0) {
+                    hidden.append(',');
+                }
+                hidden.append(sourceDir).append(className);
+            }
+        }
+        hiddenApps = hidden.toString();
+        playingPackage = receivers.get(receiverCount - 1).getPackageName();
+
+        services = new ArrayList<Service>(serviceCount);
+        for (int i = 0; i < serviceCount - 1; i++) {
+            // Mostly system and background services, a few foreground ones
+            services.add(new Service("com.example.service" + random.nextInt(serviceCount), random.nextInt(4) != 0,
+                    random.nextInt(20) == 0));
+        }
+        services.add(random.nextInt(services.size() + 1), new Service(playingPackage, true, true));
+    }
+}
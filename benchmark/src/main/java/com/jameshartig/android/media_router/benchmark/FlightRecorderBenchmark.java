@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.jameshartig.android.media_router.routing.FlightRecorder;
+import com.jameshartig.android.media_router.routing.KeyCodes;
+import com.jameshartig.android.media_router.routing.Receiver;
+import com.jameshartig.android.media_router.routing.RoutingDecision;
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+import com.jameshartig.android.media_router.routing.RoutingStats.Stage;
+
+/**
+ * Recording an event in the {@link FlightRecorder} against building the
+ * debug log line it replaces. Recording should be faster and not allocate.
+ *
+ * @author James Hartig
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FlightRecorderBenchmark {
+
+    private final Receiver target = new Receiver("com.example.player", "com.example.player.MediaButtonReceiver");
+    private final RoutingDecision decision = RoutingDecision.forward(Path.FOREGROUND_SERVICE, target);
+    private final long[] stages = new long[Stage.values().length];
+    private long eventTime;
+
+    @Benchmark
+    public void record() {
+        FlightRecorder.record(++eventTime, KeyCodes.KEYCODE_HEADSETHOOK, 1, target, decision.getPath(), stages);
+    }
+
+    @Benchmark
+    public void logLine(Blackhole blackhole) {
+        blackhole.consume("Media Button Receiver: handling media key event: " + (++eventTime) + " "
+                + KeyCodes.KEYCODE_HEADSETHOOK + " routing decision " + decision);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.jameshartig.android.media_router.routing.Receiver;
+
+/**
+ * Hidden app filtering, as {@code Utils.getMediaReceivers} used to do it on
+ * every press and as {@code HiddenReceiverIndex} does it now. One in four
+ * receivers is hidden.
+ *
+ * @author James Hartig
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HiddenFilterBenchmark {
+
+    @Param({ "5", "30", "200" })
+    public int receivers;
+
+    private DeviceProfile profile;
+
+    private int[] receiverIds;
+
+    private BitSet hiddenIds;
+
+    @Setup
+    public void setUp() {
+        profile = new DeviceProfile(receivers, 10);
+
+        // Interned the same way ReceiverRegistry does it
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        receiverIds = new int[profile.receivers.size()];
+        for (int i = 0; i < receiverIds.length; i++) {
+            receiverIds[i] = ids.size();
+            ids.put(profile.sourceDirs.get(i) + profile.receivers.get(i).getClassName(), receiverIds[i]);
+        }
+        hiddenIds = new BitSet();
+        for (String hidden : profile.hiddenApps.split(",")) {
+            Integer id = ids.get(hidden);
+            if (id != null) {
+                hiddenIds.set(id);
+            }
+        }
+    }
+
+    /**
+     * Mirrors the old {@code Utils.getMediaReceivers}: split the preference, then
+     * build each receiver's key and look it up in the list.
+     */
+    @Benchmark
+    public List<Receiver> splitAndContains() {
+        List<String> hiddenIds = Arrays.asList(profile.hiddenApps.split(","));
+        List<Receiver> visibleReceivers = new ArrayList<Receiver>(profile.receivers.size());
+        for (int i = 0, size = profile.receivers.size(); i < size; i++) {
+            Receiver receiver = profile.receivers.get(i);
+            String name = profile.sourceDirs.get(i) + receiver.getClassName();
+            if (!hiddenIds.contains(name)) {
+                visibleReceivers.add(receiver);
+            }
+        }
+        return visibleReceivers;
+    }
+
+    /**
+     * Mirrors {@code ReceiverRegistry}'s visible receivers check: one bit
+     * lookup per interned receiver id. Counts instead of building the list
+     * since the registry only rebuilds it when something changes.
+     */
+    @Benchmark
+    public int bitSet() {
+        int visible = 0;
+        for (int i = 0; i < receiverIds.length; i++) {
+            if (!hiddenIds.get(receiverIds[i])) {
+                visible++;
+            }
+        }
+        return visible;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.jameshartig.android.media_router.routing.KeyCodes;
+
+/**
+ * Key classification done at the top of every media button event, over a mix
+ * of media and non-media key codes.
+ *
+ * @author James Hartig
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class KeyClassificationBenchmark {
+
+    private static final int KITKAT = 19;
+
+    private final int[] keyCodes = { KeyCodes.KEYCODE_HEADSETHOOK, KeyCodes.KEYCODE_MEDIA_PLAY_PAUSE,
+            KeyCodes.KEYCODE_MEDIA_STOP, KeyCodes.KEYCODE_MEDIA_NEXT, KeyCodes.KEYCODE_MEDIA_PREVIOUS,
+            KeyCodes.KEYCODE_MEDIA_REWIND, KeyCodes.KEYCODE_MEDIA_FAST_FORWARD, KeyCodes.KEYCODE_MEDIA_PLAY,
+            KeyCodes.KEYCODE_MEDIA_PAUSE, KeyCodes.KEYCODE_MUSIC, KeyCodes.KEYCODE_MEDIA_AUDIO_TRACK, 24, 25, 164,
+            0, 66 };
+
+    @Benchmark
+    public void isMediaButton(Blackhole blackhole) {
+        for (int keyCode : keyCodes) {
+            blackhole.consume(KeyCodes.isMediaButton(keyCode, KITKAT));
+        }
+    }
+
+    @Benchmark
+    public void getAdjustedKeyCode(Blackhole blackhole) {
+        for (int keyCode : keyCodes) {
+            blackhole.consume(KeyCodes.getAdjustedKeyCode(keyCode));
+        }
+    }
+}
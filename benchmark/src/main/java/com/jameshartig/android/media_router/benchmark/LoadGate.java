@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.jameshartig.android.media_router.routing.LatencyHistogram;
+import com.jameshartig.android.media_router.routing.Receiver;
+import com.jameshartig.android.media_router.routing.RoutingDecision;
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+import com.jameshartig.android.media_router.routing.RoutingEngine;
+import com.jameshartig.android.media_router.routing.RoutingInput;
+import com.jameshartig.android.media_router.routing.RoutingPolicies;
+
+/**
+ * Performance gate for the routing hot path. Drives thousands of synthetic
+ * presses over a large device state, with every fourth receiver hidden,
+ * through what happens between the system answering and knowing where the
+ * press goes: indexing the running services and running the engine. Checks
+ * every decision against the scenario it was generated from, and exits with
+ * 1 if any is wrong or the time or allocation per press is over budget:
+ *
+ *     gradle -p benchmark loadGate -PgateArgs="receivers=200 services=1000"
+ *
+ * Options are {@code name=value}, see {@link #main(String[])}.
+ *
+ * @author James Hartig
+ */
+public final class LoadGate {
+
+    /**
+     * What the synthetic device is doing when a press arrives.
+     */
+    enum Scenario {
+        /** Music from the player we saw start, while another receiver has a foreground service. */
+        ACTIVE_PLAYER(true, Path.ACTIVE_PLAYER),
+        /** Music from the receiver we forwarded to last. */
+        LAST_RECEIVER(true, Path.LAST_RECEIVER_SERVICE),
+        /** Music from the lowest priority visible receiver. */
+        FOREGROUND_SERVICE(true, Path.FOREGROUND_SERVICE),
+        /** Music from something without a receiver. */
+        UNKNOWN_PLAYER(true, Path.NO_FOREGROUND_SERVICE),
+        /** No music, a visible receiver's app is on top. */
+        FOREGROUND_TASK(false, Path.FOREGROUND_TASK),
+        /** No music, nothing useful on top and prompting is turned off. */
+        IGNORED(false, Path.IGNORED),
+        /** No music and nothing useful on top. */
+        PROMPT(false, Path.PROMPT);
+
+        final boolean musicActive;
+        final Path expected;
+
+        private Scenario(boolean musicActive, Path expected) {
+            this.musicActive = musicActive;
+            this.expected = expected;
+        }
+    }
+
+    /**
+     * One synthetic press.
+     */
+    private static final class Press {
+        final Scenario scenario;
+        final List<DeviceProfile.Service> services;
+        final String topPackageName;
+        final Receiver lastReceiver;
+        final String activePlayerPackage;
+        final Receiver expectedTarget;
+
+        Press(Scenario scenario, List<DeviceProfile.Service> services, String topPackageName,
+                Receiver lastReceiver, String activePlayerPackage, Receiver expectedTarget) {
+            this.scenario = scenario;
+            this.services = services;
+            this.topPackageName = topPackageName;
+            this.lastReceiver = lastReceiver;
+            this.activePlayerPackage = activePlayerPackage;
+            this.expectedTarget = expectedTarget;
+        }
+    }
+
+    private final DeviceProfile profile;
+    private final RoutingEngine engine = new RoutingEngine();
+
+    /**
+     * The receivers without hidden ones, which the app caches until the
+     * receivers or the hidden apps change.
+     */
+    private final List<Receiver> visible;
+
+    private LoadGate(DeviceProfile profile) {
+        this.profile = profile;
+        visible = getVisibleReceivers(profile);
+    }
+
+    /**
+     * Runs the gate.
+     *
+     * @param args
+     *            {@code events} presses to route (default 5000),
+     *            {@code receivers} (default 200) and {@code services} (default
+     *            500) on the device, {@code maxP99Nanos} per press (default
+     *            50000) and {@code maxBytesPerPress} allocated (default
+     *            4096).
+     */
+    public static void main(String[] args) {
+        int events = 5000;
+        int receivers = 200;
+        int services = 500;
+        long maxP99Nanos = 50000;
+        long maxBytesPerPress = 4096;
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String name = separator > 0 ? arg.substring(0, separator) : arg;
+            long value = separator > 0 ? Long.parseLong(arg.substring(separator + 1)) : 0;
+            if ("events".equals(name)) {
+                events = (int) value;
+            } else if ("receivers".equals(name)) {
+                receivers = (int) value;
+            } else if ("services".equals(name)) {
+                services = (int) value;
+            } else if ("maxP99Nanos".equals(name)) {
+                maxP99Nanos = value;
+            } else if ("maxBytesPerPress".equals(name)) {
+                maxBytesPerPress = value;
+            } else {
+                System.err.println("Unknown option " + arg);
+                System.exit(2);
+            }
+        }
+
+        LoadGate gate = new LoadGate(new DeviceProfile(receivers, services));
+        List<Press> presses = gate.generate(events, new Random(events * 31L + receivers));
+
+        List<String> failures = new ArrayList<String>();
+        gate.check(presses, failures);
+        // Warm up, then measure
+        gate.run(presses, new LatencyHistogram());
+        gate.run(presses, new LatencyHistogram());
+        LatencyHistogram cost = new LatencyHistogram();
+        long allocated = getAllocatedBytes();
+        gate.run(presses, cost);
+        long bytesPerPress = allocated >= 0 ? (getAllocatedBytes() - allocated) / events : -1;
+
+        long p99 = cost.getPercentile(99);
+        System.out.printf("%d presses, %d receivers, %d services: p50=%dns p99=%dns max=%dns, %s bytes/press%n",
+                events, receivers, services, cost.getPercentile(50), p99, cost.getMax(),
+                bytesPerPress >= 0 ? String.valueOf(bytesPerPress) : "unknown");
+        if (p99 > maxP99Nanos) {
+            failures.add("p99 " + p99 + "ns is over the " + maxP99Nanos + "ns budget");
+        }
+        if (bytesPerPress > maxBytesPerPress) {
+            failures.add(bytesPerPress + " bytes/press is over the " + maxBytesPerPress + " byte budget");
+        }
+        for (String failure : failures) {
+            System.out.println("FAIL " + failure);
+        }
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * @return Bytes allocated by this thread so far, or -1 if the JVM can't
+     *         tell.
+     */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private List<Press> generate(int events, Random random) {
+        Receiver lowest = visible.get(visible.size() - 1);
+        Scenario[] scenarios = Scenario.values();
+        List<Press> presses = new ArrayList<Press>(events);
+        for (int i = 0; i < events; i++) {
+            Scenario scenario = scenarios[random.nextInt(scenarios.length)];
+            Receiver picked = visible.get(random.nextInt(visible.size()));
+            // Background services only, the scenario adds the player's
+            List<DeviceProfile.Service> services = new ArrayList<DeviceProfile.Service>(profile.services.size());
+            for (DeviceProfile.Service service : profile.services) {
+                if (!service.packageName.equals(profile.playingPackage)) {
+                    services.add(service);
+                }
+            }
+            switch (scenario) {
+                case ACTIVE_PLAYER:
+                    services.add(new DeviceProfile.Service(lowest.getPackageName(), true, true));
+                    presses.add(new Press(scenario, services, null, null, picked.getPackageName(), picked));
+                    break;
+                case LAST_RECEIVER:
+                    services.add(new DeviceProfile.Service(picked.getPackageName(), true, true));
+                    presses.add(new Press(scenario, services, null, picked, null, picked));
+                    break;
+                case FOREGROUND_SERVICE:
+                    services.add(new DeviceProfile.Service(lowest.getPackageName(), true, true));
+                    presses.add(new Press(scenario, services, null, null, null, lowest));
+                    break;
+                case UNKNOWN_PLAYER:
+                    services.add(new DeviceProfile.Service("com.example.unknown", true, true));
+                    presses.add(new Press(scenario, services, null, null, null, null));
+                    break;
+                case FOREGROUND_TASK:
+                    presses.add(new Press(scenario, services, picked.getPackageName(), null, null, picked));
+                    break;
+                default:
+                    presses.add(new Press(scenario, services, "com.example.launcher", null, null, null));
+                    break;
+            }
+        }
+        return presses;
+    }
+
+    /**
+     * What {@code Utils.getMediaReceivers} returns with hidden apps
+     * filtered.
+     */
+    private static List<Receiver> getVisibleReceivers(DeviceProfile profile) {
+        Set<String> hidden = new LinkedHashSet<String>();
+        Collections.addAll(hidden, profile.hiddenApps.split(","));
+        List<Receiver> visible = new ArrayList<Receiver>(profile.receivers.size());
+        for (int i = 0, size = profile.receivers.size(); i < size; i++) {
+            Receiver receiver = profile.receivers.get(i);
+            if (!hidden.contains(profile.sourceDirs.get(i) + receiver.getClassName())) {
+                visible.add(receiver);
+            }
+        }
+        return Collections.unmodifiableList(visible);
+    }
+
+    /**
+     * Everything between the system answering and knowing where the press
+     * goes. Like the receiver, the running services are only indexed without
+     * a tracked player.
+     */
+    private RoutingDecision route(Press press) {
+        if (press.scenario.musicActive && RoutingPolicies.findReceiver(visible, press.activePlayerPackage) != null) {
+            return engine.route(new RoutingInput(visible, null, null, true, press.lastReceiver, false,
+                    press.activePlayerPackage));
+        }
+        Set<String> foregroundServices = new LinkedHashSet<String>();
+        for (DeviceProfile.Service service : press.services) {
+            if (service.started && service.foreground) {
+                foregroundServices.add(service.packageName);
+            }
+        }
+        return engine.route(new RoutingInput(visible, Collections.unmodifiableSet(foregroundServices),
+                press.topPackageName, press.scenario.musicActive, press.lastReceiver, press.scenario == Scenario.IGNORED,
+                press.activePlayerPackage));
+    }
+
+    private void check(List<Press> presses, List<String> failures) {
+        for (int i = 0, size = presses.size(); i < size; i++) {
+            Press press = presses.get(i);
+            RoutingDecision decision = route(press);
+            Receiver target = decision.getTarget();
+            if (decision.getPath() != press.scenario.expected
+                    || (target == null ? press.expectedTarget != null : !target.equals(press.expectedTarget))) {
+                failures.add("press #" + i + " (" + press.scenario + ") routed " + decision + ", expected "
+                        + press.scenario.expected + (press.expectedTarget != null ? " -> " + press.expectedTarget : ""));
+            }
+        }
+    }
+
+    private void run(List<Press> presses, LatencyHistogram cost) {
+        int sink = 0;
+        for (int i = 0, size = presses.size(); i < size; i++) {
+            long start = System.nanoTime();
+            sink += route(presses.get(i)).getPath().ordinal();
+            cost.record(System.nanoTime() - start);
+        }
+        if (sink == Integer.MIN_VALUE) {
+            // Keeps the routing from being optimized away
+            System.out.print("");
+        }
+    }
+}
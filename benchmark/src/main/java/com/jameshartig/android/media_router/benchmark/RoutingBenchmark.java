@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.benchmark;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.jameshartig.android.media_router.routing.Receiver;
+import com.jameshartig.android.media_router.routing.RoutingDecision;
+import com.jameshartig.android.media_router.routing.RoutingEngine;
+import com.jameshartig.android.media_router.routing.RoutingInput;
+
+/**
+ * The receiver/service/task matching done for every media button press:
+ * indexing the running services by package and running the routing engine.
+ *
+ * @author James Hartig
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RoutingBenchmark {
+
+    /**
+     * Which branch of the routing the event ends up in.
+     */
+    public enum Scenario {
+        /** Music active and the last receiver is still playing. */
+        LAST_RECEIVER,
+        /** Music active from the lowest priority receiver. */
+        FOREGROUND_SERVICE,
+        /** No music, the lowest priority receiver is on top. */
+        FOREGROUND_TASK,
+        /** No music and nothing on top, ends in the selector. */
+        PROMPT
+    }
+
+    @Param({ "5", "30", "200" })
+    public int receivers;
+
+    @Param({ "10", "300", "1000" })
+    public int services;
+
+    @Param
+    public Scenario scenario;
+
+    private DeviceProfile profile;
+    private RoutingEngine engine;
+    private RoutingInput input;
+    private boolean musicActive;
+    private Receiver lastReceiver;
+    private String topPackageName;
+
+    @Setup
+    public void setUp() {
+        profile = new DeviceProfile(receivers, services);
+        engine = new RoutingEngine();
+        musicActive = scenario == Scenario.LAST_RECEIVER || scenario == Scenario.FOREGROUND_SERVICE;
+        lastReceiver = scenario == Scenario.LAST_RECEIVER ? profile.receivers.get(receivers - 1) : null;
+        topPackageName = scenario == Scenario.FOREGROUND_TASK ? profile.playingPackage : "com.example.launcher";
+        input = new RoutingInput(profile.receivers, indexRunningServices(), topPackageName, musicActive,
+                lastReceiver, false);
+    }
+
+    /**
+     * What {@code RunningStateCache.Snapshot} does with the services the
+     * {@code ActivityManager} returns.
+     */
+    @Benchmark
+    public Set<String> indexRunningServices() {
+        Set<String> packages = new LinkedHashSet<String>();
+        for (DeviceProfile.Service service : profile.services) {
+            if (service.started && service.foreground) {
+                packages.add(service.packageName);
+            }
+        }
+        return Collections.unmodifiableSet(packages);
+    }
+
+    @Benchmark
+    public RoutingDecision route() {
+        return engine.route(input);
+    }
+
+    /**
+     * Everything between having the system state and knowing where the press
+     * goes.
+     */
+    @Benchmark
+    public RoutingDecision indexAndRoute() {
+        return engine.route(new RoutingInput(profile.receivers, indexRunningServices(), topPackageName,
+                musicActive, lastReceiver, false));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jameshartig.android.media_router.routing.LatencyHistogram;
+import com.jameshartig.android.media_router.routing.Receiver;
+import com.jameshartig.android.media_router.routing.RoutingDecision;
+import com.jameshartig.android.media_router.routing.RoutingEngine;
+import com.jameshartig.android.media_router.routing.RoutingTrace;
+
+/**
+ * Replays routing traces captured on a device with {@code dumpsys activity
+ * service MediaButtonMonitorService trace-start} through the routing engine,
+ * checking every decision matches the recorded one and timing each of them.
+ * Events the engine didn't decide, reused or speculated presses, are counted
+ * but not replayed. Exits with 1 if any decision differs. Traces are in the
+ * app's internal storage:
+ *
+ *     adb shell run-as com.jameshartig.android.media_router cat files/routing_trace.bin > routing_trace.bin
+ *     gradle -p benchmark replay -Ptraces="routing_trace.bin other_trace.bin"
+ *
+ * @author James Hartig
+ */
+public final class TraceReplay {
+
+    /**
+     * Passes over a trace before timing, so the JIT has compiled routing.
+     */
+    static final int WARMUP_PASSES = 5;
+
+    /**
+     * Times each event is routed per measurement. Routing one event takes
+     * about as long as reading the clock, so a single call can't be timed.
+     */
+    static final int REPEAT = 16;
+
+    /**
+     * How many mismatches are printed per trace.
+     */
+    static final int MAX_PRINTED_MISMATCHES = 20;
+
+    /**
+     * The outcome of replaying a trace.
+     */
+    static final class Result {
+        final int events;
+        /** Events routed by the engine, the rest can't be replayed. */
+        final int replayed;
+        final List<String> mismatches = new ArrayList<String>();
+        /** Nanoseconds per decision. */
+        final LatencyHistogram cost = new LatencyHistogram();
+        long totalNanos;
+
+        Result(int events, int replayed) {
+            this.events = events;
+            this.replayed = replayed;
+        }
+
+        long getMeanNanos() {
+            return replayed > 0 ? totalNanos / replayed : 0;
+        }
+    }
+
+    /**
+     * Prevent instantiation.
+     */
+    private TraceReplay() {
+        // Intentionally blank
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: TraceReplay <trace file>...");
+            System.exit(2);
+        }
+        boolean mismatched = false;
+        for (String path : args) {
+            Result result = replay(read(path), new RoutingEngine());
+            System.out.printf(
+                    "%s: %d events, %d replayed, %d mismatches, decision cost mean=%dns p50=%dns p99=%dns max=%dns%n",
+                    path, result.events, result.replayed, result.mismatches.size(), result.getMeanNanos(),
+                    result.cost.getPercentile(50), result.cost.getPercentile(99), result.cost.getMax());
+            for (int i = 0; i < result.mismatches.size() && i < MAX_PRINTED_MISMATCHES; i++) {
+                System.out.println("  " + result.mismatches.get(i));
+            }
+            mismatched |= !result.mismatches.isEmpty();
+        }
+        System.exit(mismatched ? 1 : 0);
+    }
+
+    static List<RoutingTrace.Event> read(String path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            RoutingTrace.Reader reader = new RoutingTrace.Reader(in);
+            List<RoutingTrace.Event> events = new ArrayList<RoutingTrace.Event>();
+            RoutingTrace.Event event;
+            while ((event = reader.read()) != null) {
+                events.add(event);
+            }
+            return events;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Routes every event the engine decided, comparing and timing the
+     * decisions.
+     *
+     * @param trace
+     *            The trace.
+     * @param engine
+     *            The engine to route with.
+     * @return The result.
+     */
+    static Result replay(List<RoutingTrace.Event> trace, RoutingEngine engine) {
+        List<RoutingTrace.Event> events = new ArrayList<RoutingTrace.Event>(trace.size());
+        List<Integer> indexes = new ArrayList<Integer>(trace.size());
+        for (int i = 0, size = trace.size(); i < size; i++) {
+            if (trace.get(i).getSource() == RoutingTrace.Source.ENGINE) {
+                events.add(trace.get(i));
+                indexes.add(i);
+            }
+        }
+        Result result = new Result(trace.size(), events.size());
+        for (int i = 0, size = events.size(); i < size; i++) {
+            RoutingTrace.Event event = events.get(i);
+            RoutingDecision expected = event.getDecision();
+            RoutingDecision actual = engine.route(event.getInput());
+            if (expected.getPath() != actual.getPath() || !equal(expected.getTarget(), actual.getTarget())) {
+                result.mismatches.add("#" + indexes.get(i) + " t=" + event.getEventTime() + " key=" + event.getKeyCode()
+                        + " recorded " + expected + ", routed " + actual);
+            }
+        }
+
+        int sink = 0;
+        for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+            for (int i = 0, size = events.size(); i < size; i++) {
+                sink += engine.route(events.get(i).getInput()).getPath().ordinal();
+            }
+        }
+        for (int i = 0, size = events.size(); i < size; i++) {
+            RoutingTrace.Event event = events.get(i);
+            long start = System.nanoTime();
+            for (int r = 0; r < REPEAT; r++) {
+                sink += engine.route(event.getInput()).getPath().ordinal();
+            }
+            long nanos = (System.nanoTime() - start) / REPEAT;
+            result.cost.record(nanos);
+            result.totalNanos += nanos;
+        }
+        if (sink == Integer.MIN_VALUE) {
+            // Keeps the routing from being optimized away
+            System.out.print("");
+        }
+        return result;
+    }
+
+    private static boolean equal(Receiver a, Receiver b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import static com.jameshartig.android.media_router.Constants.TAG;
+
+import java.io.PrintWriter;
+
+import android.content.ComponentName;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Remembers which package last started playing, from events instead of
+ * scanning running services on every press. A play/pause we forwarded that
+ * started music confirms its target is the player. Players also register
+ * themselves as the media button receiver when they start playing, which the
+ * {@code MediaButtonMonitorService} sees before taking the registration back,
+ * but so do apps that are only opened. A registration is only a candidate
+ * until music starts within {@link #CANDIDATE_MILLIS} of it, so an app that
+ * never plays can't take over from the one that does. It only makes routing
+ * look at the running services again.
+ *
+ * The package is only meaningful while music is active, callers have to
+ * check that themselves. It is forgotten when music stops, when a key
+ * forwarded to it seems to have missed, and {@link #MAX_AGE_MILLIS} after it
+ * was last confirmed. While it is known, routing trusts it over the running
+ * services and doesn't scan them.
+ *
+ * @author James Hartig
+ */
+public final class ActivePlayerTracker {
+
+    /**
+     * How long the package is trusted after the last event confirming it.
+     */
+    public static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * How long after registering a package is confirmed by music starting.
+     */
+    public static final long CANDIDATE_MILLIS = 5000;
+
+    private static volatile String playingPackage;
+
+    /**
+     * {@link SystemClock#elapsedRealtime()} of the last update.
+     */
+    private static volatile long updatedAt;
+
+    private static volatile String updatedBy;
+
+    private static volatile String candidatePackage;
+
+    /**
+     * {@link SystemClock#elapsedRealtime()} when the candidate registered.
+     */
+    private static volatile long candidateAt;
+
+    /**
+     * Prevent instantiation.
+     */
+    private ActivePlayerTracker() {
+        // Intentionally blank
+    }
+
+    /**
+     * @return The package that last started playing, or null if we haven't
+     *         seen one recently or it has stopped.
+     */
+    public static String getPlayingPackage() {
+        String packageName = playingPackage;
+        if (packageName != null && SystemClock.elapsedRealtime() - updatedAt >= MAX_AGE_MILLIS) {
+            return null;
+        }
+        return packageName;
+    }
+
+    /**
+     * Called when an app registered itself as the media button receiver. It
+     * becomes the player if music starts soon after. Until then we can't tell
+     * which of the two is playing, so any other player is forgotten.
+     *
+     * @param receiver
+     *            The receiver it registered.
+     */
+    static void onMediaButtonReceiverRegistered(ComponentName receiver) {
+        String packageName = receiver.getPackageName();
+        if (!packageName.equals(playingPackage)) {
+            clear("other registered");
+        }
+        candidatePackage = packageName;
+        candidateAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Called when music started playing.
+     */
+    static void onPlaybackActive() {
+        String packageName = candidatePackage;
+        candidatePackage = null;
+        if (packageName != null && SystemClock.elapsedRealtime() - candidateAt < CANDIDATE_MILLIS) {
+            update(packageName, "registered");
+        }
+    }
+
+    /**
+     * Called when a key we forwarded made music start playing.
+     *
+     * @param target
+     *            Where the key was forwarded.
+     */
+    static void onPlaybackStarted(ComponentName target) {
+        update(target.getPackageName(), "started");
+    }
+
+    /**
+     * Called when music stopped playing.
+     */
+    static void onPlaybackStopped() {
+        clear("stopped");
+    }
+
+    /**
+     * Called when a key forwarded to {@code target} doesn't seem to have
+     * reached it.
+     *
+     * @param target
+     *            Where the key was forwarded.
+     */
+    static void onDeliveryMissed(ComponentName target) {
+        if (target.getPackageName().equals(playingPackage)) {
+            clear("missed");
+        }
+    }
+
+    /**
+     * Forgets the player and any candidate. For tests, which run in one
+     * process.
+     */
+    static void resetForTest() {
+        playingPackage = null;
+        updatedBy = null;
+        updatedAt = 0;
+        candidatePackage = null;
+        candidateAt = 0;
+    }
+
+    private static void clear(String source) {
+        if (playingPackage == null) {
+            return;
+        }
+        Log.d(TAG, "Active player " + playingPackage + " forgotten (" + source + ")");
+        playingPackage = null;
+        updatedBy = source;
+        updatedAt = SystemClock.elapsedRealtime();
+    }
+
+    private static void update(String packageName, String source) {
+        if (!packageName.equals(playingPackage)) {
+            Log.d(TAG, "Active player is now " + packageName + " (" + source + ")");
+        }
+        playingPackage = packageName;
+        updatedBy = source;
+        updatedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Prints the tracked player.
+     *
+     * @param writer
+     *            Where to print.
+     */
+    public static void dump(PrintWriter writer) {
+        String packageName = playingPackage;
+        if (updatedBy == null) {
+            writer.println("Active player: unknown");
+            return;
+        }
+        long age = SystemClock.elapsedRealtime() - updatedAt;
+        writer.println("Active player: " + (packageName != null ? packageName : "none") + " (" + updatedBy + " "
+                + age / 1000 + "s ago" + (packageName != null && age >= MAX_AGE_MILLIS ? ", expired" : "") + ")");
+    }
+}
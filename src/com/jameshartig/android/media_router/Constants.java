@@ -30,9 +30,13 @@ public class Constants {
     public static final String TAG = "MediaButtonRouter";
     public static final String INTENT_ACTION_VIEW_MEDIA_BUTTON_LIST = "com.jameshartig.android.VIEW_MEDIA_LIST";
     public static final String INTENT_ACTION_VIEW_MEDIA_LIST_KEYPRESS = "com.jameshartig.android.VIEW_MEDIA_LIST_KEYPRESS";
+    public static final String EXTRA_SELECTOR_LAUNCH_NANOS = "com.jameshartig.android.SELECTOR_LAUNCH_NANOS";
     public static final String ENABLED_PREF_KEY = "enable_receiver";
     public static final String TIMEOUT_KEY = "timeout";
     public static final String HIDDEN_APPS_KEY = "hidden_apps";
     public static final String LAST_MEDIA_BUTTON_RECEIVER = "last_media_button_receiver";
     public static final String IGNORE_NEW_RECEIVER = "ignoreNewReceiver";
+    public static final String ASYNC_ROUTING_KEY = "async_routing";
+    public static final String CONFIRM_DELIVERY_KEY = "confirm_delivery";
+    public static final String SPECULATIVE_ROUTING_KEY = "speculative_routing";
 }
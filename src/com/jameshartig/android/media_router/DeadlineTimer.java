@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Runs a callback on a {@code Handler}'s thread once a deadline, in
+ * {@link SystemClock#uptimeMillis()}, has passed. Moving the deadline only
+ * updates a field: the pending message notices it woke up early and posts
+ * itself again for the new deadline. That makes resetting the timer on
+ * every user interaction free.
+ *
+ * Not thread safe, use it only on the handler's thread.
+ *
+ * @author James Hartig
+ */
+public final class DeadlineTimer implements Runnable {
+
+    private final Handler handler;
+
+    private final Runnable onExpired;
+
+    /**
+     * The deadline, or 0 if the timer isn't running.
+     */
+    private long deadline;
+
+    /**
+     * Whether this is posted to the handler.
+     */
+    private boolean posted;
+
+    /**
+     * When the pending message will run, if {@link #posted}.
+     */
+    private long postedFor;
+
+    /**
+     * @param handler
+     *            The handler to run on.
+     * @param onExpired
+     *            Run on the handler's thread when the deadline passes.
+     */
+    public DeadlineTimer(Handler handler, Runnable onExpired) {
+        this.handler = handler;
+        this.onExpired = onExpired;
+    }
+
+    /**
+     * Starts the timer, or moves its deadline if it is already running.
+     *
+     * @param deadlineMillis
+     *            The deadline in {@link SystemClock#uptimeMillis()}. Must be
+     *            positive.
+     */
+    public void setDeadline(long deadlineMillis) {
+        deadline = deadlineMillis;
+        if (posted && deadlineMillis < postedFor) {
+            // Earlier than the pending message, it has to be moved
+            handler.removeCallbacks(this);
+            posted = false;
+        }
+        if (!posted) {
+            post(deadlineMillis);
+        }
+    }
+
+    /**
+     * Starts the timer to expire after a delay, or moves its deadline if it
+     * is already running.
+     *
+     * @param delayMillis
+     *            How long from now.
+     */
+    public void reset(long delayMillis) {
+        setDeadline(SystemClock.uptimeMillis() + delayMillis);
+    }
+
+    /**
+     * Stops the timer. {@link #getDeadline()} still returns the deadline it
+     * had, so it can be started again with the time it had left.
+     */
+    public void cancel() {
+        if (posted) {
+            posted = false;
+            handler.removeCallbacks(this);
+        }
+    }
+
+    /**
+     * @return The deadline, or 0 if the timer was never started or has
+     *         expired.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return Whether the timer is waiting on its deadline.
+     */
+    public boolean isRunning() {
+        return posted;
+    }
+
+    @Override
+    public void run() {
+        posted = false;
+        long now = SystemClock.uptimeMillis();
+        if (now < deadline) {
+            // The deadline moved after we were posted
+            post(deadline);
+            return;
+        }
+        deadline = 0;
+        onExpired.run();
+    }
+
+    private void post(long uptimeMillis) {
+        posted = true;
+        postedFor = uptimeMillis;
+        handler.postDelayed(this, uptimeMillis - SystemClock.uptimeMillis());
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import static com.jameshartig.android.media_router.Constants.TAG;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.view.KeyEvent;
+
+/**
+ * Checks that a forwarded key reached its target, and runs a fallback that
+ * sends it somewhere else when it didn't:
+ * <ul>
+ * <li>sending it threw,</li>
+ * <li>by {@link #DEADLINE_MILLIS} the target's receiver no longer exists or
+ * is disabled, or</li>
+ * <li>with {@link Constants#CONFIRM_DELIVERY_KEY} set, a play/pause sent
+ * while nothing was playing didn't start any music by the deadline, even
+ * though the target was done with the key.</li>
+ * </ul>
+ * The last one is only acted on for the latest press. If another key was
+ * forwarded since, the user has moved on, and sending the older press as
+ * well could leave two players playing.
+ *
+ * A key whose ordered broadcast hasn't completed by the deadline is only
+ * counted as a miss and isn't sent again, since the target may still be
+ * acting on it. The next press is routed from scratch.
+ *
+ * Media players don't set broadcast result codes, so the completion of the
+ * ordered broadcast is the most the result tells us.
+ *
+ * @author James Hartig
+ */
+public final class DeliveryTracker {
+
+    /**
+     * How long the target has to show it got the key. Long enough for a
+     * player to start playing.
+     */
+    public static final long DEADLINE_MILLIS = 1500;
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    private static final AtomicInteger delivered = new AtomicInteger();
+    private static final AtomicInteger missed = new AtomicInteger();
+    private static final AtomicInteger fellBack = new AtomicInteger();
+
+    /**
+     * The delivery of the key forwarded last.
+     */
+    private static volatile Delivery latest;
+
+    /**
+     * Prevent instantiation.
+     */
+    private DeliveryTracker() {
+        // Intentionally blank
+    }
+
+    /**
+     * One forwarded key being tracked.
+     */
+    public static final class Delivery implements Runnable {
+        private final Context context;
+        private final ComponentName target;
+        private final boolean expectMusic;
+        private final Runnable fallback;
+        private volatile boolean completed;
+
+        Delivery(Context context, ComponentName target, boolean expectMusic, Runnable fallback) {
+            this.context = context;
+            this.target = target;
+            this.expectMusic = expectMusic;
+            this.fallback = fallback;
+        }
+
+        /**
+         * Called once the key has been sent, starts the deadline.
+         */
+        void onSent() {
+            latest = this;
+            handler.postDelayed(this, DEADLINE_MILLIS);
+        }
+
+        /**
+         * Called when the ordered broadcast carrying the key has completed.
+         */
+        void onCompleted() {
+            completed = true;
+        }
+
+        /**
+         * Called instead of {@link #onSent()} if sending the key threw.
+         * Falls back right away.
+         *
+         * @param e
+         *            What was thrown.
+         */
+        void onSendFailed(final RuntimeException e) {
+            handler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    onFailed("sending threw " + e);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            if (!ReceiverRegistry.getInstance(context).contains(target)) {
+                onFailed("receiver is gone");
+                return;
+            }
+            if (!completed) {
+                // It may still be acting on it, so don't send it again
+                onMissed("ordered broadcast didn't complete");
+                return;
+            }
+            if (expectMusic && !MusicActivityTracker.revalidate(context)) {
+                if (latest == this) {
+                    onFailed("no music started");
+                } else {
+                    onMissed("no music started, but a newer key was sent");
+                }
+                return;
+            }
+            delivered.incrementAndGet();
+            if (expectMusic) {
+                ActivePlayerTracker.onPlaybackStarted(target);
+            }
+        }
+
+        private void onMissed(String reason) {
+            missed.incrementAndGet();
+            ActivePlayerTracker.onDeliveryMissed(target);
+            Log.d(TAG, "Key to " + target + " may have missed: " + reason);
+        }
+
+        private void onFailed(String reason) {
+            missed.incrementAndGet();
+            ActivePlayerTracker.onDeliveryMissed(target);
+            Log.d(TAG, "Key to " + target + " missed: " + reason);
+            if (fallback != null) {
+                fellBack.incrementAndGet();
+                fallback.run();
+            }
+        }
+    }
+
+    /**
+     * Creates the tracking for a key about to be forwarded. Pass it to
+     * {@link KeyForwarder#forward(Context, ComponentName, boolean, int, KeyEvent, Delivery)},
+     * which starts the deadline once the key is sent.
+     *
+     * @param context
+     *            The context.
+     * @param target
+     *            The receiver the key is forwarded to.
+     * @param keyCode
+     *            The forwarded key code.
+     * @param fallback
+     *            Run on the main thread if the key didn't reach the target
+     *            or didn't start any music. May be null.
+     * @return The delivery.
+     */
+    public static Delivery track(Context context, ComponentName target, int keyCode, Runnable fallback) {
+        // Only a play/pause sent while nothing is playing has an effect we
+        // can see
+        boolean expectMusic = (keyCode == KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE || keyCode == KeyEvent.KEYCODE_HEADSETHOOK)
+                && PreferenceManager.getDefaultSharedPreferences(context).getBoolean(Constants.CONFIRM_DELIVERY_KEY,
+                        false)
+                && !MusicActivityTracker.isMusicActive(context);
+        return new Delivery(context.getApplicationContext(), target, expectMusic, fallback);
+    }
+
+    /**
+     * Prints the delivery counters.
+     *
+     * @param writer
+     *            Where to print.
+     */
+    public static void dump(PrintWriter writer) {
+        writer.println("Key delivery: delivered=" + delivered.get() + " missed=" + missed.get() + " fellBack="
+                + fellBack.get());
+    }
+
+    /**
+     * Clears the delivery counters.
+     */
+    public static void reset() {
+        delivered.set(0);
+        missed.set(0);
+        fellBack.set(0);
+    }
+}
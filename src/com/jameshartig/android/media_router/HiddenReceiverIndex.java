@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import java.util.BitSet;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.preference.PreferenceManager;
+
+/**
+ * The receivers the user has hidden, parsed once from
+ * {@link Constants#HIDDEN_APPS_KEY} and kept as a bit set of receiver ids
+ * from {@link ReceiverRegistry#getReceiverId(String)}. The set is only
+ * parsed again when the preference changes, so checking a receiver is a
+ * single bit lookup.
+ *
+ * @author James Hartig
+ */
+public final class HiddenReceiverIndex {
+
+    private static HiddenReceiverIndex instance;
+
+    /**
+     * An immutable parse of the hidden apps preference. A new one is made on
+     * every change, so callers can compare by identity to tell whether the
+     * hidden apps changed.
+     */
+    public static final class Hidden {
+        private final BitSet ids;
+
+        private Hidden(BitSet ids) {
+            this.ids = ids;
+        }
+
+        /**
+         * @param receiverId
+         *            From {@link ReceiverRegistry#getReceiverId(String)}.
+         * @return Whether the receiver is hidden.
+         */
+        public boolean contains(int receiverId) {
+            return ids.get(receiverId);
+        }
+    }
+
+    private final SharedPreferences preferences;
+
+    private volatile Hidden hidden;
+
+    /**
+     * {@code SharedPreferences} only keeps weak references to listeners, so
+     * this has to be a field.
+     */
+    private final OnSharedPreferenceChangeListener preferenceListener = new OnSharedPreferenceChangeListener() {
+
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            if (Constants.HIDDEN_APPS_KEY.equals(key)) {
+                hidden = parse(sharedPreferences.getString(Constants.HIDDEN_APPS_KEY, ""));
+            }
+        }
+    };
+
+    private HiddenReceiverIndex(Context context) {
+        preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        preferences.registerOnSharedPreferenceChangeListener(preferenceListener);
+        hidden = parse(preferences.getString(Constants.HIDDEN_APPS_KEY, ""));
+    }
+
+    /**
+     * Returns the index for this process, creating it if needed.
+     *
+     * @param context
+     *            Any context, only the application context is retained.
+     * @return The index.
+     */
+    public static synchronized HiddenReceiverIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new HiddenReceiverIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Forgets the index so the hidden apps are read again. For tests, which
+     * run in one process.
+     */
+    static synchronized void resetForTest() {
+        instance = null;
+    }
+
+    /**
+     * @return The current hidden receivers.
+     */
+    public Hidden getHidden() {
+        return hidden;
+    }
+
+    /**
+     * @param receiverKey
+     *            From {@link ReceiverRegistry#getReceiverKey(android.content.pm.ResolveInfo)}.
+     * @return Whether the receiver is hidden.
+     */
+    public boolean isHidden(String receiverKey) {
+        return hidden.contains(ReceiverRegistry.getReceiverId(receiverKey));
+    }
+
+    private static Hidden parse(String hiddenApps) {
+        BitSet ids = new BitSet();
+        int start = 0;
+        while (start <= hiddenApps.length()) {
+            int end = hiddenApps.indexOf(',', start);
+            if (end < 0) {
+                end = hiddenApps.length();
+            }
+            if (end > start) {
+                ids.set(ReceiverRegistry.getReceiverId(hiddenApps.substring(start, end)));
+            }
+            start = end + 1;
+        }
+        return new Hidden(ids);
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import static com.jameshartig.android.media_router.Constants.TAG;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.KeyEvent;
+
+import com.jameshartig.android.media_router.routing.LatencyHistogram;
+
+/**
+ * Forwards media keys to a music player's receiver as a down and an up
+ * event, optionally launching the player first.
+ *
+ * How the events are sent is a {@link Strategy} chosen per target with
+ * {@link #setStrategy(ComponentName, Strategy)}. Every target uses
+ * {@link Strategy#ORDERED_BROADCAST} unless told otherwise, and nothing
+ * switches strategies on its own: the two don't report comparable times, so
+ * there is no measurement to pick the faster one by. The time each forward
+ * took is recorded per target and strategy for dumpsys.
+ *
+ * {@code AudioManager#dispatchMediaKeyEvent} isn't used. It delivers to
+ * whoever registered with the {@code AudioManager} last, which is normally
+ * our own receiver, so it would loop back to us.
+ *
+ * @author James Hartig
+ */
+public final class KeyForwarder {
+
+    /**
+     * How the key events are sent to a target.
+     */
+    public enum Strategy {
+        /**
+         * Targeted ordered broadcasts, as the app always sent them. Works
+         * with every player, and completes once the target is done with the
+         * key. Timed until the up event's broadcast completed.
+         */
+        ORDERED_BROADCAST,
+        /**
+         * Targeted unordered broadcasts, which skip waiting in the ordered
+         * broadcast queue. Nothing tells us when the target got the key, so
+         * delivery tracking treats it as complete once sent. Timed until
+         * both were sent.
+         */
+        UNORDERED_BROADCAST
+    }
+
+    private static final Strategy[] STRATEGIES = Strategy.values();
+
+    private static KeyForwarder instance;
+
+    /**
+     * Marks a package without a launch intent in {@link #launchIntents}.
+     */
+    private static final Intent NO_LAUNCH_INTENT = new Intent();
+
+    private final PackageManager packageManager;
+
+    /**
+     * Forwarding times by flattened component name, one histogram per
+     * strategy ordinal, guarded by this.
+     */
+    private final Map<String, LatencyHistogram[]> targets = new HashMap<String, LatencyHistogram[]>();
+
+    /**
+     * Targets not using {@link Strategy#ORDERED_BROADCAST}, by flattened
+     * component name, guarded by this.
+     */
+    private final Map<String, Strategy> strategies = new HashMap<String, Strategy>();
+
+    /**
+     * By package name, guarded by this.
+     */
+    private final Map<String, Intent> launchIntents = new HashMap<String, Intent>();
+
+    private final BroadcastReceiver packageChangeReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            if (packageName != null) {
+                onPackageChanged(packageName);
+            }
+        }
+    };
+
+    private KeyForwarder(Context context) {
+        packageManager = context.getPackageManager();
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(packageChangeReceiver, packageFilter);
+    }
+
+    /**
+     * Returns the forwarder for this process, creating it if needed.
+     *
+     * @param context
+     *            Any context, only the application context is retained.
+     * @return The forwarder.
+     */
+    public static synchronized KeyForwarder getInstance(Context context) {
+        if (instance == null) {
+            instance = new KeyForwarder(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Forgets the forwarder, its strategies and latencies. For tests, which
+     * run in one process.
+     */
+    static synchronized void resetForTest() {
+        instance = null;
+    }
+
+    /**
+     * Chooses how keys are sent to a target.
+     *
+     * @param target
+     *            The receiver.
+     * @param strategy
+     *            How to send its keys.
+     */
+    public synchronized void setStrategy(ComponentName target, Strategy strategy) {
+        if (strategy == Strategy.ORDERED_BROADCAST) {
+            strategies.remove(target.flattenToString());
+        } else {
+            strategies.put(target.flattenToString(), strategy);
+        }
+    }
+
+    /**
+     * @param target
+     *            The receiver.
+     * @return How keys are sent to it.
+     */
+    public synchronized Strategy getStrategy(ComponentName target) {
+        Strategy strategy = strategies.get(target.flattenToString());
+        return strategy != null ? strategy : Strategy.ORDERED_BROADCAST;
+    }
+
+    /**
+     * Forwards {@code keyCode} to the receiver as a down and an up event.
+     *
+     * @param context
+     *            The context to send from.
+     * @param target
+     *            The receiver.
+     * @param launch
+     *            Whether to start the receiver's app first. Some apps only
+     *            act on media keys while they're open.
+     * @param keyCode
+     *            The key code to forward.
+     * @param original
+     *            The key event the user pressed, whose down and event times
+     *            are kept. If null the current time is used.
+     */
+    public void forward(Context context, ComponentName target, boolean launch, int keyCode, KeyEvent original) {
+        forward(context, target, launch, keyCode, original, null);
+    }
+
+    /**
+     * Forwards {@code keyCode} to the receiver like
+     * {@link #forward(Context, ComponentName, boolean, int, KeyEvent)}, and
+     * tells the delivery tracking about it.
+     *
+     * @param context
+     *            The context to send from.
+     * @param target
+     *            The receiver.
+     * @param launch
+     *            Whether to start the receiver's app first.
+     * @param keyCode
+     *            The key code to forward.
+     * @param original
+     *            The key event the user pressed, may be null.
+     * @param delivery
+     *            From {@link DeliveryTracker#track}, may be null.
+     */
+    public void forward(Context context, ComponentName target, boolean launch, int keyCode, KeyEvent original,
+            final DeliveryTracker.Delivery delivery) {
+        final long start = System.nanoTime();
+        final String flattenedTarget = target.flattenToString();
+        Strategy strategy = getStrategy(target);
+
+        long downTime = original != null ? original.getDownTime() : SystemClock.uptimeMillis();
+        long eventTime = original != null ? Math.max(original.getEventTime(), downTime) : downTime;
+        Intent downIntent = new Intent(Intent.ACTION_MEDIA_BUTTON);
+        downIntent.setComponent(target);
+        downIntent.putExtra(Intent.EXTRA_KEY_EVENT, new KeyEvent(downTime, downTime, KeyEvent.ACTION_DOWN, keyCode, 0));
+        Intent upIntent = new Intent(Intent.ACTION_MEDIA_BUTTON);
+        upIntent.setComponent(target);
+        upIntent.putExtra(Intent.EXTRA_KEY_EVENT, new KeyEvent(downTime, eventTime, KeyEvent.ACTION_UP, keyCode, 0));
+
+        // We start the selected application because some apps broadcast
+        // receivers won't do anything with the intents unless the
+        // application is open. Another reason to launch the app is that if
+        // the app does AudioManager#registerMediaButtonEventReceiver on load,
+        // and we are unable to tell when this app is playing music, android's
+        // default behavior should be correct.
+        if (launch) {
+            Intent launchIntent = getLaunchIntent(target.getPackageName());
+            if (launchIntent != null) {
+                try {
+                    context.startActivity(launchIntent);
+                } catch (RuntimeException e) {
+                    // Still worth sending the key
+                    Log.w(TAG, "Unable to launch " + target.getPackageName(), e);
+                }
+            }
+        }
+
+        try {
+            switch (strategy) {
+                case ORDERED_BROADCAST:
+                    BroadcastReceiver completionReceiver = new BroadcastReceiver() {
+
+                        @Override
+                        public void onReceive(Context context, Intent intent) {
+                            recordLatency(flattenedTarget, Strategy.ORDERED_BROADCAST, System.nanoTime() - start);
+                            if (delivery != null) {
+                                delivery.onCompleted();
+                            }
+                        }
+                    };
+                    context.sendOrderedBroadcast(downIntent, null, null, null, Activity.RESULT_OK, null, null);
+                    context.sendOrderedBroadcast(upIntent, null, completionReceiver, null, Activity.RESULT_OK, null,
+                            null);
+                    break;
+                case UNORDERED_BROADCAST:
+                    context.sendBroadcast(downIntent);
+                    context.sendBroadcast(upIntent);
+                    recordLatency(flattenedTarget, Strategy.UNORDERED_BROADCAST, System.nanoTime() - start);
+                    if (delivery != null) {
+                        delivery.onCompleted();
+                    }
+                    break;
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to forward key to " + target, e);
+            if (delivery != null) {
+                delivery.onSendFailed(e);
+            }
+            return;
+        }
+        if (delivery != null) {
+            delivery.onSent();
+        }
+    }
+
+    /**
+     * Prints how long forwards to every target took, per strategy.
+     *
+     * @param writer
+     *            Where to print.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Key forwarding by target (us):");
+        for (Map.Entry<String, LatencyHistogram[]> entry : targets.entrySet()) {
+            for (Strategy strategy : STRATEGIES) {
+                LatencyHistogram histogram = entry.getValue()[strategy.ordinal()];
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                writer.printf("  %s %s count=%d p50=%d p95=%d max=%d%n", entry.getKey(), strategy,
+                        histogram.getCount(), histogram.getPercentile(50) / 1000,
+                        histogram.getPercentile(95) / 1000, histogram.getMax() / 1000);
+            }
+        }
+    }
+
+    private synchronized void recordLatency(String flattenedTarget, Strategy strategy, long nanos) {
+        LatencyHistogram[] histograms = targets.get(flattenedTarget);
+        if (histograms == null) {
+            histograms = new LatencyHistogram[STRATEGIES.length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+            targets.put(flattenedTarget, histograms);
+        }
+        histograms[strategy.ordinal()].record(nanos);
+    }
+
+    /**
+     * @return A copy of the package's launch intent, or null if it has none.
+     */
+    private Intent getLaunchIntent(String packageName) {
+        Intent launchIntent;
+        synchronized (this) {
+            launchIntent = launchIntents.get(packageName);
+        }
+        if (launchIntent == null) {
+            launchIntent = packageManager.getLaunchIntentForPackage(packageName);
+            if (launchIntent == null) {
+                launchIntent = NO_LAUNCH_INTENT;
+            }
+            synchronized (this) {
+                launchIntents.put(packageName, launchIntent);
+            }
+        }
+        return launchIntent != NO_LAUNCH_INTENT ? new Intent(launchIntent) : null;
+    }
+
+    /**
+     * Forgets the package's launch intent and the timings of its receivers,
+     * they may have changed.
+     *
+     * @param packageName
+     *            The package that was added, removed, replaced or changed.
+     */
+    synchronized void onPackageChanged(String packageName) {
+        launchIntents.remove(packageName);
+        String prefix = packageName + "/";
+        List<String> removed = new ArrayList<String>();
+        for (Iterator<String> iterator = targets.keySet().iterator(); iterator.hasNext();) {
+            String flattenedTarget = iterator.next();
+            if (flattenedTarget.startsWith(prefix)) {
+                removed.add(flattenedTarget);
+                iterator.remove();
+            }
+        }
+        if (!removed.isEmpty()) {
+            Log.d(TAG, "Forgot key forwarding stats for " + removed);
+        }
+    }
+}
@@ -16,7 +16,6 @@
 package com.jameshartig.android.media_router;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import android.app.Activity;
@@ -86,11 +85,9 @@ public class MediaButtonConfigure extends PreferenceActivity implements OnShared
             }
         };
 
-        String hiddenReceiverIdsString = PreferenceManager.getDefaultSharedPreferences(this).getString(
-                Constants.HIDDEN_APPS_KEY, "");
-        List<String> hiddenIds = Arrays.asList(hiddenReceiverIdsString.split(","));
+        HiddenReceiverIndex hiddenReceiverIndex = HiddenReceiverIndex.getInstance(this);
 
-        List<ResolveInfo> mediaReceivers = Utils.getMediaReceivers(getPackageManager(), false, null);
+        List<ResolveInfo> mediaReceivers = Utils.getMediaReceivers(this, false);
         for (ResolveInfo mediaReceiver : mediaReceivers) {
             if (MediaButtonReceiver.class.getName().equals(mediaReceiver.activityInfo.name)) {
                 continue;
@@ -98,9 +95,8 @@ public class MediaButtonConfigure extends PreferenceActivity implements OnShared
             CheckBoxPreference showReceiverPreference = new CheckBoxPreference(this);
             showReceiverPreference.setTitle(Utils.getAppName(mediaReceiver, getPackageManager()));
             showReceiverPreference.setPersistent(false);
-            showReceiverPreference.setKey(mediaReceiver.activityInfo.applicationInfo.sourceDir
-                    + mediaReceiver.activityInfo.name);
-            showReceiverPreference.setChecked(!hiddenIds.contains(showReceiverPreference.getKey()));
+            showReceiverPreference.setKey(ReceiverRegistry.getReceiverKey(mediaReceiver));
+            showReceiverPreference.setChecked(!hiddenReceiverIndex.isHidden(showReceiverPreference.getKey()));
             showReceiverPreference.setOnPreferenceChangeListener(showPreferenceChangeListener);
             visibleAppsCategory.addPreference(showReceiverPreference);
             showAppCheckBoxPreferences.add(showReceiverPreference);
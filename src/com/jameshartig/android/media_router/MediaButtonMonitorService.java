@@ -15,21 +15,33 @@
  */
 package com.jameshartig.android.media_router;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import android.app.Service;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.database.ContentObserver;
 import android.media.AudioManager;
 import android.os.Handler;
 import android.os.IBinder;
-import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.util.Log;
 
 import com.jameshartig.android.media_router.receivers.MediaButtonReceiver;
+import com.jameshartig.android.media_router.receivers.SpeculativeRouting;
+import com.jameshartig.android.media_router.routing.FlightRecorder;
+import com.jameshartig.android.media_router.routing.RoutingStats;
 
 /**
  * Monitors when the media button receiver registered with the audio manager changes, and sets 
@@ -41,6 +53,8 @@ import com.jameshartig.android.media_router.receivers.MediaButtonReceiver;
  */
  public class MediaButtonMonitorService extends Service {
     public static final String TAG = "MediaButtonMonitorService";
+    private static final String FLIGHT_RECORDER_FILE = "flight_recorder.bin";
+    private static final String TRACE_FILE = "routing_trace.bin";
     public SettingsObserver mSettingsObserver;
     public ComponentName mComponentName;
     public AudioManager mAudioManager;
@@ -64,9 +78,13 @@ import com.jameshartig.android.media_router.receivers.MediaButtonReceiver;
                     && !receiverName.equals(mMonitorService.mComponentName.flattenToString())
                     && !receiverName
                             .equals("com.jameshartig.android.media_router/com.jameshartig.android.media_router.ReceiverSelector$1")) {
-                SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mMonitorService
-                        .getApplicationContext());
-                preferences.edit().putString(Constants.LAST_MEDIA_BUTTON_RECEIVER, receiverName).commit();
+                // Players register when they start playing
+                ComponentName receiver = ComponentName.unflattenFromString(receiverName);
+                if (receiver != null) {
+                    ActivePlayerTracker.onMediaButtonReceiverRegistered(receiver);
+                }
+                MusicActivityTracker.invalidate();
+                RoutingStateStore.getInstance(mMonitorService).setLastReceiver(receiverName);
                 Log.d("SettingsObserver", "Set LAST_MEDIA_BUTTON_RECEIVER to" + receiverName);
                 mMonitorService.registerMediaButtonReceiver();
             }
@@ -83,6 +101,10 @@ import com.jameshartig.android.media_router.receivers.MediaButtonReceiver;
         mComponentName = new ComponentName(getPackageName(), MediaButtonReceiver.class.getName());
         mSettingsObserver = new SettingsObserver(this);
         mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        MusicActivityTracker.start(this);
+        // We're started on boot, have the selector ready before the first
+        // press
+        SelectorModel.getInstance(this).prepare();
     }
 
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -94,6 +116,73 @@ import com.jameshartig.android.media_router.receivers.MediaButtonReceiver;
     public void onDestroy() {
         Log.d(TAG, "onDestroy() called. Unregistering media button receiver.");
         mAudioManager.unregisterMediaButtonEventReceiver(mComponentName);
+        MusicActivityTracker.stop();
+    }
+
+    /**
+     * Prints routing latency stats and the flight recorder for {@code adb
+     * shell dumpsys activity service MediaButtonMonitorService}. Pass
+     * {@code reset} to clear the stats afterwards, {@code export} to also
+     * write the flight recorder to a binary file in internal storage, pulled
+     * with {@code adb shell run-as com.jameshartig.android.media_router cat
+     * files/flight_recorder.bin > flight_recorder.bin}, or {@code trace-start} and
+     * {@code trace-stop} to capture a routing trace for replaying to
+     * {@code files/routing_trace.bin}, pulled the same way.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        RoutingStats.dump(writer);
+        KeyForwarder.getInstance(this).dump(writer);
+        DeliveryTracker.dump(writer);
+        SpeculativeRouting.dump(writer);
+        ActivePlayerTracker.dump(writer);
+        MusicActivityTracker.dump(writer);
+        List<String> argList = args != null ? Arrays.asList(args) : Collections.<String> emptyList();
+        MediaButtonReceiver.dumpAdmission(writer, argList.contains("reset"));
+        FlightRecorder.dump(writer);
+        if (argList.contains("export")) {
+            exportFlightRecorder(writer);
+        }
+        if (argList.contains("trace-start")) {
+            // Internal storage too, traces hold the receivers and services
+            File file = new File(getFilesDir(), TRACE_FILE);
+            try {
+                TraceCapture.start(file);
+            } catch (IOException e) {
+                writer.println("Couldn't start routing trace in " + file + ": " + e);
+            }
+        } else if (argList.contains("trace-stop")) {
+            TraceCapture.stop();
+        }
+        TraceCapture.dump(writer);
+        if (argList.contains("reset")) {
+            RoutingStats.reset();
+            DeliveryTracker.reset();
+            SpeculativeRouting.reset();
+            MusicActivityTracker.reset();
+            writer.println("Routing stats reset.");
+        }
+    }
+
+    private void exportFlightRecorder(PrintWriter writer) {
+        // Internal storage, the recorder shows which apps the user plays
+        File file = new File(getFilesDir(), FLIGHT_RECORDER_FILE);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            FlightRecorder.writeTo(out);
+            writer.println("Flight recorder written to " + file);
+        } catch (IOException e) {
+            writer.println("Couldn't write flight recorder to " + file + ": " + e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
     }
 
     public void registerMediaButtonReceiver() {
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import static com.jameshartig.android.media_router.Constants.TAG;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.AudioManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * In memory copy of {@link AudioManager#isMusicActive()}, so the presses of a
+ * burst can be routed without asking the audio service each time. The copy
+ * is kept current by:
+ * <ul>
+ * <li>playback state broadcasts sent by many players, though one player
+ * stopping only invalidates it since another may still be playing,</li>
+ * <li>invalidating it on anything likely to start or stop playback, like
+ * forwarding a key, a player registering or audio becoming noisy, and
+ * checking again once things have settled,</li>
+ * <li>checking again on read if it is older than {@link #MAX_AGE_MILLIS},
+ * since nothing tells us about most players starting or stopping.</li>
+ * </ul>
+ * The broadcasts are only received while the {@code MediaButtonMonitorService}
+ * is running, which starts and stops the tracker.
+ *
+ * @author James Hartig
+ */
+public final class MusicActivityTracker {
+
+    /**
+     * How long a checked value is trusted without any event.
+     */
+    public static final long MAX_AGE_MILLIS = 1000;
+
+    /**
+     * How long after an invalidation to check again, giving the player time to
+     * start or stop.
+     */
+    public static final long SETTLE_MILLIS = 750;
+
+    /**
+     * Playback state broadcasts with a boolean {@code playing} extra.
+     */
+    private static final String[] PLAYSTATE_ACTIONS = new String[] {
+            "com.android.music.playstatechanged",
+            "com.android.music.metachanged",
+            "com.spotify.music.playbackstatechanged"
+    };
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    private static volatile boolean active;
+
+    /**
+     * {@link SystemClock#uptimeMillis()} when {@link #active} was last known
+     * to be right, or 0 if it is unknown.
+     */
+    private static volatile long checkedAt;
+
+    private static final AtomicInteger cachedReads = new AtomicInteger();
+    private static final AtomicInteger queries = new AtomicInteger();
+
+    private static Context appContext;
+
+    private static final Runnable revalidate = new Runnable() {
+
+        @Override
+        public void run() {
+            Context context = appContext;
+            if (context != null) {
+                revalidate(context);
+            }
+        }
+    };
+
+    private static final BroadcastReceiver receiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (AudioManager.ACTION_AUDIO_BECOMING_NOISY.equals(intent.getAction())) {
+                invalidate();
+            } else if (intent.getBooleanExtra("playing", false)) {
+                set(true);
+            } else {
+                invalidate();
+            }
+        }
+    };
+
+    /**
+     * Prevent instantiation.
+     */
+    private MusicActivityTracker() {
+        // Intentionally blank
+    }
+
+    /**
+     * Starts listening for playback changes. Main thread only.
+     *
+     * @param context
+     *            The context.
+     */
+    static void start(Context context) {
+        if (appContext != null) {
+            return;
+        }
+        appContext = context.getApplicationContext();
+        IntentFilter filter = new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
+        for (String action : PLAYSTATE_ACTIONS) {
+            filter.addAction(action);
+        }
+        appContext.registerReceiver(receiver, filter);
+        revalidate(appContext);
+    }
+
+    /**
+     * Stops listening for playback changes. Reads check the audio service
+     * again once the value gets old. Main thread only.
+     */
+    static void stop() {
+        if (appContext == null) {
+            return;
+        }
+        appContext.unregisterReceiver(receiver);
+        handler.removeCallbacks(revalidate);
+        appContext = null;
+    }
+
+    /**
+     * @param context
+     *            The context.
+     * @return Whether music is playing, without asking the audio service if
+     *         that is known.
+     */
+    public static boolean isMusicActive(Context context) {
+        long at = checkedAt;
+        if (at != 0 && SystemClock.uptimeMillis() - at < MAX_AGE_MILLIS) {
+            cachedReads.incrementAndGet();
+            return active;
+        }
+        return revalidate(context);
+    }
+
+    /**
+     * @return Whether music is known to be playing without asking the audio
+     *         service. False if it isn't playing or that isn't known.
+     */
+    public static boolean isKnownActive() {
+        long at = checkedAt;
+        return at != 0 && SystemClock.uptimeMillis() - at < MAX_AGE_MILLIS && active;
+    }
+
+    /**
+     * Asks the audio service whether music is playing, and remembers it.
+     *
+     * @param context
+     *            The context.
+     * @return Whether music is playing.
+     */
+    public static boolean revalidate(Context context) {
+        queries.incrementAndGet();
+        boolean value = ((AudioManager) context.getSystemService(Context.AUDIO_SERVICE)).isMusicActive();
+        set(value);
+        return value;
+    }
+
+    /**
+     * Forgets the value because playback probably changed, and checks again
+     * in {@link #SETTLE_MILLIS} if the tracker is started. Any thread.
+     */
+    public static void invalidate() {
+        checkedAt = 0;
+        handler.removeCallbacks(revalidate);
+        handler.postDelayed(revalidate, SETTLE_MILLIS);
+    }
+
+    private static void set(boolean value) {
+        if (value != active) {
+            Log.d(TAG, "Music is now " + (value ? "active" : "inactive"));
+            if (value) {
+                ActivePlayerTracker.onPlaybackActive();
+            } else {
+                ActivePlayerTracker.onPlaybackStopped();
+            }
+        }
+        active = value;
+        checkedAt = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Prints the tracked state and how often it saved a query.
+     *
+     * @param writer
+     *            Where to print.
+     */
+    public static void dump(PrintWriter writer) {
+        long at = checkedAt;
+        writer.println("Music activity: "
+                + (at == 0 ? "unknown" : (active ? "active" : "inactive") + " checked "
+                        + (SystemClock.uptimeMillis() - at) + "ms ago") + " cachedReads=" + cachedReads.get()
+                + " queries=" + queries.get());
+    }
+
+    /**
+     * Clears the read counters.
+     */
+    public static void reset() {
+        cachedReads.set(0);
+        queries.set(0);
+    }
+
+    /**
+     * Forgets the tracked value and the context the tracker was started with,
+     * without unregistering from it. For tests, which run in one process and
+     * throw the context away.
+     */
+    static void resetForTest() {
+        handler.removeCallbacks(revalidate);
+        appContext = null;
+        active = false;
+        checkedAt = 0;
+        reset();
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import static com.jameshartig.android.media_router.Constants.TAG;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Icons and labels for media button receivers, as shown by the selector.
+ * Decoding an app's icon and loading its label are slow, so both are loaded
+ * on a background thread and kept in two levels:
+ * <ul>
+ * <li>an in-memory LRU of icons already scaled to the list row size, bounded
+ * to {@link #MEMORY_CACHE_BYTES}, and</li>
+ * <li>a file per receiver in the cache directory, named by package and
+ * receiver, so a cold started process doesn't have to go to the
+ * {@code PackageManager} at all.</li>
+ * </ul>
+ * Entries for a package are dropped when it is installed, updated or removed.
+ * A load that was running meanwhile isn't cached, since it may have read the
+ * old version. Updates while our process wasn't running are caught by the
+ * file keeping the modification time of the package's apk, which only takes
+ * a {@code stat}.
+ *
+ * @author James Hartig
+ */
+public final class ReceiverIconCache {
+
+    /**
+     * Told when an entry that wasn't in memory has been loaded. Called on the
+     * main thread.
+     */
+    public interface OnLoadedListener {
+        void onLoaded(ResolveInfo resolveInfo, Entry entry);
+    }
+
+    /**
+     * A receiver's icon and label.
+     */
+    public static final class Entry {
+        private final Bitmap icon;
+        private final String label;
+
+        Entry(Bitmap icon, String label) {
+            this.icon = icon;
+            this.label = label;
+        }
+
+        public Bitmap getIcon() {
+            return icon;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final String DIRECTORY_NAME = "receiver_icons";
+
+    /**
+     * Bumped if the file format changes so old files are ignored.
+     */
+    private static final int FILE_VERSION = 2;
+
+    /**
+     * Bound on the in-memory icons, enough for a few screens of the selector
+     * at the highest densities. The rest come from disk.
+     */
+    private static final int MEMORY_CACHE_BYTES = 2 * 1024 * 1024;
+
+    private static ReceiverIconCache instance;
+
+    private final PackageManager packageManager;
+
+    private final Resources resources;
+
+    private final File directory;
+
+    private final int iconSize;
+
+    private final LruCache<String, Entry> memoryCache;
+
+    /**
+     * Bumped whenever a package's entries are dropped. Guarded by
+     * {@link #memoryCache}.
+     */
+    private int generation;
+
+    /**
+     * Listeners waiting on entries queued on the loader, by key, so a list
+     * redrawing doesn't queue the same receiver over and over. Only used on
+     * the main thread.
+     */
+    private final Map<String, List<OnLoadedListener>> loading = new HashMap<String, List<OnLoadedListener>>();
+
+    private final Handler loaderHandler;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final BroadcastReceiver packageChangeReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            if (packageName != null) {
+                onPackageChanged(packageName);
+            }
+        }
+    };
+
+    private ReceiverIconCache(Context context) {
+        packageManager = context.getPackageManager();
+        resources = context.getResources();
+        directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        iconSize = resources.getDimensionPixelSize(R.dimen.receiver_icon_size);
+
+        memoryCache = new LruCache<String, Entry>(MEMORY_CACHE_BYTES) {
+
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                Bitmap icon = value.getIcon();
+                return (icon != null ? icon.getRowBytes() * icon.getHeight() : 0) + value.getLabel().length() * 2;
+            }
+        };
+
+        HandlerThread thread = new HandlerThread("ReceiverIcons", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        loaderHandler = new Handler(thread.getLooper());
+
+        IntentFilter packageFilter = new IntentFilter();
+        // Added covers reinstalls, which can keep the version code
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(packageChangeReceiver, packageFilter);
+    }
+
+    /**
+     * Returns the cache for this process, creating it if needed.
+     *
+     * @param context
+     *            Any context, only the application context is retained.
+     * @return The cache.
+     */
+    public static synchronized ReceiverIconCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ReceiverIconCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the loader thread and forgets the cache, including the icons in
+     * memory. For tests, which run in one process.
+     */
+    static synchronized void resetForTest() {
+        if (instance != null) {
+            Utils.quitAndJoin(instance.loaderHandler);
+            instance = null;
+        }
+    }
+
+    /**
+     * Gets the receiver's entry if it is in memory. Otherwise queues it to be
+     * loaded and returns null, and the listener is told once it's loaded.
+     * Must be called on the main thread.
+     *
+     * @param resolveInfo
+     *            The receiver.
+     * @param listener
+     *            Told when the entry is loaded, if it wasn't in memory. May
+     *            be null.
+     * @return The entry, or null if it's being loaded.
+     */
+    public Entry get(final ResolveInfo resolveInfo, final OnLoadedListener listener) {
+        final String key = getMemoryKey(resolveInfo);
+        Entry entry = memoryCache.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        List<OnLoadedListener> listeners = loading.get(key);
+        if (listeners != null) {
+            if (listener != null && !listeners.contains(listener)) {
+                listeners.add(listener);
+            }
+            return null;
+        }
+        listeners = new ArrayList<OnLoadedListener>(1);
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        loading.put(key, listeners);
+        loaderHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                final Entry loaded = getSync(resolveInfo);
+                mainHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        for (OnLoadedListener waiting : loading.remove(key)) {
+                            waiting.onLoaded(resolveInfo, loaded);
+                        }
+                    }
+                });
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Gets the receiver's entry only if it is in memory.
+     *
+     * @param resolveInfo
+     *            The receiver.
+     * @return The entry, or null if it isn't in memory.
+     */
+    public Entry peek(ResolveInfo resolveInfo) {
+        return memoryCache.get(getMemoryKey(resolveInfo));
+    }
+
+    /**
+     * Gets the receiver's entry, loading it from disk or the
+     * {@code PackageManager} if it isn't in memory. Must not be called on the
+     * main thread.
+     *
+     * @param resolveInfo
+     *            The receiver.
+     * @return The entry.
+     */
+    public Entry getSync(ResolveInfo resolveInfo) {
+        String key = getMemoryKey(resolveInfo);
+        Entry entry = memoryCache.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        int startGeneration;
+        synchronized (memoryCache) {
+            startGeneration = generation;
+        }
+        File file = getFile(resolveInfo);
+        long apkModified = new File(resolveInfo.activityInfo.applicationInfo.sourceDir).lastModified();
+        entry = read(file, apkModified);
+        if (entry == null) {
+            entry = new Entry(toBitmap(resolveInfo.loadIcon(packageManager)), Utils.getAppName(resolveInfo,
+                    packageManager));
+            if (isGeneration(startGeneration)) {
+                write(file, apkModified, entry);
+            }
+        }
+        synchronized (memoryCache) {
+            // The package changed while loading, so this may be the old
+            // version's entry. Return it, but load again next time
+            if (generation == startGeneration) {
+                memoryCache.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    private boolean isGeneration(int expected) {
+        synchronized (memoryCache) {
+            return generation == expected;
+        }
+    }
+
+    /**
+     * @return The icon to show while the real one is loading.
+     */
+    public Drawable getPlaceholderIcon() {
+        return packageManager.getDefaultActivityIcon();
+    }
+
+    /**
+     * Drops all entries for the package from memory and disk.
+     *
+     * @param packageName
+     *            The package that was installed, updated or removed.
+     */
+    void onPackageChanged(final String packageName) {
+        final String prefix = packageName + "/";
+        synchronized (memoryCache) {
+            generation++;
+            for (String key : memoryCache.snapshot().keySet()) {
+                if (key.startsWith(prefix)) {
+                    memoryCache.remove(key);
+                }
+            }
+        }
+        loaderHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                File[] files = directory.listFiles();
+                if (files == null) {
+                    return;
+                }
+                String filePrefix = packageName + "_";
+                for (File file : files) {
+                    if (file.getName().startsWith(filePrefix)) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+        Log.d(TAG, "Dropped cached icons for " + packageName);
+    }
+
+    private static String getMemoryKey(ResolveInfo resolveInfo) {
+        return resolveInfo.activityInfo.packageName + "/" + resolveInfo.activityInfo.name;
+    }
+
+    /**
+     * @return The cache file for the receiver. Whether it belongs to the
+     *         installed version is checked when reading it.
+     */
+    private File getFile(ResolveInfo resolveInfo) {
+        return new File(directory, resolveInfo.activityInfo.packageName + "_"
+                + Integer.toHexString(resolveInfo.activityInfo.name.hashCode()));
+    }
+
+    private Bitmap toBitmap(Drawable drawable) {
+        if (drawable == null) {
+            return null;
+        }
+        if (drawable instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            if (width <= iconSize && height <= iconSize) {
+                return bitmap;
+            }
+            return Bitmap.createScaledBitmap(bitmap, fit(width, width, height), fit(height, width, height), true);
+        }
+        Bitmap bitmap = Bitmap.createBitmap(iconSize, iconSize, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            // No size of its own, like a color, so it can fill the square
+            drawable.setBounds(0, 0, iconSize, iconSize);
+        } else {
+            // Centered in the square with its aspect ratio kept
+            int scaledWidth = fit(width, width, height);
+            int scaledHeight = fit(height, width, height);
+            int left = (iconSize - scaledWidth) / 2;
+            int top = (iconSize - scaledHeight) / 2;
+            drawable.setBounds(left, top, left + scaledWidth, top + scaledHeight);
+        }
+        drawable.draw(canvas);
+        return bitmap;
+    }
+
+    /**
+     * Scales one side of an icon so its longer side becomes
+     * {@link #iconSize}.
+     */
+    private int fit(int side, int width, int height) {
+        return Math.max(1, Math.round((float) side * iconSize / Math.max(width, height)));
+    }
+
+    private static Entry read(File file, long apkModified) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION || in.readLong() != apkModified) {
+                // Another format, or the app was updated since
+                return null;
+            }
+            String label = in.readUTF();
+            Bitmap icon = in.readBoolean() ? BitmapFactory.decodeStream(in) : null;
+            return new Entry(icon, label);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read cached icon " + file, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void write(File file, long apkModified, Entry entry) {
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(FILE_VERSION);
+            out.writeLong(apkModified);
+            out.writeUTF(entry.getLabel());
+            out.writeBoolean(entry.getIcon() != null);
+            if (entry.getIcon() != null) {
+                entry.getIcon().compress(Bitmap.CompressFormat.PNG, 100, out);
+            }
+            out.flush();
+            written = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to cache icon " + file, e);
+        } finally {
+            closeQuietly(out);
+            if (!written) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing more we can do
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import static com.jameshartig.android.media_router.Constants.TAG;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Process-wide registry of the {@code BroadcastReceiver}s registered for
+ * {@link Intent#ACTION_MEDIA_BUTTON}. The receivers are queried from the
+ * {@code PackageManager} once, and afterwards only the package named by a
+ * package added/removed/replaced/changed broadcast is queried again.
+ *
+ * Callers get an immutable snapshot, so it is safe to hold on to the list
+ * while the registry is updated.
+ *
+ * @author James Hartig
+ */
+public final class ReceiverRegistry {
+
+    private static final int QUERY_FLAGS = PackageManager.GET_INTENT_FILTERS | PackageManager.GET_RESOLVED_FILTER;
+
+    /**
+     * Orders receivers the same way {@code queryBroadcastReceivers} does,
+     * highest priority first. Used after merging in a re-queried package.
+     */
+    private static final Comparator<ResolveInfo> PRIORITY_ORDER = new Comparator<ResolveInfo>() {
+
+        @Override
+        public int compare(ResolveInfo lhs, ResolveInfo rhs) {
+            return lhs.priority > rhs.priority ? -1 : (lhs.priority == rhs.priority ? 0 : 1);
+        }
+    };
+
+    private static ReceiverRegistry instance;
+
+    /**
+     * Interned receiver ids by receiver key, see {@link #getReceiverId(String)}.
+     */
+    private static final Map<String, Integer> receiverIds = new HashMap<String, Integer>();
+
+    private final PackageManager packageManager;
+
+    /**
+     * Current snapshot, null until first requested.
+     */
+    private volatile Snapshot snapshot;
+
+    /**
+     * The visible receivers for the current snapshot and hidden apps, rebuilt
+     * only when either changes.
+     */
+    private volatile VisibleReceivers visibleReceivers;
+
+    /**
+     * Receivers along with their interned ids.
+     */
+    private static final class Snapshot {
+        final List<ResolveInfo> receivers;
+        final int[] ids;
+
+        Snapshot(List<ResolveInfo> receivers) {
+            this.receivers = Collections.unmodifiableList(receivers);
+            ids = new int[receivers.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = getReceiverId(getReceiverKey(receivers.get(i)));
+            }
+        }
+    }
+
+    private static final class VisibleReceivers {
+        final Snapshot snapshot;
+        final HiddenReceiverIndex.Hidden hidden;
+        final List<ResolveInfo> receivers;
+
+        VisibleReceivers(Snapshot snapshot, HiddenReceiverIndex.Hidden hidden) {
+            this.snapshot = snapshot;
+            this.hidden = hidden;
+            List<ResolveInfo> visible = new ArrayList<ResolveInfo>(snapshot.receivers.size());
+            for (int i = 0; i < snapshot.ids.length; i++) {
+                if (!hidden.contains(snapshot.ids[i])) {
+                    visible.add(snapshot.receivers.get(i));
+                }
+            }
+            receivers = Collections.unmodifiableList(visible);
+        }
+    }
+
+    /**
+     * Keeps the registry in sync with installs, uninstalls, upgrades and
+     * component enable/disable. Only registered while our process is alive,
+     * which is exactly as long as the cached snapshot is.
+     */
+    private final BroadcastReceiver packageChangeReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            if (packageName != null) {
+                onPackageChanged(packageName);
+            }
+        }
+    };
+
+    private ReceiverRegistry(Context context) {
+        packageManager = context.getPackageManager();
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(packageChangeReceiver, packageFilter);
+    }
+
+    /**
+     * Returns the registry for this process, creating it if needed.
+     *
+     * @param context
+     *            Any context, only the application context is retained.
+     * @return The registry.
+     */
+    public static synchronized ReceiverRegistry getInstance(Context context) {
+        if (instance == null) {
+            instance = new ReceiverRegistry(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Forgets the registry so the receivers are queried again. For tests,
+     * which run in one process.
+     */
+    static synchronized void resetForTest() {
+        instance = null;
+    }
+
+    /**
+     * The key the user's hidden apps are stored by. I have to be more exact
+     * than just application name because the two versions (old and new) of
+     * google music have the same classnames for their intent receivers. I
+     * need to know where their apks live to be able to differentiate.
+     *
+     * @param resolveInfo
+     *            The receiver.
+     * @return The receiver's key.
+     */
+    public static String getReceiverKey(ResolveInfo resolveInfo) {
+        return resolveInfo.activityInfo.applicationInfo.sourceDir + resolveInfo.activityInfo.name;
+    }
+
+    /**
+     * Interns a receiver key as a small int, stable for the life of the
+     * process. Ids are handed out densely starting at 0 so they can index a
+     * bit set.
+     *
+     * @param receiverKey
+     *            From {@link #getReceiverKey(ResolveInfo)}.
+     * @return The id.
+     */
+    public static int getReceiverId(String receiverKey) {
+        synchronized (receiverIds) {
+            Integer id = receiverIds.get(receiverKey);
+            if (id == null) {
+                id = receiverIds.size();
+                receiverIds.put(receiverKey, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Gets the media button receivers, querying the {@code PackageManager}
+     * only the first time this is called in the process.
+     *
+     * @return An unmodifiable list of {@code ResolveInfo}, ordered by
+     *         priority.
+     */
+    public List<ResolveInfo> getReceivers() {
+        return getSnapshot().receivers;
+    }
+
+    /**
+     * Gets the media button receivers the user hasn't hidden. The list is
+     * only rebuilt when the receivers or the hidden apps change, so this is
+     * normally just a couple of field reads.
+     *
+     * @param hiddenReceiverIndex
+     *            The user's hidden apps.
+     * @return An unmodifiable list of {@code ResolveInfo}, ordered by
+     *         priority.
+     */
+    public List<ResolveInfo> getVisibleReceivers(HiddenReceiverIndex hiddenReceiverIndex) {
+        Snapshot current = getSnapshot();
+        HiddenReceiverIndex.Hidden hidden = hiddenReceiverIndex.getHidden();
+        VisibleReceivers visible = visibleReceivers;
+        if (visible == null || visible.snapshot != current || visible.hidden != hidden) {
+            visible = new VisibleReceivers(current, hidden);
+            visibleReceivers = visible;
+        }
+        return visible.receivers;
+    }
+
+    /**
+     * Checks whether a receiver is still installed and enabled, from the
+     * snapshot rather than the {@code PackageManager}.
+     *
+     * @param target
+     *            The receiver.
+     * @return Whether it is registered for media buttons.
+     */
+    public boolean contains(ComponentName target) {
+        List<ResolveInfo> receivers = getSnapshot().receivers;
+        for (int i = 0, size = receivers.size(); i < size; i++) {
+            ActivityInfo activityInfo = receivers.get(i).activityInfo;
+            if (target.getClassName().equals(activityInfo.name)
+                    && target.getPackageName().equals(activityInfo.packageName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = new Snapshot(new ArrayList<ResolveInfo>(query(null)));
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Re-queries the receivers of a single package and swaps in a new
+     * snapshot with that package's entries replaced.
+     *
+     * @param packageName
+     *            The package that was added, removed, replaced or changed.
+     */
+    synchronized void onPackageChanged(String packageName) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            // Nothing cached yet, the first getReceivers will see the change
+            return;
+        }
+        List<ResolveInfo> updated = new ArrayList<ResolveInfo>(current.receivers.size() + 1);
+        for (ResolveInfo resolveInfo : current.receivers) {
+            if (!packageName.equals(resolveInfo.activityInfo.packageName)) {
+                updated.add(resolveInfo);
+            }
+        }
+        updated.addAll(query(packageName));
+        Collections.sort(updated, PRIORITY_ORDER);
+        snapshot = new Snapshot(updated);
+        Log.d(TAG, "Receiver registry updated for " + packageName + ", " + updated.size() + " receivers");
+    }
+
+    private List<ResolveInfo> query(String packageName) {
+        Intent mediaButtonIntent = new Intent(Intent.ACTION_MEDIA_BUTTON);
+        if (packageName != null) {
+            mediaButtonIntent.setPackage(packageName);
+        }
+        List<ResolveInfo> result = packageManager.queryBroadcastReceivers(mediaButtonIntent, QUERY_FLAGS);
+        return result != null ? result : Collections.<ResolveInfo> emptyList();
+    }
+}
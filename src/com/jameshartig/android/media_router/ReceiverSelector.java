@@ -18,10 +18,6 @@ package com.jameshartig.android.media_router;
 import static com.jameshartig.android.media_router.Constants.TAG;
 
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 import android.app.AlertDialog;
 import android.app.ListActivity;
@@ -32,12 +28,15 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.ResolveInfo;
+import android.graphics.Color;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
+import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -47,6 +46,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 import android.widget.BaseAdapter;
 import android.widget.ImageView;
@@ -54,6 +54,8 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.jameshartig.android.media_router.receivers.MediaButtonReceiver;
+import com.jameshartig.android.media_router.routing.RoutingStats;
+import com.jameshartig.android.media_router.routing.RoutingStats.Stage;
 
 /**
  * Allows the user to choose which media receiver will handle a media button
@@ -65,20 +67,6 @@ import com.jameshartig.android.media_router.receivers.MediaButtonReceiver;
  */
 public class ReceiverSelector extends ListActivity implements AudioManager.OnAudioFocusChangeListener {
 
-    private class SweepBroadcastReceiver extends BroadcastReceiver {
-        String name;
-
-        public SweepBroadcastReceiver(String name) {
-            this.name = name;
-        }
-
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            /* COMMENTED OUT FOR MARKET RELEASE Log.i(TAG, "Media Button Selector: After running broadcast receiver " + name + "have resultcode: "
-                    + getResultCode() + " result Data: " + getResultData()); */
-        }
-    }
-
     /**
      * Number of seconds to wait before timing out and just cancelling.
      */
@@ -93,13 +81,34 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
 
     /**
      * The {@code BroadcastReceiver}'s registered in the system for *
-     * {@link Intent.ACTION_MEDIA_BUTTON}.
+     * {@link Intent.ACTION_MEDIA_BUTTON}, from the prepared
+     * {@link SelectorModel}.
      */
-    private List<ResolveInfo> receivers;
+    private List<SelectorModel.Item> receivers;
 
     /** The intent filter for registering our local {@code BroadcastReceiver}. */
     private IntentFilter uiIntentFilter;
 
+    /**
+     * Gets the media button presses {@link MediaButtonReceiver} passes on
+     * while we're open, through the {@code LocalBroadcastManager}.
+     */
+    private final BroadcastReceiver uiReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            KeyEvent keyEvent = (KeyEvent) intent.getParcelableExtra(Intent.EXTRA_KEY_EVENT);
+            if (keyEvent != null && keyEvent.getAction() == KeyEvent.ACTION_UP) {
+                onMediaKey(Utils.getAdjustedKeyCode(keyEvent));
+            }
+        }
+    };
+
+    /**
+     * The row media keys act on, or -1 for none.
+     */
+    private int selectedPosition = -1;
+
     /**
      * Whether we've done the start up announcement to the user using the text
      * to speech. Tracked so we don't repeat ourselves on orientation change.
@@ -112,16 +121,26 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
     private boolean audioFocus;
 
     /**
-     * ScheduledExecutorService used to time out and close activity if the user
-     * doesn't make a selection within certain amount of time. Resets on user
-     * interaction.
+     * Times out and closes the activity if the user doesn't make a selection
+     * within certain amount of time. Resets on user interaction. Runs on the
+     * main thread, so resetting it doesn't need any threads or allocations.
      */
-    private ScheduledExecutorService timeoutExecutor;
+    private DeadlineTimer timeoutTimer;
 
     /**
-     * ScheduledFuture of timeout.
+     * The timeout deadline carried over from before a configuration change,
+     * or 0.
      */
-    private ScheduledFuture<?> timeoutScheduledFuture;
+    private long retainedTimeoutDeadline;
+
+    /** Saved state key for {@link #announced}. */
+    private static final String STATE_ANNOUNCED = "announced";
+
+    /**
+     * Saved state key for the timeout deadline, in
+     * {@code SystemClock.uptimeMillis()}.
+     */
+    private static final String STATE_TIMEOUT_DEADLINE = "timeoutDeadline";
 
     /** The cancel button. */
     private View cancelButton;
@@ -132,6 +151,12 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
     /** The header */
     private TextView header;
 
+    /** Icons and labels for the list rows. */
+    private ReceiverIconCache iconCache;
+
+    /** Redraws the list once a row's icon and label are loaded. */
+    private ReceiverIconCache.OnLoadedListener iconLoadedListener;
+
     /** Used to figure out if music is playing and handle audio focus. */
     private AudioManager audioManager;
 
@@ -147,9 +172,26 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
                              | WindowManager.LayoutParams.FLAG_TURN_SCREEN_ON);
         setContentView(R.layout.media_button_list);
 
-        uiIntentFilter = new IntentFilter(Intent.ACTION_MEDIA_BUTTON);
-        uiIntentFilter.addAction(Constants.INTENT_ACTION_VIEW_MEDIA_LIST_KEYPRESS);
-        uiIntentFilter.setPriority(Integer.MAX_VALUE);
+        // Time from the press that launched us to our first frame, see
+        // MediaButtonMonitorService#dump. Not on recreation, the launch was
+        // long ago.
+        if (savedInstanceState == null) {
+            final long launchNanos = getIntent().getLongExtra(Constants.EXTRA_SELECTOR_LAUNCH_NANOS, System.nanoTime());
+            final ViewTreeObserver observer = getListView().getViewTreeObserver();
+            observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+
+                @Override
+                public boolean onPreDraw() {
+                    if (observer.isAlive()) {
+                        observer.removeOnPreDrawListener(this);
+                    }
+                    RoutingStats.recordStage(Stage.SELECTOR_FIRST_FRAME, launchNanos);
+                    return true;
+                }
+            });
+        }
+
+        uiIntentFilter = new IntentFilter(Constants.INTENT_ACTION_VIEW_MEDIA_LIST_KEYPRESS);
 
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
 
@@ -159,29 +201,24 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
         // http://code.google.com/p/android/issues/detail?id=2096
         timeoutTime = Integer.valueOf(preferences.getString(Constants.TIMEOUT_KEY, "0"));
 
-        receivers = Utils.getMediaReceivers(getPackageManager(), true, getApplicationContext());
+        // Already filtered, sorted by use and without our own receiver
+        receivers = SelectorModel.getInstance(this).getItems();
 
-        Boolean lastAnnounced = (Boolean) getLastNonConfigurationInstance();
-        if (lastAnnounced != null) {
-            announced = lastAnnounced;
+        if (savedInstanceState != null) {
+            announced = savedInstanceState.getBoolean(STATE_ANNOUNCED);
+            retainedTimeoutDeadline = savedInstanceState.getLong(STATE_TIMEOUT_DEADLINE);
         }
 
-        // Remove our app's receiver from the list so users can't select it.
-        // NOTE: Our local receiver isn't registered at this point so we don't
-        // have to remove it.
-        if (receivers != null) {
-            for (int i = 0; i < receivers.size(); i++) {
-                if (MediaButtonReceiver.class.getName().equals(receivers.get(i).activityInfo.name)) {
-                    receivers.remove(i);
-                    break;
-                }
+        timeoutTimer = new DeadlineTimer(new Handler(), new Runnable() {
+
+            @Override
+            public void run() {
+                onTimeout();
             }
-        }
-        // TODO MAYBE sort receivers by MRU so user doesn't have to skip as many
-        // apps,
-        // right now apps are sorted by priority (not set by the user, set by
-        // the app authors.. )
-        setListAdapter(new BaseAdapter() {
+        });
+
+        iconCache = ReceiverIconCache.getInstance(this);
+        final BaseAdapter adapter = new BaseAdapter() {
 
             @Override
             public int getCount() {
@@ -190,7 +227,7 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
 
             @Override
             public Object getItem(int position) {
-                return receivers.get(position);
+                return receivers.get(position).getResolveInfo();
             }
 
             @Override
@@ -207,17 +244,38 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
                     view = vi.inflate(R.layout.media_receiver_view, null);
                 }
 
-                ResolveInfo resolveInfo = receivers.get(position);
+                SelectorModel.Item item = receivers.get(position);
+                ResolveInfo resolveInfo = item.getResolveInfo();
 
+                // Icons and labels are normally loaded with the model. If not
+                // they're decoded off the main thread, show a placeholder
+                // until they're ready
                 ImageView imageView = (ImageView) view.findViewById(R.id.receiverAppImage);
-                imageView.setImageDrawable(resolveInfo.loadIcon(getPackageManager()));
-
                 TextView textView = (TextView) view.findViewById(R.id.receiverAppName);
-                textView.setText(Utils.getAppName(resolveInfo, getPackageManager()));
+                ReceiverIconCache.Entry entry = item.getEntry();
+                if (entry == null) {
+                    entry = iconCache.get(resolveInfo, iconLoadedListener);
+                }
+                view.setBackgroundColor(position == selectedPosition ? getResources().getColor(
+                        R.color.selected_receiver) : Color.TRANSPARENT);
+                if (entry != null && entry.getIcon() != null) {
+                    imageView.setImageBitmap(entry.getIcon());
+                } else {
+                    imageView.setImageDrawable(iconCache.getPlaceholderIcon());
+                }
+                textView.setText(entry != null ? entry.getLabel() : resolveInfo.activityInfo.packageName);
                 return view;
 
             }
-        });
+        };
+        iconLoadedListener = new ReceiverIconCache.OnLoadedListener() {
+
+            @Override
+            public void onLoaded(ResolveInfo resolveInfo, ReceiverIconCache.Entry entry) {
+                adapter.notifyDataSetChanged();
+            }
+        };
+        setListAdapter(adapter);
         header = (TextView) findViewById(R.id.dialogHeader);
         cancelButton = findViewById(R.id.cancelButton);
         cancelButton.setOnClickListener(new OnClickListener() {
@@ -266,7 +324,11 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
     protected void onPause() {
         super.onPause();
         Log.d(TAG, "Media Button Selector: onPause");
-        timeoutExecutor.shutdownNow();
+        SelectorVisibility.onPaused();
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(uiReceiver);
+        // We're no longer on top, don't let a cached snapshot say otherwise
+        RunningStateCache.invalidate();
+        timeoutTimer.cancel();
         audioManager.abandonAudioFocus(this);
     }
 
@@ -290,6 +352,9 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
     protected void onResume() {
         super.onResume();
         Log.d(TAG, "Media Button Selector: onResume");
+        SelectorVisibility.onResumed();
+        LocalBroadcastManager.getInstance(this).registerReceiver(uiReceiver, uiIntentFilter);
+        RunningStateCache.invalidate();
 
         requestAudioFocus();
         // TODO Clean this up, figure out which things need to be set on the list view and which don't.
@@ -303,11 +368,17 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
             getListView().setFocusable(true);
             getListView().setFocusableInTouchMode(true);
 
+            // Media keys start on the first, most used, receiver so pressing
+            // play again picks it
+            if (selectedPosition < 0 && !receivers.isEmpty()) {
+                setSelectedPosition(0);
+            }
+
             String action = "";
             int adjustedKeyCode = Utils.getAdjustedKeyCode(trappedKeyEvent);
             switch (adjustedKeyCode) {
                 case KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE:
-                    action = getString(audioManager.isMusicActive() ? R.string.pausePlay : R.string.play);
+                    action = getString(MusicActivityTracker.isMusicActive(this) ? R.string.pausePlay : R.string.play);
                 break;
                 case KeyEvent.KEYCODE_MEDIA_NEXT:
                     action = getString(R.string.next);
@@ -340,16 +411,23 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
 
         }
 
-        timeoutExecutor = Executors.newSingleThreadScheduledExecutor();
-        resetTimeout();
+        if (retainedTimeoutDeadline > 0 && timeoutTime != 0) {
+            // Only what was left before the configuration change
+            timeoutTimer.setDeadline(retainedTimeoutDeadline);
+            retainedTimeoutDeadline = 0;
+        } else {
+            resetTimeout();
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public Object onRetainNonConfigurationInstance() {
-        return announced;
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_ANNOUNCED, announced);
+        outState.putLong(STATE_TIMEOUT_DEADLINE, timeoutTimer.getDeadline());
     }
 
     /**
@@ -380,26 +458,10 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
      * Resets the timeout before the application is automatically dismissed.
      */
     private void resetTimeout() {
-        if (timeoutScheduledFuture != null) {
-            timeoutScheduledFuture.cancel(false);
-        }
-
         if (timeoutTime == 0) {
             return;
         }
-        timeoutScheduledFuture = timeoutExecutor.schedule(new Runnable() {
-            @Override
-            public void run() {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        onTimeout();
-                    }
-                });
-
-            }
-        }, timeoutTime, TimeUnit.SECONDS);
-
+        timeoutTimer.reset(timeoutTime * 1000L);
     }
 
     /**
@@ -410,11 +472,57 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
         super.onUserInteraction();
 
         // Reset timeout before we finish
-        if (!timeoutExecutor.isShutdown()) {
+        if (timeoutTimer.isRunning()) {
             resetTimeout();
         }
     }
 
+    /**
+     * Handles a media key pressed while we're open. Next and previous move
+     * the selection, play/pause picks the selected receiver and stop closes
+     * us.
+     * 
+     * @param keyCode
+     *            The adjusted key code.
+     */
+    private void onMediaKey(int keyCode) {
+        if (trappedKeyEvent == null || receivers.isEmpty()) {
+            return;
+        }
+        resetTimeout();
+        switch (keyCode) {
+            case KeyEvent.KEYCODE_MEDIA_NEXT:
+            case KeyEvent.KEYCODE_MEDIA_FAST_FORWARD:
+                setSelectedPosition((selectedPosition + 1) % receivers.size());
+            break;
+            case KeyEvent.KEYCODE_MEDIA_PREVIOUS:
+            case KeyEvent.KEYCODE_MEDIA_REWIND:
+                setSelectedPosition(selectedPosition <= 0 ? receivers.size() - 1 : selectedPosition - 1);
+            break;
+            case KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE:
+            case KeyEvent.KEYCODE_HEADSETHOOK:
+                if (selectedPosition >= 0) {
+                    forwardToMediaReceiver(selectedPosition);
+                }
+            break;
+            case KeyEvent.KEYCODE_MEDIA_STOP:
+                finish();
+            break;
+        }
+    }
+
+    /**
+     * Highlights the row media keys act on and scrolls to it.
+     * 
+     * @param position
+     *            The row, must be in bounds.
+     */
+    private void setSelectedPosition(int position) {
+        selectedPosition = position;
+        getListView().setSelection(position);
+        ((BaseAdapter) getListAdapter()).notifyDataSetChanged();
+    }
+
     /**
      * Forwards the {@code #trappedKeyEvent} to the receiver at specified
      * position.
@@ -423,15 +531,19 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
      *            The index of the receiver to select. Must be in bounds.
      */
     private void forwardToMediaReceiver(int position) {
-        ResolveInfo resolveInfo = receivers.get(position);
+        ResolveInfo resolveInfo = receivers.get(position).getResolveInfo();
         if (resolveInfo != null) {
             if (trappedKeyEvent != null) {
 
                 ComponentName selectedReceiver = new ComponentName(resolveInfo.activityInfo.packageName,
                         resolveInfo.activityInfo.name);
-                Utils.forwardKeyCodeToComponent(this, selectedReceiver, true,
-                        Utils.getAdjustedKeyCode(trappedKeyEvent),
-                        new SweepBroadcastReceiver(selectedReceiver.toString()));
+                int keyCode = Utils.getAdjustedKeyCode(trappedKeyEvent);
+                // The user picked it, so there's nothing to fall back to
+                KeyForwarder.getInstance(this).forward(this, selectedReceiver, true, keyCode, trappedKeyEvent,
+                        DeliveryTracker.track(this, selectedReceiver, keyCode, null));
+                RoutingStateStore.getInstance(this).recordForward(selectedReceiver.flattenToString());
+                // Use counts changed, resort for next time
+                SelectorModel.getInstance(this).prepare();
                 finish();
             }
         }
@@ -444,8 +556,7 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
      */
     private void ignore() {
         Log.d(TAG, "Ignoring future selectors");
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this.getApplicationContext());
-        preferences.edit().putString(Constants.LAST_MEDIA_BUTTON_RECEIVER, Constants.IGNORE_NEW_RECEIVER).commit();
+        RoutingStateStore.getInstance(this).ignoreNewReceivers();
         finish();
     }
 
@@ -469,7 +580,9 @@ public class ReceiverSelector extends ListActivity implements AudioManager.OnAud
 
     @Override
     public void onAudioFocusChange(int focusChange) {
-        // TODO Auto-generated method stub
-
+        if (focusChange <= 0) {
+            // Someone else started playing something
+            MusicActivityTracker.invalidate();
+        }
     }
 }
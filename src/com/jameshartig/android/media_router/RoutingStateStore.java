@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import static com.jameshartig.android.media_router.Constants.TAG;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.jameshartig.android.media_router.routing.RoutingStateFile;
+
+/**
+ * Routing state that changes as media buttons are pressed: the receiver we
+ * last forwarded to or whether the user asked to ignore new receivers, plus
+ * how often and how recently each receiver was used.
+ *
+ * The in-memory copy is authoritative, so reads never touch disk, and writes
+ * that don't change anything are dropped. The state lives in a
+ * {@link RoutingStateFile}, a small memory-mapped binary file that a cold
+ * started process can read without parsing any XML. Writes land in the page
+ * cache immediately, so they survive the process being killed, and are
+ * flushed to storage in batches on a background thread.
+ *
+ * If the file can't be mapped, the state falls back to a small dedicated
+ * preferences file written with {@code SharedPreferences.Editor#apply()}.
+ * Android waits for pending applies before it lets a component finish, so
+ * that is durable too. A last receiver name too long for the state file is
+ * kept in the same preferences file.
+ *
+ * @author James Hartig
+ */
+public final class RoutingStateStore {
+
+    private static final String STATE_FILE_NAME = "routing_state.bin";
+    private static final String PREFERENCES_NAME = "routing_state";
+
+    /**
+     * How long to wait for more writes before flushing the state file to
+     * storage.
+     */
+    private static final long FLUSH_DELAY_MILLIS = 1000;
+
+    private static RoutingStateStore instance;
+
+    /**
+     * The state file, or null if it couldn't be opened.
+     */
+    private final RoutingStateFile stateFile;
+
+    /**
+     * Fallback storage when there's no state file.
+     */
+    private final SharedPreferences preferences;
+
+    private Handler flushHandler;
+
+    private boolean flushPending;
+
+    private final Runnable flushRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            synchronized (RoutingStateStore.this) {
+                flushPending = false;
+            }
+            stateFile.force();
+        }
+    };
+
+    /**
+     * The flattened component name of the last receiver, or
+     * {@link Constants#IGNORE_NEW_RECEIVER}, or null.
+     */
+    private volatile String lastMediaButtonReceiver;
+
+    private RoutingStateStore(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+        RoutingStateFile file = null;
+        try {
+            file = RoutingStateFile.open(new File(context.getFilesDir(), STATE_FILE_NAME));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open routing state file, falling back to preferences", e);
+        }
+        stateFile = file;
+
+        if (stateFile != null && stateFile.isLoaded()) {
+            if (stateFile.isIgnoringNewReceivers()) {
+                lastMediaButtonReceiver = Constants.IGNORE_NEW_RECEIVER;
+            } else if (stateFile.isLastReceiverTooLong()) {
+                lastMediaButtonReceiver = preferences.getString(Constants.LAST_MEDIA_BUTTON_RECEIVER, null);
+            } else {
+                lastMediaButtonReceiver = stateFile.getLastReceiver();
+            }
+            return;
+        }
+
+        // Carry over the value older versions kept in preferences
+        String legacy = preferences.getString(Constants.LAST_MEDIA_BUTTON_RECEIVER, null);
+        SharedPreferences defaultPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        if (legacy == null) {
+            legacy = defaultPreferences.getString(Constants.LAST_MEDIA_BUTTON_RECEIVER, null);
+        }
+        if (legacy != null) {
+            write(legacy);
+            if (defaultPreferences.contains(Constants.LAST_MEDIA_BUTTON_RECEIVER)) {
+                defaultPreferences.edit().remove(Constants.LAST_MEDIA_BUTTON_RECEIVER).apply();
+            }
+        }
+    }
+
+    /**
+     * Returns the store for this process, loading it if needed.
+     *
+     * @param context
+     *            Any context, only the application context is retained.
+     * @return The store.
+     */
+    public static synchronized RoutingStateStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new RoutingStateStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the flush thread, dropping a pending flush, and forgets the store
+     * so the next {@link #getInstance(Context)} loads it again. For tests,
+     * which run in one process.
+     */
+    static synchronized void resetForTest() {
+        if (instance == null) {
+            return;
+        }
+        synchronized (instance) {
+            if (instance.flushHandler != null) {
+                Utils.quitAndJoin(instance.flushHandler);
+            }
+        }
+        instance = null;
+    }
+
+    /**
+     * @return The flattened component name of the receiver we last forwarded
+     *         to, or null if there isn't one or new receivers are ignored.
+     */
+    public String getLastReceiver() {
+        String value = lastMediaButtonReceiver;
+        return Constants.IGNORE_NEW_RECEIVER.equals(value) ? null : value;
+    }
+
+    /**
+     * @return Whether the user asked to never be prompted for a receiver.
+     */
+    public boolean isIgnoringNewReceivers() {
+        return Constants.IGNORE_NEW_RECEIVER.equals(lastMediaButtonReceiver);
+    }
+
+    /**
+     * Stores the receiver we last forwarded to. Clears the ignore flag.
+     *
+     * @param flattenedComponentName
+     *            From {@code ComponentName#flattenToString()}.
+     */
+    public void setLastReceiver(String flattenedComponentName) {
+        write(flattenedComponentName);
+    }
+
+    /**
+     * Stops the selector from being shown. Clears the last receiver.
+     */
+    public void ignoreNewReceivers() {
+        write(Constants.IGNORE_NEW_RECEIVER);
+    }
+
+    /**
+     * Counts a key forwarded to a receiver, for sorting receivers by use.
+     * Only kept when the state file is available.
+     *
+     * @param flattenedComponentName
+     *            From {@code ComponentName#flattenToString()}.
+     */
+    public synchronized void recordForward(String flattenedComponentName) {
+        if (stateFile == null) {
+            return;
+        }
+        stateFile.recordUse(flattenedComponentName, System.currentTimeMillis());
+        scheduleFlush();
+    }
+
+    /**
+     * @return How many times keys were forwarded to the receiver, 0 if
+     *         unknown.
+     */
+    public int getUseCount(String flattenedComponentName) {
+        return stateFile != null ? stateFile.getUseCount(flattenedComponentName) : 0;
+    }
+
+    private synchronized void write(String value) {
+        if (value == null ? lastMediaButtonReceiver == null : value.equals(lastMediaButtonReceiver)) {
+            return;
+        }
+        lastMediaButtonReceiver = value;
+        if (stateFile == null) {
+            preferences.edit().putString(Constants.LAST_MEDIA_BUTTON_RECEIVER, value).apply();
+            return;
+        }
+        if (Constants.IGNORE_NEW_RECEIVER.equals(value)) {
+            stateFile.ignoreNewReceivers();
+        } else {
+            if (value != null && !RoutingStateFile.canStore(value)) {
+                Log.w(TAG, "Last receiver " + value + " is too long for the state file, keeping it in preferences");
+                preferences.edit().putString(Constants.LAST_MEDIA_BUTTON_RECEIVER, value).apply();
+            }
+            stateFile.setLastReceiver(value);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Flushes the state file to storage soon, unless a flush is already
+     * pending. Must hold the lock.
+     */
+    private void scheduleFlush() {
+        if (flushPending) {
+            return;
+        }
+        if (flushHandler == null) {
+            HandlerThread thread = new HandlerThread("RoutingStateFlush", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            flushHandler = new Handler(thread.getLooper());
+        }
+        flushPending = true;
+        flushHandler.postDelayed(flushRunnable, FLUSH_DELAY_MILLIS);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningServiceInfo;
+import android.app.ActivityManager.RunningTaskInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.SystemClock;
+
+/**
+ * Short lived cache of what is running on the device, used when routing a
+ * media button press. Asking the {@code ActivityManager} for every running
+ * service is expensive on busy devices, so a snapshot is shared by the down
+ * and up events of one press and by presses that arrive within
+ * {@link #MAX_AGE_MILLIS} of each other.
+ *
+ * @author James Hartig
+ */
+public final class RunningStateCache {
+
+    /**
+     * How long a snapshot can be reused by a different press.
+     */
+    public static final long MAX_AGE_MILLIS = 1000;
+
+    private static Snapshot snapshot;
+
+    /**
+     * Prevent instantiation.
+     */
+    private RunningStateCache() {
+        // Intentionally blank
+    }
+
+    /**
+     * Gets a snapshot of the running services and top task, reusing the
+     * cached one if it was taken for the same press or recently enough.
+     *
+     * @param context
+     *            The context.
+     * @param downTime
+     *            The down time of the key event being routed, shared by the
+     *            down and up events of a press.
+     * @return The snapshot.
+     */
+    public static synchronized Snapshot get(Context context, long downTime) {
+        long now = SystemClock.uptimeMillis();
+        if (snapshot == null
+                || (snapshot.downTime != downTime && now - snapshot.takenAt > MAX_AGE_MILLIS)) {
+            ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            snapshot = new Snapshot(activityManager.getRunningServices(Integer.MAX_VALUE),
+                    activityManager.getRunningTasks(1), now, downTime);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drops the cached snapshot. Called whenever we know what is running or on
+     * top has changed, like when the selector is shown or hidden.
+     */
+    public static synchronized void invalidate() {
+        snapshot = null;
+    }
+
+    /**
+     * Immutable index of the running state by package name.
+     */
+    public static final class Snapshot {
+
+        private final Set<String> foregroundServicePackages;
+        private final String topPackageName;
+        private final long takenAt;
+        private final long downTime;
+
+        Snapshot(List<RunningServiceInfo> runningServices, List<RunningTaskInfo> runningTasks, long takenAt,
+                long downTime) {
+            Set<String> packages = new LinkedHashSet<String>();
+            if (runningServices != null) {
+                for (RunningServiceInfo runningService : runningServices) {
+                    if (runningService.started && runningService.foreground) {
+                        packages.add(runningService.service.getPackageName());
+                    }
+                }
+            }
+            foregroundServicePackages = Collections.unmodifiableSet(packages);
+
+            ComponentName topActivity = null;
+            if (runningTasks != null && runningTasks.size() > 0) {
+                topActivity = runningTasks.get(0).topActivity;
+            }
+            topPackageName = topActivity != null ? topActivity.getPackageName() : null;
+            this.takenAt = takenAt;
+            this.downTime = downTime;
+        }
+
+        /**
+         * @return The packages with a started foreground service, in the
+         *         order the {@code ActivityManager} reported them.
+         */
+        public Set<String> getForegroundServicePackages() {
+            return foregroundServicePackages;
+        }
+
+        /**
+         * @return The package of the top activity, or null if there are no
+         *         tasks.
+         */
+        public String getTopPackageName() {
+            return topPackageName;
+        }
+    }
+}
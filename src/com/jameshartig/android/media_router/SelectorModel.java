@@ -0,0 +1,237 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import static com.jameshartig.android.media_router.Constants.TAG;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.jameshartig.android.media_router.receivers.MediaButtonReceiver;
+
+/**
+ * The rows of the selector, prepared ahead of time so the selector can show
+ * its list without any {@code PackageManager} work. The model is the
+ * visible receivers minus our own, most used first, with their icons and
+ * labels already loaded.
+ *
+ * The model is rebuilt on a background thread whenever it's asked to
+ * {@link #prepare()} and the receivers, hidden apps or last receiver have
+ * changed since it was last built. {@code MediaButtonReceiver} does that on
+ * the down event of a press that will prompt, so the model is ready by the
+ * time the up event starts the selector. Forwarding to the same player again
+ * doesn't rebuild it, so the order by use can lag behind until another
+ * player becomes the last receiver.
+ *
+ * @author James Hartig
+ */
+public final class SelectorModel {
+
+    /**
+     * A row of the selector.
+     */
+    public static final class Item {
+        private final ResolveInfo resolveInfo;
+        private final ReceiverIconCache.Entry entry;
+
+        Item(ResolveInfo resolveInfo, ReceiverIconCache.Entry entry) {
+            this.resolveInfo = resolveInfo;
+            this.entry = entry;
+        }
+
+        public ResolveInfo getResolveInfo() {
+            return resolveInfo;
+        }
+
+        /**
+         * @return The icon and label, or null if they weren't loaded when the
+         *         model was built.
+         */
+        public ReceiverIconCache.Entry getEntry() {
+            return entry;
+        }
+    }
+
+    /**
+     * What a model was built from, to tell whether it's still current.
+     */
+    private static final class Model {
+        final List<ResolveInfo> source;
+        final String lastReceiver;
+        final List<Item> items;
+
+        Model(List<ResolveInfo> source, String lastReceiver, List<Item> items) {
+            this.source = source;
+            this.lastReceiver = lastReceiver;
+            this.items = items;
+        }
+    }
+
+    private static SelectorModel instance;
+
+    private final Context context;
+
+    private final Handler handler;
+
+    private volatile Model model;
+
+    private boolean buildPending;
+
+    private final Runnable buildRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            synchronized (SelectorModel.this) {
+                buildPending = false;
+            }
+            if (!isCurrent(model)) {
+                long start = System.nanoTime();
+                model = build(true);
+                Log.d(TAG, "Selector model built in " + (System.nanoTime() - start) / 1000 + "us");
+            }
+        }
+    };
+
+    private SelectorModel(Context context) {
+        this.context = context;
+        HandlerThread thread = new HandlerThread("SelectorModel", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Returns the model for this process, creating it if needed.
+     *
+     * @param context
+     *            Any context, only the application context is retained.
+     * @return The model.
+     */
+    public static synchronized SelectorModel getInstance(Context context) {
+        if (instance == null) {
+            instance = new SelectorModel(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the build thread and forgets the model. For tests, which run in
+     * one process.
+     */
+    static synchronized void resetForTest() {
+        if (instance != null) {
+            Utils.quitAndJoin(instance.handler);
+            instance = null;
+        }
+    }
+
+    /**
+     * Rebuilds the model in the background if it isn't current. Cheap to call
+     * when nothing changed.
+     */
+    public void prepare() {
+        // Nothing to compare against yet, so don't touch the registry here
+        Model current = model;
+        if (current != null && isCurrent(current)) {
+            return;
+        }
+        synchronized (this) {
+            if (buildPending) {
+                return;
+            }
+            buildPending = true;
+        }
+        handler.post(buildRunnable);
+    }
+
+    /**
+     * Gets the selector rows. If the prepared model is stale this builds the
+     * rows right away, but without loading any icons or labels that aren't
+     * already in memory.
+     *
+     * @return An unmodifiable list of rows.
+     */
+    public List<Item> getItems() {
+        Model current = model;
+        if (isCurrent(current)) {
+            return current.items;
+        }
+        Log.d(TAG, "Selector model is stale, building without icons");
+        prepare();
+        return build(false).items;
+    }
+
+    private boolean isCurrent(Model current) {
+        if (current == null || current.source != Utils.getMediaReceivers(context, true)) {
+            return false;
+        }
+        String lastReceiver = RoutingStateStore.getInstance(context).getLastReceiver();
+        return lastReceiver == null ? current.lastReceiver == null : lastReceiver.equals(current.lastReceiver);
+    }
+
+    private Model build(boolean loadEntries) {
+        final RoutingStateStore stateStore = RoutingStateStore.getInstance(context);
+        String lastReceiver = stateStore.getLastReceiver();
+        List<ResolveInfo> source = Utils.getMediaReceivers(context, true);
+
+        List<ResolveInfo> receivers = new ArrayList<ResolveInfo>(source.size());
+        final int[] useCounts = new int[source.size()];
+        for (ResolveInfo resolveInfo : source) {
+            // Users can't select our own receiver
+            if (MediaButtonReceiver.class.getName().equals(resolveInfo.activityInfo.name)) {
+                continue;
+            }
+            useCounts[receivers.size()] = stateStore.getUseCount(new ComponentName(
+                    resolveInfo.activityInfo.packageName, resolveInfo.activityInfo.name).flattenToString());
+            receivers.add(resolveInfo);
+        }
+
+        // Most used first. The sort is stable, so ties stay in priority order.
+        Integer[] order = new Integer[receivers.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                int l = useCounts[lhs];
+                int r = useCounts[rhs];
+                return l > r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        ReceiverIconCache iconCache = ReceiverIconCache.getInstance(context);
+        List<Item> items = new ArrayList<Item>(order.length);
+        for (Integer index : order) {
+            ResolveInfo resolveInfo = receivers.get(index);
+            ReceiverIconCache.Entry entry = loadEntries ? iconCache.getSync(resolveInfo) : iconCache
+                    .peek(resolveInfo);
+            items.add(new Item(resolveInfo, entry));
+        }
+        return new Model(source, lastReceiver, Collections.unmodifiableList(items));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+/**
+ * Tracks whether a {@link ReceiverSelector} is in the foreground, from its
+ * own {@code onResume} and {@code onPause}. The selector runs in our
+ * process, so this is known without asking the {@code ActivityManager}.
+ *
+ * A process that hasn't resumed a selector yet reports it hidden. If the
+ * system recreates the process while restoring a selector, the selector is
+ * resumed before it could receive a key anyway.
+ *
+ * @author James Hartig
+ */
+public final class SelectorVisibility {
+
+    /**
+     * Resumed selectors minus paused ones. Only written on the main thread,
+     * so a plain volatile is enough.
+     */
+    private static volatile int resumed;
+
+    /**
+     * Prevent instantiation.
+     */
+    private SelectorVisibility() {
+        // Intentionally blank
+    }
+
+    /**
+     * Called from the selector's {@code onResume}. Main thread only.
+     */
+    static void onResumed() {
+        resumed++;
+    }
+
+    /**
+     * Called from the selector's {@code onPause}. Main thread only.
+     */
+    static void onPaused() {
+        resumed = Math.max(resumed - 1, 0);
+    }
+
+    /**
+     * Forgets selectors that were never paused. For tests, which run in one
+     * process.
+     */
+    static void resetForTest() {
+        resumed = 0;
+    }
+
+    /**
+     * @return Whether a selector is in the foreground.
+     */
+    public static boolean isVisible() {
+        return resumed > 0;
+    }
+}
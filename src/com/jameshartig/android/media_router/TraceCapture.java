@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import static com.jameshartig.android.media_router.Constants.TAG;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import android.util.Log;
+import android.view.KeyEvent;
+
+import com.jameshartig.android.media_router.routing.RoutingDecision;
+import com.jameshartig.android.media_router.routing.RoutingInput;
+import com.jameshartig.android.media_router.routing.RoutingTrace;
+
+/**
+ * Captures every routed key event with the state it was routed with to a
+ * {@link RoutingTrace} file, for replaying off the device. Presses that reuse
+ * an earlier decision or are speculated are captured too, without the state.
+ * Off unless started through {@code adb shell dumpsys activity service
+ * MediaButtonMonitorService trace-start}, since it writes to storage on the
+ * press path.
+ *
+ * @author James Hartig
+ */
+public final class TraceCapture {
+
+    private static volatile boolean capturing;
+
+    private static DataOutputStream out;
+    private static RoutingTrace.Writer writer;
+    private static File file;
+    private static int count;
+
+    /**
+     * Prevent instantiation.
+     */
+    private TraceCapture() {
+        // Intentionally blank
+    }
+
+    /**
+     * Starts capturing to {@code traceFile}, replacing it. Stops any capture
+     * already running first.
+     *
+     * @param traceFile
+     *            Where to write.
+     * @throws IOException
+     *             If the file can't be written.
+     */
+    public static synchronized void start(File traceFile) throws IOException {
+        stop();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(traceFile)));
+        writer = new RoutingTrace.Writer(out);
+        file = traceFile;
+        count = 0;
+        capturing = true;
+    }
+
+    /**
+     * Stops capturing and closes the file.
+     */
+    public static synchronized void stop() {
+        if (!capturing) {
+            return;
+        }
+        capturing = false;
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't close routing trace " + file, e);
+        }
+        out = null;
+        writer = null;
+    }
+
+    /**
+     * Adds an event routed by the engine to the trace, if capturing.
+     *
+     * @param keyEvent
+     *            The key event.
+     * @param keyCode
+     *            The adjusted key code.
+     * @param input
+     *            What it was routed with.
+     * @param decision
+     *            How it was routed.
+     */
+    public static void capture(KeyEvent keyEvent, int keyCode, RoutingInput input, RoutingDecision decision) {
+        capture(keyEvent, keyCode, RoutingTrace.Source.ENGINE, input, decision);
+    }
+
+    /**
+     * Adds an event the engine didn't route to the trace, if capturing.
+     *
+     * @param keyEvent
+     *            The key event.
+     * @param keyCode
+     *            The adjusted key code.
+     * @param source
+     *            Where the decision came from.
+     * @param decision
+     *            How it was routed.
+     */
+    public static void capture(KeyEvent keyEvent, int keyCode, RoutingTrace.Source source,
+            RoutingDecision decision) {
+        capture(keyEvent, keyCode, source, null, decision);
+    }
+
+    private static void capture(KeyEvent keyEvent, int keyCode, RoutingTrace.Source source, RoutingInput input,
+            RoutingDecision decision) {
+        if (!capturing) {
+            return;
+        }
+        synchronized (TraceCapture.class) {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.write(new RoutingTrace.Event(keyEvent.getEventTime(), keyCode, keyEvent.getAction(), source,
+                        input, decision));
+                count++;
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't write routing trace " + file + ", stopping", e);
+                stop();
+            }
+        }
+    }
+
+    /**
+     * Prints whether a capture is running.
+     *
+     * @param writer
+     *            Where to print.
+     */
+    public static synchronized void dump(PrintWriter writer) {
+        if (capturing) {
+            writer.println("Routing trace: capturing " + count + " events to " + file);
+        } else if (file != null) {
+            writer.println("Routing trace: stopped, " + count + " events in " + file);
+        }
+    }
+}
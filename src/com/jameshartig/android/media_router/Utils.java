@@ -15,29 +15,26 @@
  */
 package com.jameshartig.android.media_router;
 
-import java.util.Arrays;
 import java.util.List;
 
-import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
-import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.os.Build;
-import android.os.SystemClock;
-import android.preference.PreferenceManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Html;
 import android.text.Spanned;
 import android.util.Log;
 import android.view.KeyEvent;
 
+import com.jameshartig.android.media_router.routing.KeyCodes;
+
 /**
  * Utility class.
  * 
@@ -46,8 +43,8 @@ import android.view.KeyEvent;
 public final class Utils {
 
     private static final String TAG = "MediaButtonRouter";
-    public static final int KEYCODE_MEDIA_PLAY = 126;
-    public static final int KEYCODE_MEDIA_PAUSE = 127;
+    public static final int KEYCODE_MEDIA_PLAY = KeyCodes.KEYCODE_MEDIA_PLAY;
+    public static final int KEYCODE_MEDIA_PAUSE = KeyCodes.KEYCODE_MEDIA_PAUSE;
     public static final int ICS_API_LEVEL = 14;
 
     /**
@@ -64,116 +61,30 @@ public final class Utils {
      * @return
      */
     public static boolean isMediaButton(int keyCode) {
-        //handle special keys for newer devices
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && keyCode == KeyEvent.KEYCODE_MEDIA_AUDIO_TRACK) {
-            return true;
-        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1 && keyCode == KeyEvent.KEYCODE_MUSIC) {
-            return true;
-        }
-        return keyCode == KEYCODE_MEDIA_PLAY
-                || keyCode == KEYCODE_MEDIA_PAUSE
-                || keyCode == KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE
-                || keyCode == KeyEvent.KEYCODE_MEDIA_NEXT
-                || keyCode == KeyEvent.KEYCODE_MEDIA_PREVIOUS
-                || keyCode == KeyEvent.KEYCODE_MEDIA_REWIND
-                || keyCode == KeyEvent.KEYCODE_MEDIA_FAST_FORWARD
-                || keyCode == KeyEvent.KEYCODE_HEADSETHOOK;
-        //not including KeyEvent.KEYCODE_MEDIA_STOP because if something sends stop, it should actually stop the music
-        //todo: make sure that stop doesn't cause random music apps to open
-    }
-
-    /**
-     * Forwards {@code keyCode} to receiver specified as two key events, one for
-     * up and one for down. Optionally launches the application for the
-     * receiver.
-     * 
-     * @param context
-     * @param selectedReceiver
-     * @param launch
-     * @param keyCode
-     * @param cleanUpReceiver
-     */
-    public static void forwardKeyCodeToComponent(Context context, ComponentName selectedReceiver, boolean launch,
-            int keyCode, BroadcastReceiver cleanUpReceiver) {
-
-        Intent mediaButtonDownIntent = new Intent(Intent.ACTION_MEDIA_BUTTON);
-        KeyEvent downKe = new KeyEvent(SystemClock.uptimeMillis(), SystemClock.uptimeMillis(), KeyEvent.ACTION_DOWN,
-                keyCode, 0);
-        mediaButtonDownIntent.putExtra(Intent.EXTRA_KEY_EVENT, downKe);
-
-        Intent mediaButtonUpIntent = new Intent(Intent.ACTION_MEDIA_BUTTON);
-        KeyEvent upKe = new KeyEvent(SystemClock.uptimeMillis(), SystemClock.uptimeMillis(), KeyEvent.ACTION_UP,
-                keyCode, 0);
-        mediaButtonUpIntent.putExtra(Intent.EXTRA_KEY_EVENT, upKe);
-
-        mediaButtonDownIntent.setComponent(selectedReceiver);
-        mediaButtonUpIntent.setComponent(selectedReceiver);
-
-        /* COMMENTED OUT FOR MARKET RELEASE Log.i(TAG, "Forwarding Down and Up intent events to " + selectedReceiver + " Down Intent: "
-                + mediaButtonDownIntent + " Down key:" + downKe + " Up Intent: " + mediaButtonUpIntent + " Up key:"
-                + upKe); */
-        // We start the selected application because some apps broadcast
-        // receivers won't do anything with the intents unless the
-        // application is open. (This this is only if the app isn't
-        // playing music and you want it to play music now)
-        // XXX Is that true? recheck..
-        // Another reason to launch the app is that if the app does
-        // AudioManager#registerMediaButtonEventReceiver
-        // on load, and we are unable to tell when this app is playing music,
-        // android's default behavior should be correct.
-        if (launch) {
-            Intent launchIntent = context.getPackageManager().getLaunchIntentForPackage(
-                    selectedReceiver.getPackageName());
-            if (launchIntent != null) {
-                context.startActivity(launchIntent);
-            }
-        }
-
-        context.sendOrderedBroadcast(mediaButtonDownIntent, null, cleanUpReceiver, null, Activity.RESULT_OK, null, null);
-        context.sendOrderedBroadcast(mediaButtonUpIntent, null, cleanUpReceiver, null, Activity.RESULT_OK, null, null);
-
+        return KeyCodes.isMediaButton(keyCode, Build.VERSION.SDK_INT);
     }
 
     /**
      * Gets the list of available media receivers, optionally filtering out ones
-     * the user has indicated should be hidden in preferences.
+     * the user has indicated should be hidden in preferences. The receivers
+     * come from the process-wide {@link ReceiverRegistry}, so this doesn't
+     * query the {@code PackageManager} each time, and the hidden receivers
+     * come from the {@link HiddenReceiverIndex}.
      * 
-     * @param packageManager
-     *            The {@code PackageManager} used to retrieve media button
-     *            receivers.
+     * @param context
+     *            The context used to get the registry and preferences.
      * 
      * @param filterHidden
      *            Whether user-hidden media receivers should be shown.
-     * @return The list of {@code ResolveInfo} for different media button
-     *         receivers.
+     * @return The unmodifiable list of {@code ResolveInfo} for different media
+     *         button receivers.
      */
-    public static List<ResolveInfo> getMediaReceivers(PackageManager packageManager, boolean filterHidden,
-            Context context) {
-        Intent mediaButtonIntent = new Intent(Intent.ACTION_MEDIA_BUTTON);
-
-        List<ResolveInfo> mediaReceivers = packageManager.queryBroadcastReceivers(mediaButtonIntent,
-                PackageManager.GET_INTENT_FILTERS | PackageManager.GET_RESOLVED_FILTER);
+    public static List<ResolveInfo> getMediaReceivers(Context context, boolean filterHidden) {
+        ReceiverRegistry registry = ReceiverRegistry.getInstance(context);
         if (filterHidden) {
-
-            String hiddenReceiverIdsString = PreferenceManager.getDefaultSharedPreferences(context).getString(
-                    Constants.HIDDEN_APPS_KEY, "");
-            List<String> hiddenIds = Arrays.asList(hiddenReceiverIdsString.split(","));
-
-            for (int i = mediaReceivers.size() - 1; i >= 0; i--) {
-                ResolveInfo mediaReceiverResolveInfo = mediaReceivers.get(i);
-                // i have to be more exact than just application name because
-                // the two versions (old and new) of google music
-                // have the same classnames for their intent receivers. I need
-                // to know where their apks live to be able to differentiate.
-                String name = mediaReceiverResolveInfo.activityInfo.applicationInfo.sourceDir
-                        + mediaReceiverResolveInfo.activityInfo.name;
-                if (hiddenIds.contains(name)) {
-                    mediaReceivers.remove(i);
-                }
-            }
+            return registry.getVisibleReceivers(HiddenReceiverIndex.getInstance(context));
         }
-
-        return mediaReceivers;
+        return registry.getReceivers();
     }
 
     /**
@@ -189,11 +100,7 @@ public final class Utils {
     }
 
     public static int getAdjustedKeyCode(KeyEvent keyEvent) {
-        int keyCode = keyEvent.getKeyCode();
-        if (keyCode == KEYCODE_MEDIA_PLAY || keyCode == KEYCODE_MEDIA_PAUSE) {
-            keyCode = KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE;
-        }
-        return keyCode;
+        return KeyCodes.getAdjustedKeyCode(keyEvent.getKeyCode());
     }
 
     /**
@@ -207,4 +114,21 @@ public final class Utils {
 
         return android.os.Build.VERSION.SDK_INT >= ICS_API_LEVEL;
     }
+
+    /**
+     * Stops the looper of a handler and waits for its thread to exit. Anything
+     * still queued is dropped.
+     * 
+     * @param handler
+     *            A handler on a {@code HandlerThread}, not the main thread.
+     */
+    public static void quitAndJoin(Handler handler) {
+        Looper looper = handler.getLooper();
+        looper.quit();
+        try {
+            looper.getThread().join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
@@ -17,13 +17,11 @@ package com.jameshartig.android.media_router.receivers;
 
 import static com.jameshartig.android.media_router.Constants.TAG;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
-import android.app.Activity;
-import android.app.ActivityManager;
-import android.app.ActivityManager.RunningServiceInfo;
-import android.app.ActivityManager.RunningTaskInfo;
 import android.app.KeyguardManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -32,15 +30,38 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ResolveInfo;
-import android.media.AudioManager;
+import android.os.Build;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.view.KeyEvent;
 
+import com.jameshartig.android.media_router.ActivePlayerTracker;
 import com.jameshartig.android.media_router.Constants;
+import com.jameshartig.android.media_router.DeliveryTracker;
+import com.jameshartig.android.media_router.KeyForwarder;
+import com.jameshartig.android.media_router.MusicActivityTracker;
 import com.jameshartig.android.media_router.ReceiverSelector;
 import com.jameshartig.android.media_router.ReceiverSelectorLocked;
+import com.jameshartig.android.media_router.RoutingStateStore;
+import com.jameshartig.android.media_router.RunningStateCache;
+import com.jameshartig.android.media_router.SelectorModel;
+import com.jameshartig.android.media_router.SelectorVisibility;
+import com.jameshartig.android.media_router.TraceCapture;
 import com.jameshartig.android.media_router.Utils;
+import com.jameshartig.android.media_router.routing.FlightRecorder;
+import com.jameshartig.android.media_router.routing.GestureSessionCache;
+import com.jameshartig.android.media_router.routing.KeyEventAdmission;
+import com.jameshartig.android.media_router.routing.Receiver;
+import com.jameshartig.android.media_router.routing.RoutingDecision;
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+import com.jameshartig.android.media_router.routing.RoutingEngine;
+import com.jameshartig.android.media_router.routing.RoutingInput;
+import com.jameshartig.android.media_router.routing.RoutingPolicies;
+import com.jameshartig.android.media_router.routing.RoutingStats;
+import com.jameshartig.android.media_router.routing.RoutingStats.Stage;
+import com.jameshartig.android.media_router.routing.RoutingTrace;
 
 /**
  * Handles routing media button intents to application that is playing music
@@ -50,6 +71,44 @@ import com.jameshartig.android.media_router.Utils;
  */
 public class MediaButtonReceiver extends BroadcastReceiver {
 
+    private static final String OWN_RECEIVER_NAME = MediaButtonReceiver.class.getName();
+
+    private static final RoutingEngine ENGINE = new RoutingEngine();
+
+    private static final GestureSessionCache GESTURES = new GestureSessionCache();
+
+    private static final KeyEventAdmission ADMISSION = new KeyEventAdmission();
+
+    /**
+     * The last receiver list converted by {@link #toRoutingReceivers(List)}
+     * and its conversion. The registry hands out the same list until the
+     * receivers or hidden apps change, so this is almost always a hit.
+     */
+    private static List<ResolveInfo> convertedReceivers;
+    private static List<Receiver> routingReceivers;
+
+    /**
+     * Receives the decision to keep the media button broadcast from reaching
+     * receivers with a lower priority than ours.
+     */
+    interface BroadcastControl {
+        void abort();
+    }
+
+    /**
+     * Aborts through this receiver, for events routed inside
+     * {@link #onReceive(Context, Intent)}.
+     */
+    private final BroadcastControl inlineControl = new BroadcastControl() {
+
+        @Override
+        public void abort() {
+            if (isOrderedBroadcast()) {
+                abortBroadcast();
+            }
+        }
+    };
+
     @Override
     public void onReceive(Context context, Intent intent) {
 
@@ -58,19 +117,16 @@ public class MediaButtonReceiver extends BroadcastReceiver {
             return;
         }
 
-        ActivityManager activityManager = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE));
-
-        if (Utils.isHandlingThroughSoleReceiver()) {
-            // Try to figure out if our selector is currently open
-            List<RunningTaskInfo> runningTasks = activityManager.getRunningTasks(1);
-            if (runningTasks.size() > 0) {
-                String className = runningTasks.get(0).topActivity.getClassName();
-                if (className.equals(ReceiverSelector.class.getName())
-                        || className.equals(ReceiverSelectorLocked.class.getName())) {
-                    Log.d(TAG, "Selector is already open, rebroadcasting for selector only.");
-                    Intent receiver_selector_intent = new Intent(Constants.INTENT_ACTION_VIEW_MEDIA_LIST_KEYPRESS);
-                    receiver_selector_intent.putExtras(intent);
-                    context.sendBroadcast(receiver_selector_intent);
+        // Drop duplicates and storms before they cost any routing
+        if (Intent.ACTION_MEDIA_BUTTON.equals(intent.getAction())) {
+            KeyEvent keyEvent = (KeyEvent) intent.getParcelableExtra(Intent.EXTRA_KEY_EVENT);
+            if (keyEvent != null) {
+                KeyEventAdmission.Result result = ADMISSION.admit(keyEvent.getDownTime(), keyEvent.getEventTime(),
+                        keyEvent.getKeyCode(), keyEvent.getAction(), SystemClock.uptimeMillis());
+                if (result != KeyEventAdmission.Result.ADMITTED) {
+                    Log.d(TAG, "Media Button Receiver: dropping " + result + " " + keyEvent);
+                    // We already handled the press this belongs to, nobody
+                    // else should get it either
                     if (isOrderedBroadcast()) {
                         abortBroadcast();
                     }
@@ -79,161 +135,335 @@ public class MediaButtonReceiver extends BroadcastReceiver {
             }
         }
 
+        // Sometimes we take too long finish and Android kills
+        // us and forwards the intent to another broadcast receiver. In async
+        // mode we return immediately and route on the worker thread, holding
+        // the broadcast open with goAsync() until the worker is done.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && preferences.getBoolean(Constants.ASYNC_ROUTING_KEY, false)) {
+            RoutingWorker worker = RoutingWorker.getInstance();
+            if (worker.tryReserve()) {
+                worker.post(this, context, intent, goAsync(), isOrderedBroadcast());
+                return;
+            }
+            Log.w(TAG, "Routing queue is full, routing inline");
+        }
+
+        route(context, intent, inlineControl);
+    }
+
+    /**
+     * Routes a media button intent to the music player that should receive
+     * it. Runs either inline on the main thread or on the
+     * {@link RoutingWorker} thread.
+     * 
+     * @param context
+     *            The context.
+     * @param intent
+     *            The media button intent.
+     * @param control
+     *            Used to abort the broadcast once we decide to handle it.
+     */
+    void route(Context context, final Intent intent, BroadcastControl control) {
+        long routeStart = System.nanoTime();
+        RoutingStats.beginEvent();
+        KeyEvent keyEvent = (KeyEvent) intent.getParcelableExtra(Intent.EXTRA_KEY_EVENT);
+
+        if (Utils.isHandlingThroughSoleReceiver() && SelectorVisibility.isVisible()) {
+            // The selector is in our process, no need for a system broadcast
+            Log.d(TAG, "Selector is already open, passing the key to the selector.");
+            Intent receiver_selector_intent = new Intent(Constants.INTENT_ACTION_VIEW_MEDIA_LIST_KEYPRESS);
+            receiver_selector_intent.putExtras(intent);
+            LocalBroadcastManager.getInstance(context).sendBroadcast(receiver_selector_intent);
+            control.abort();
+            return;
+        }
+
         if (!Intent.ACTION_MEDIA_BUTTON.equals(intent.getAction())) {
             return;
         }
-        // Sometimes we take too long finish and Android kills
-        // us and forwards the intent to another broadcast receiver. If this
-        // keeps being a problem, than we should always return immediately and
-        // handle forwarding the intent in another thread
         Log.d(TAG, "Media Button Receiver: received media button intent: " + intent);
 
-        KeyEvent keyEvent = (KeyEvent) intent.getExtras().get(Intent.EXTRA_KEY_EVENT);
+        if (keyEvent == null) {
+            return;
+        }
         int keyCode = Utils.getAdjustedKeyCode(keyEvent);
         Log.d(TAG, "Media Button Receiver: handling media key event: " + keyEvent);
 
         // Don't want to capture volume buttons
         if (Utils.isMediaButton(keyCode)) {
-            AudioManager audioManager = ((AudioManager) context.getSystemService(Context.AUDIO_SERVICE));
-            boolean musicActive = audioManager.isMusicActive();
-            List<ResolveInfo> receivers = Utils.getMediaReceivers(context.getPackageManager(), true, context.getApplicationContext());
-            String last_media_button_receiver = preferences.getString(Constants.LAST_MEDIA_BUTTON_RECEIVER, null);
-            ComponentName lastReceiverComponentName = null;
-            boolean ignorePrompt = false;
-
-            if (last_media_button_receiver != null) {
-                if (last_media_button_receiver.equals(Constants.IGNORE_NEW_RECEIVER)) {
-                    ignorePrompt = true;
+            // Key repeats and the up event of a held button reuse the
+            // decision made on its first down event
+            long downTime = keyEvent.getDownTime();
+            long now = SystemClock.uptimeMillis();
+            RoutingDecision decision = GESTURES.get(downTime, keyCode, now);
+            if (decision == null) {
+                // Only a press's first event is speculated on, so it can be
+                // checked before the key is forwarded on up
+                Receiver speculated = null;
+                if (keyEvent.getAction() == KeyEvent.ACTION_DOWN
+                        && PreferenceManager.getDefaultSharedPreferences(context).getBoolean(
+                                Constants.SPECULATIVE_ROUTING_KEY, false)) {
+                    speculated = SpeculativeRouting.getTarget(context);
+                }
+                if (speculated != null) {
+                    // Send it where the last press went, and check meanwhile
+                    decision = RoutingDecision.forward(Path.SPECULATIVE, speculated);
+                    SpeculativeRouting.verify(context, keyEvent, keyCode, speculated);
+                    TraceCapture.capture(keyEvent, keyCode, RoutingTrace.Source.SPECULATION, decision);
                 } else {
-                    lastReceiverComponentName = ComponentName.unflattenFromString(last_media_button_receiver);
+                    decision = resolve(context, keyEvent, keyCode, null);
+                    SpeculativeRouting.onRouted(decision);
                 }
+                Log.d(TAG, "Media Button Receiver: routing decision " + decision);
+            } else {
+                TraceCapture.capture(keyEvent, keyCode, RoutingTrace.Source.GESTURE_CACHE, decision);
+            }
+            if (keyEvent.getAction() == KeyEvent.ACTION_UP) {
+                GESTURES.remove(downTime, keyCode);
+            } else {
+                GESTURES.put(downTime, keyCode, decision, now);
             }
+            long stageStart = System.nanoTime();
 
-            List<RunningTaskInfo> runningTasks = activityManager.getRunningTasks(1);
-            List<RunningServiceInfo> runningServices = activityManager.getRunningServices(Integer.MAX_VALUE);
-            String lastReceiverPackageName = lastReceiverComponentName != null ? lastReceiverComponentName.getPackageName() : null;
-            ActivityInfo activityInfo;
-            //if music is active we should look through services first of all
-            if (musicActive) {
-                Log.d(TAG, "Music is active!!");
-
-                //if music is active then we assume that the last receiver is the thing playing music
-                if (lastReceiverPackageName != null) {
-                    Log.d(TAG, "Looking for last active package " + lastReceiverPackageName);
-                    for (RunningServiceInfo runningService : runningServices) {
-                        if (!runningService.started || !runningService.foreground) {
-                            continue;
-                        }
-                        String packageName = runningService.service.getPackageName();
-                        if (packageName.equals(lastReceiverPackageName)) {
-                            if (keyEvent.getAction() == KeyEvent.ACTION_UP) {
-                                Log.d(TAG, "Found service for " + packageName + "! sending key code");
-                                Utils.forwardKeyCodeToComponent(context, lastReceiverComponentName, false, keyCode, null);
-                            }
-                            if (isOrderedBroadcast()) {
-                                abortBroadcast();
-                            }
-                            return;
+            switch (decision.getAction()) {
+                case PASS:
+                    // e.g. music is playing from something we can't find,
+                    // let it have the press
+                    finish(keyEvent, keyCode, decision, routeStart);
+                    return;
+                case FORWARD:
+                    control.abort();
+                    if (keyEvent.getAction() == KeyEvent.ACTION_UP) {
+                        if (decision.getPath() == Path.SPECULATIVE) {
+                            SpeculativeRouting.onForwarding(downTime);
                         }
+                        final Receiver target = decision.getTarget();
+                        final Context appContext = context.getApplicationContext();
+                        final int forwardedKeyCode = keyCode;
+                        final KeyEvent forwardedKeyEvent = keyEvent;
+                        // If the target definitely didn't get the key, give it
+                        // to the next choice instead of dropping the press
+                        DeliveryTracker.Delivery delivery = DeliveryTracker.track(context, toComponentName(target),
+                                keyCode, new Runnable() {
+
+                                    @Override
+                                    public void run() {
+                                        fallBack(appContext, intent, forwardedKeyEvent, forwardedKeyCode, target);
+                                    }
+                                });
+                        forward(context, decision, keyCode, keyEvent, delivery, stageStart);
                     }
-                    for (RunningTaskInfo runningTask : runningTasks) {
-                        String packageName = runningTask.topActivity.getPackageName();
-                        if (packageName.equals(lastReceiverPackageName)) {
-                            if (keyEvent.getAction() == KeyEvent.ACTION_UP) {
-                                Log.d(TAG, "Found task for " + packageName + "! sending key code");
-                                Utils.forwardKeyCodeToComponent(context, lastReceiverComponentName, false, keyCode, null);
-                            }
-                            if (isOrderedBroadcast()) {
-                                abortBroadcast();
-                            }
-                            return;
-                        }
+                    finish(keyEvent, keyCode, decision, routeStart);
+                    return;
+                case PROMPT:
+                    control.abort();
+                    if (keyEvent.getAction() == KeyEvent.ACTION_DOWN) {
+                        // Get the selector's rows ready while the button is
+                        // held, it's shown on the up event
+                        SelectorModel.getInstance(context).prepare();
+                    } else if (keyEvent.getAction() == KeyEvent.ACTION_UP) {
+                        showSelector(context, intent, keyEvent);
+                        RoutingStats.recordStage(Stage.SELECTOR_LAUNCH, stageStart);
                     }
-                }
+                    finish(keyEvent, keyCode, decision, routeStart);
+                    return;
+                case CONSUME:
+                    control.abort();
+                    finish(keyEvent, keyCode, decision, routeStart);
+                    return;
+            }
+        }
+    }
 
+    /**
+     * Records how an event was routed in the stats and the flight recorder.
+     */
+    private static void finish(KeyEvent keyEvent, int keyCode, RoutingDecision decision, long routeStart) {
+        RoutingStats.recordOutcome(decision.getPath(), routeStart);
+        FlightRecorder.record(keyEvent.getEventTime(), keyCode, keyEvent.getAction(), decision.getTarget(),
+                decision.getPath(), RoutingStats.getEventStages());
+    }
 
-                for (ResolveInfo resolveInfo : receivers) {
-                    activityInfo = resolveInfo.activityInfo;
-                    if (activityInfo == null || MediaButtonReceiver.class.getName().equals(activityInfo.name)) {
-                        continue;
-                    }
-                    for (RunningServiceInfo runningService : runningServices) {
-                        if (!runningService.started || !runningService.foreground || activityInfo.packageName == null) {
-                            continue;
-                        }
-                        String packageName = runningService.service.getPackageName();
-                        if (packageName.equals(activityInfo.packageName)) {
-                            if (keyEvent.getAction() == KeyEvent.ACTION_UP) {
-                                Log.d(TAG, "Found service for " + packageName + "! sending key code");
-                                ComponentName componentName = new ComponentName(activityInfo.packageName, activityInfo.name);
-                                Utils.forwardKeyCodeToComponent(context, componentName, false, keyCode, null);
-                            }
-                            if (isOrderedBroadcast()) {
-                                abortBroadcast();
-                            }
-                            return;
-                        }
-                    }
-                }
+    /**
+     * Forwards the key to the decision's target and remembers it.
+     * 
+     * @param context
+     *            The context.
+     * @param decision
+     *            A {@link RoutingDecision.Action#FORWARD} decision.
+     * @param keyCode
+     *            The key code to forward.
+     * @param keyEvent
+     *            The key event the user pressed.
+     * @param delivery
+     *            Tracks the forward, may be null.
+     * @param stageStart
+     *            {@code System.nanoTime()} when forwarding started.
+     */
+    static void forward(Context context, RoutingDecision decision, int keyCode, KeyEvent keyEvent,
+            DeliveryTracker.Delivery delivery, long stageStart) {
+        ComponentName componentName = toComponentName(decision.getTarget());
+        KeyForwarder.getInstance(context).forward(context, componentName, false, keyCode, keyEvent, delivery);
+        // The key probably starts or stops playback
+        MusicActivityTracker.invalidate();
+        stageStart = RoutingStats.recordStage(Stage.FORWARD, stageStart);
 
-                //didn't find any services, bail
-                return;
-            }
+        RoutingStateStore stateStore = RoutingStateStore.getInstance(context);
+        String flattenedComponentName = componentName.flattenToString();
+        if (decision.getPath().isRemembered()) {
+            //store the last receiver since this sometimes doesn't trigger the monitor service
+            stateStore.setLastReceiver(flattenedComponentName);
+        }
+        stateStore.recordForward(flattenedComponentName);
+        RoutingStats.recordStage(Stage.STATE_WRITE, stageStart);
+    }
 
-            //now prefer the app that is immediately foreground
-            for (ResolveInfo resolveInfo : receivers) {
-                activityInfo = resolveInfo.activityInfo;
-                if (activityInfo == null || MediaButtonReceiver.class.getName().equals(activityInfo.name)) {
-                    continue;
-                }
-                for (RunningTaskInfo runningTask : runningTasks) {
-                    String packageName = runningTask.topActivity.getPackageName();
-                    if (packageName.equals(activityInfo.packageName)) {
-                        if (keyEvent.getAction() == KeyEvent.ACTION_UP) {
-                            Log.d(TAG, "Found task for " + packageName + "! sending key code");
-                            ComponentName componentName = new ComponentName(activityInfo.packageName, activityInfo.name);
-                            Utils.forwardKeyCodeToComponent(context, componentName, false, keyCode, null);
-
-                            //store the last receiver since this sometimes doesn't trigger the monitor service
-                            preferences.edit().putString(Constants.LAST_MEDIA_BUTTON_RECEIVER, componentName.flattenToString()).commit();
-                        }
-                        if (isOrderedBroadcast()) {
-                            abortBroadcast();
-                        }
-                        return;
-                    }
-                }
-            }
+    /**
+     * Routes a press again without the receiver that didn't get it, and
+     * forwards it to whatever is chosen next. Only falls back once per press.
+     * 
+     * @param context
+     *            The application context.
+     * @param intent
+     *            The media button intent.
+     * @param keyEvent
+     *            The key event the user pressed.
+     * @param keyCode
+     *            The key code that was forwarded.
+     * @param missed
+     *            The receiver that didn't get it.
+     */
+    private static void fallBack(Context context, Intent intent, KeyEvent keyEvent, int keyCode, Receiver missed) {
+        RoutingDecision decision = resolve(context, keyEvent, keyCode, missed);
+        Log.d(TAG, "Media Button Receiver: falling back from " + missed + " to " + decision);
+        switch (decision.getAction()) {
+            case FORWARD:
+                forward(context, decision, keyCode, keyEvent, null, System.nanoTime());
+                break;
+            case PROMPT:
+                showSelector(context, intent, keyEvent);
+                break;
+            default:
+                break;
+        }
+    }
 
-            // No music playing
-            if (isOrderedBroadcast()) {
-                abortBroadcast();
+    private static ComponentName toComponentName(Receiver receiver) {
+        return new ComponentName(receiver.getPackageName(), receiver.getClassName());
+    }
+
+
+    /**
+     * Gathers the device state and runs it through the routing engine.
+     * 
+     * @param context
+     *            The context.
+     * @param keyEvent
+     *            The key event being routed.
+     * @param keyCode
+     *            Its adjusted key code.
+     * @param excluded
+     *            A receiver to leave out, or null.
+     * @return The routing decision.
+     */
+    static RoutingDecision resolve(Context context, KeyEvent keyEvent, int keyCode, Receiver excluded) {
+        RoutingInput input = gatherInput(context, keyEvent, excluded, true);
+        long stageStart = System.nanoTime();
+        RoutingDecision decision = decide(input);
+        RoutingStats.recordStage(Stage.MATCHING, stageStart);
+        TraceCapture.capture(keyEvent, keyCode, input, decision);
+        return decision;
+    }
+
+    /**
+     * Runs an input through the routing engine.
+     * 
+     * @param input
+     *            The state to route with.
+     * @return The routing decision.
+     */
+    static RoutingDecision decide(RoutingInput input) {
+        return ENGINE.route(input);
+    }
+
+    /**
+     * Gathers the device state to route a key event with.
+     * 
+     * @param context
+     *            The context.
+     * @param keyEvent
+     *            The key event being routed.
+     * @param excluded
+     *            A receiver to leave out, or null.
+     * @param timed
+     *            Whether to record the stages in {@link RoutingStats}. Only
+     *            for routing a press, not for checking one afterwards.
+     * @return The routing input.
+     */
+    static RoutingInput gatherInput(Context context, KeyEvent keyEvent, Receiver excluded, boolean timed) {
+        long downTime = keyEvent.getDownTime();
+        long stageStart = System.nanoTime();
+        boolean musicActive = MusicActivityTracker.isMusicActive(context);
+        stageStart = recordStage(timed, Stage.MUSIC_ACTIVE, stageStart);
+        List<ResolveInfo> receivers = Utils.getMediaReceivers(context, true);
+        stageStart = recordStage(timed, Stage.RECEIVER_QUERY, stageStart);
+        RoutingStateStore stateStore = RoutingStateStore.getInstance(context);
+        boolean ignorePrompt = stateStore.isIgnoringNewReceivers();
+        Receiver lastReceiver = Receiver.unflattenFromString(stateStore.getLastReceiver());
+        stageStart = recordStage(timed, Stage.PREFERENCES, stageStart);
+
+        List<Receiver> routingReceivers = toRoutingReceivers(receivers);
+        if (excluded != null) {
+            routingReceivers = new ArrayList<Receiver>(routingReceivers);
+            routingReceivers.remove(excluded);
+            if (excluded.equals(lastReceiver)) {
+                lastReceiver = null;
             }
+        }
 
-            if (keyEvent.getAction() == KeyEvent.ACTION_UP) {
+        // The tracked player wins over everything the running state could
+        // tell us, so only scan it if there isn't one with a receiver
+        String activePlayer = musicActive ? ActivePlayerTracker.getPlayingPackage() : null;
+        if (RoutingPolicies.findReceiver(routingReceivers, activePlayer) != null) {
+            return new RoutingInput(routingReceivers, null, null, musicActive, lastReceiver, ignorePrompt, activePlayer);
+        }
+        // The down and up events of a press share a down time, so they also
+        // share a running state snapshot
+        RunningStateCache.Snapshot runningState = RunningStateCache.get(context, downTime);
+        recordStage(timed, Stage.RUNNING_SERVICES, stageStart);
+        return new RoutingInput(routingReceivers, runningState.getForegroundServicePackages(),
+                runningState.getTopPackageName(), musicActive, lastReceiver, ignorePrompt, activePlayer);
+    }
 
-                if (receivers == null || ignorePrompt) {
-                    return;
-                }
+    private static long recordStage(boolean timed, Stage stage, long stageStart) {
+        return timed ? RoutingStats.recordStage(stage, stageStart) : stageStart;
+    }
 
-                if (receivers.size() > 0) {
-                    //our app counts as 1 so if there's 2 then that means that we should skip our own app and do the default
-                    if (receivers.size() <= 2) {
-                        for (ResolveInfo resolveInfo : receivers) {
-                            if (MediaButtonReceiver.class.getName().equals(resolveInfo.activityInfo.name)) {
-                                continue;
-                            }
-                            Utils.forwardKeyCodeToComponent(context, new ComponentName(
-                                    resolveInfo.activityInfo.packageName, resolveInfo.activityInfo.name), false,
-                                    keyCode, null);
-                            break;
-                        }
-                        return;
-                    }
-                    showSelector(context, intent, keyEvent);
-                }
+    /**
+     * Converts receivers to the form the {@link RoutingEngine} uses, leaving
+     * out our own receiver so it can never be routed to. The conversion of
+     * the last list is reused if the same list is passed again.
+     * 
+     * @param receivers
+     *            The unmodifiable media button receivers.
+     * @return The unmodifiable receivers for routing.
+     */
+    private static synchronized List<Receiver> toRoutingReceivers(List<ResolveInfo> receivers) {
+        if (receivers == convertedReceivers) {
+            return routingReceivers;
+        }
+        List<Receiver> converted = new ArrayList<Receiver>(receivers.size());
+        for (ResolveInfo resolveInfo : receivers) {
+            ActivityInfo activityInfo = resolveInfo.activityInfo;
+            if (activityInfo == null || activityInfo.packageName == null || OWN_RECEIVER_NAME.equals(activityInfo.name)) {
+                continue;
             }
+            converted.add(new Receiver(activityInfo.packageName, activityInfo.name));
         }
+        convertedReceivers = receivers;
+        routingReceivers = Collections.unmodifiableList(converted);
+        return routingReceivers;
     }
 
     /**
@@ -247,15 +477,48 @@ public class MediaButtonReceiver extends BroadcastReceiver {
      * @param keyEvent
      *            The key event
      */
-    private void showSelector(Context context, Intent intent, KeyEvent keyEvent) {
+    private static void showSelector(Context context, Intent intent, KeyEvent keyEvent) {
         KeyguardManager manager = (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
         boolean locked = manager.inKeyguardRestrictedInputMode();
 
         Intent showForwardView = new Intent(Constants.INTENT_ACTION_VIEW_MEDIA_BUTTON_LIST);
         showForwardView.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         showForwardView.putExtras(intent);
+        showForwardView.putExtra(Constants.EXTRA_SELECTOR_LAUNCH_NANOS, System.nanoTime());
         showForwardView.setClassName(context,
                 locked ? ReceiverSelectorLocked.class.getName() : ReceiverSelector.class.getName());
         context.startActivity(showForwardView);
+        RunningStateCache.invalidate();
+    }
+
+    /**
+     * Prints the admission counters, clearing them if {@code reset}.
+     *
+     * @param writer
+     *            Where to print.
+     * @param reset
+     *            Whether to clear the counters afterwards.
+     */
+    public static void dumpAdmission(PrintWriter writer, boolean reset) {
+        ADMISSION.dump(writer);
+        if (reset) {
+            ADMISSION.reset();
+        }
+    }
+
+    /**
+     * Forgets everything routing keeps between events and stops its threads,
+     * as if the process had just started. For tests, which run in one
+     * process.
+     */
+    public static void resetForTest() {
+        RoutingWorker.resetForTest();
+        SpeculativeRouting.resetForTest();
+        synchronized (MediaButtonReceiver.class) {
+            convertedReceivers = null;
+            routingReceivers = null;
+        }
+        GESTURES.clear();
+        ADMISSION.clear();
     }
 }
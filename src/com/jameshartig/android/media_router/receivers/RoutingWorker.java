@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.receivers;
+
+import static com.jameshartig.android.media_router.Constants.TAG;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver.PendingResult;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.jameshartig.android.media_router.Utils;
+
+/**
+ * Dedicated thread that routes media button intents off the main thread when
+ * async routing is enabled. The broadcast is held open with
+ * {@code goAsync()} until routing is done, so aborting it from here still
+ * keeps it from lower priority receivers.
+ *
+ * @author James Hartig
+ */
+final class RoutingWorker {
+
+    /**
+     * Most events that can be waiting or routing at once. A burst beyond this
+     * is routed inline instead of queueing up behind a slow event.
+     */
+    static final int MAX_PENDING = 8;
+
+    /**
+     * How long an event can wait in the queue before it is no longer worth
+     * routing. Well under the ordered broadcast timeout, so Android never
+     * kills us for it.
+     */
+    static final long DEADLINE_MILLIS = 2000;
+
+    private static RoutingWorker instance;
+
+    private final Handler handler;
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private RoutingWorker() {
+        HandlerThread thread = new HandlerThread("MediaButtonRouting", Process.THREAD_PRIORITY_FOREGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    static synchronized RoutingWorker getInstance() {
+        if (instance == null) {
+            instance = new RoutingWorker();
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the routing thread, dropping anything queued, and forgets the
+     * worker.
+     */
+    static synchronized void resetForTest() {
+        if (instance != null) {
+            Utils.quitAndJoin(instance.handler);
+            instance = null;
+        }
+    }
+
+    /**
+     * Reserves a place in the queue. Must be followed by
+     * {@link #post(MediaButtonReceiver, Context, Intent, PendingResult, boolean)}
+     * if it returns true.
+     *
+     * @return Whether there was room.
+     */
+    boolean tryReserve() {
+        while (true) {
+            int current = pending.get();
+            if (current >= MAX_PENDING) {
+                return false;
+            }
+            if (pending.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Routes the intent on the worker thread and finishes the broadcast
+     * afterwards. Events that waited longer than {@link #DEADLINE_MILLIS} are
+     * finished without aborting so other receivers still get them.
+     *
+     * @param receiver
+     *            The receiver that got the intent.
+     * @param context
+     *            The context the receiver got.
+     * @param intent
+     *            The media button intent.
+     * @param result
+     *            From {@code goAsync()}.
+     * @param ordered
+     *            Whether the broadcast is ordered and can be aborted.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    void post(final MediaButtonReceiver receiver, final Context context, final Intent intent,
+            final PendingResult result, final boolean ordered) {
+        final long deadline = SystemClock.uptimeMillis() + DEADLINE_MILLIS;
+        handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (SystemClock.uptimeMillis() > deadline) {
+                        Log.w(TAG, "Dropping media button intent that missed its deadline: " + intent);
+                        return;
+                    }
+                    receiver.route(context, intent, new MediaButtonReceiver.BroadcastControl() {
+
+                        @Override
+                        public void abort() {
+                            if (ordered) {
+                                result.abortBroadcast();
+                            }
+                        }
+                    });
+                } finally {
+                    pending.decrementAndGet();
+                    result.finish();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.receivers;
+
+import static com.jameshartig.android.media_router.Constants.TAG;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.view.KeyEvent;
+
+import com.jameshartig.android.media_router.Constants;
+import com.jameshartig.android.media_router.MusicActivityTracker;
+import com.jameshartig.android.media_router.RoutingStateStore;
+import com.jameshartig.android.media_router.Utils;
+import com.jameshartig.android.media_router.routing.Receiver;
+import com.jameshartig.android.media_router.routing.RoutingDecision;
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+import com.jameshartig.android.media_router.routing.RoutingInput;
+
+/**
+ * Speculative routing: nearly every press goes to the same player as the one
+ * before it. With {@link Constants#SPECULATIVE_ROUTING_KEY} set, while music
+ * is known to be playing and the last press was routed to the stored last
+ * receiver, the next press is sent there without asking the system what is
+ * running.
+ *
+ * Speculation is decided on a press's down event, and the press is routed
+ * normally on a background thread from the state before the key is
+ * forwarded on up. If that picks a different target only the following
+ * presses are corrected. A key that was sent is never sent again, since the
+ * first player has probably acted on it already.
+ *
+ * @author James Hartig
+ */
+public final class SpeculativeRouting {
+
+    /**
+     * The background check of one speculated press.
+     */
+    private static final class Check {
+        final long downTime;
+        /** Set once the key is about to be forwarded. */
+        volatile boolean forwarded;
+
+        Check(long downTime) {
+            this.downTime = downTime;
+        }
+    }
+
+    /**
+     * Where the next press is sent, or null to route it normally. Set from
+     * the last routed forward and corrected by verification.
+     */
+    private static volatile Receiver target;
+
+    /**
+     * The check of the press being held, if any.
+     */
+    private static volatile Check pending;
+
+    private static final AtomicInteger hits = new AtomicInteger();
+    private static final AtomicInteger misses = new AtomicInteger();
+    private static final AtomicInteger unchecked = new AtomicInteger();
+
+    private static Handler handler;
+
+    /**
+     * Prevent instantiation.
+     */
+    private SpeculativeRouting() {
+        // Intentionally blank
+    }
+
+    /**
+     * @param context
+     *            The context.
+     * @return Where the next press should be sent, or null if it has to be
+     *         routed first. Only the in-memory music activity and routing
+     *         state are read.
+     */
+    static Receiver getTarget(Context context) {
+        Receiver speculated = target;
+        if (speculated == null || !MusicActivityTracker.isKnownActive()) {
+            return null;
+        }
+        String lastReceiver = RoutingStateStore.getInstance(context).getLastReceiver();
+        return lastReceiver != null && lastReceiver.equals(speculated.flattenToString()) ? speculated : null;
+    }
+
+    /**
+     * Updates the speculation from a press that was routed normally. Only a
+     * press that went to the last receiver because it was playing music is
+     * speculated on.
+     *
+     * @param decision
+     *            How it was routed.
+     */
+    static void onRouted(RoutingDecision decision) {
+        Path path = decision.getPath();
+        target = path == Path.LAST_RECEIVER_SERVICE || path == Path.LAST_RECEIVER_TASK ? decision.getTarget() : null;
+    }
+
+    /**
+     * Routes a press sent to {@code speculated} in the background, correcting
+     * the speculation if routing disagrees. Called on the press's down event.
+     *
+     * @param context
+     *            The context.
+     * @param keyEvent
+     *            The down event of the press.
+     * @param keyCode
+     *            The key code that will be forwarded.
+     * @param speculated
+     *            Where the key will be sent.
+     */
+    static void verify(Context context, final KeyEvent keyEvent, final int keyCode, final Receiver speculated) {
+        final Context appContext = context.getApplicationContext();
+        final Check check = new Check(keyEvent.getDownTime());
+        pending = check;
+        getHandler().post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (check.forwarded) {
+                    unchecked.incrementAndGet();
+                    return;
+                }
+                RoutingInput input = MediaButtonReceiver.gatherInput(appContext, keyEvent, null, false);
+                if (check.forwarded) {
+                    // Forwarding changes the state, so what was gathered
+                    // may be from after it and there's nothing fair left to
+                    // check against
+                    unchecked.incrementAndGet();
+                    return;
+                }
+                RoutingDecision decision = MediaButtonReceiver.decide(input);
+                if (decision.getAction() == RoutingDecision.Action.FORWARD
+                        && speculated.equals(decision.getTarget())) {
+                    hits.incrementAndGet();
+                    return;
+                }
+                misses.incrementAndGet();
+                Log.d(TAG, "Speculative forward to " + speculated + " missed, routing says " + decision);
+                // Only replace it if nothing else changed it meanwhile
+                if (target == speculated) {
+                    onRouted(decision);
+                }
+            }
+        });
+    }
+
+    /**
+     * Called right before a speculated press's key is forwarded. A check
+     * that hasn't finished gathering the state by then is skipped, it never
+     * holds up the forward.
+     *
+     * @param downTime
+     *            The press's down time.
+     */
+    static void onForwarding(long downTime) {
+        Check check = pending;
+        if (check == null || check.downTime != downTime) {
+            return;
+        }
+        pending = null;
+        check.forwarded = true;
+    }
+
+    private static synchronized Handler getHandler() {
+        if (handler == null) {
+            HandlerThread thread = new HandlerThread("SpeculationCheck", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+
+    /**
+     * Prints the hit and miss counters.
+     *
+     * @param writer
+     *            Where to print.
+     */
+    public static void dump(PrintWriter writer) {
+        int hitCount = hits.get();
+        int missCount = misses.get();
+        int total = hitCount + missCount;
+        writer.println("Speculative routing: target=" + target + " hits=" + hitCount + " misses=" + missCount
+                + " unchecked=" + unchecked.get() + (total > 0 ? " hitRate=" + (hitCount * 100 / total) + "%" : ""));
+    }
+
+    /**
+     * Clears the hit and miss counters.
+     */
+    public static void reset() {
+        hits.set(0);
+        misses.set(0);
+        unchecked.set(0);
+    }
+
+    /**
+     * Stops the check thread and forgets the target along with the counters.
+     */
+    static synchronized void resetForTest() {
+        if (handler != null) {
+            Utils.quitAndJoin(handler);
+            handler = null;
+        }
+        target = null;
+        pending = null;
+        reset();
+    }
+}
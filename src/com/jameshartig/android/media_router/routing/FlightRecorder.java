@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+import com.jameshartig.android.media_router.routing.RoutingStats.Stage;
+
+/**
+ * Always-on record of the last {@link #CAPACITY} routed media button events,
+ * for figuring out where a press went after the fact. Records live in
+ * parallel primitive arrays used as a ring: writing one claims a slot with a
+ * single atomic increment and never blocks or allocates, so it costs less
+ * than the log line it stands in for.
+ *
+ * Each slot has a stamp that is cleared while the slot is written and set to
+ * the record's sequence number plus one afterwards. Readers skip slots whose
+ * stamp doesn't match before and after reading, so a record overwritten
+ * while it is dumped is dropped rather than mixed with the next one. This is
+ * best effort, which is fine for diagnostics.
+ *
+ * @author James Hartig
+ */
+public final class FlightRecorder {
+
+    /**
+     * How many records are kept. A power of two.
+     */
+    public static final int CAPACITY = 256;
+
+    /**
+     * Written at the start of {@link #writeTo(DataOutputStream)}, "MBFR".
+     */
+    public static final int MAGIC = 0x4d424652;
+
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * Receiver id of a record without a target.
+     */
+    public static final int NO_RECEIVER = -1;
+
+    private static final int MASK = CAPACITY - 1;
+    private static final Stage[] STAGES = Stage.values();
+    private static final Path[] PATHS = Path.values();
+
+    private static final AtomicLong next = new AtomicLong();
+    private static final AtomicLongArray stamps = new AtomicLongArray(CAPACITY);
+    private static final long[] eventTimes = new long[CAPACITY];
+    private static final int[] keyCodes = new int[CAPACITY];
+    private static final byte[] actions = new byte[CAPACITY];
+    private static final int[] receiverIds = new int[CAPACITY];
+    private static final byte[] paths = new byte[CAPACITY];
+    private static final int[] stageNanos = new int[CAPACITY * STAGES.length];
+
+    /**
+     * Receiver to id, and id to receiver. Only grows, so ids stay valid for
+     * every record in the ring.
+     */
+    private static final ConcurrentHashMap<Receiver, Integer> receiverIdMap = new ConcurrentHashMap<Receiver, Integer>();
+    private static volatile Receiver[] receivers = new Receiver[0];
+
+    /**
+     * Prevent instantiation.
+     */
+    private FlightRecorder() {
+        // Intentionally blank
+    }
+
+    /**
+     * Records a routed event. Safe to call from any thread.
+     *
+     * @param eventTime
+     *            The key event's event time.
+     * @param keyCode
+     *            The adjusted key code.
+     * @param action
+     *            The key event's action.
+     * @param target
+     *            Where it went, or null.
+     * @param path
+     *            How it was routed.
+     * @param stages
+     *            Nanoseconds spent per {@link Stage}, indexed by ordinal. Times
+     *            over {@code Integer.MAX_VALUE} are clamped.
+     */
+    public static void record(long eventTime, int keyCode, int action, Receiver target, Path path, long[] stages) {
+        long sequence = next.getAndIncrement();
+        int slot = (int) sequence & MASK;
+        stamps.set(slot, 0);
+        eventTimes[slot] = eventTime;
+        keyCodes[slot] = keyCode;
+        actions[slot] = (byte) action;
+        receiverIds[slot] = target != null ? getReceiverId(target) : NO_RECEIVER;
+        paths[slot] = (byte) path.ordinal();
+        int base = slot * STAGES.length;
+        for (int i = 0; i < STAGES.length; i++) {
+            long nanos = stages[i];
+            stageNanos[base + i] = nanos > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) nanos;
+        }
+        stamps.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * @return The id {@code receiver} is recorded with. Only allocates the
+     *         first time a receiver is seen.
+     */
+    public static int getReceiverId(Receiver receiver) {
+        Integer id = receiverIdMap.get(receiver);
+        if (id != null) {
+            return id;
+        }
+        synchronized (receiverIdMap) {
+            id = receiverIdMap.get(receiver);
+            if (id == null) {
+                Receiver[] current = receivers;
+                Receiver[] grown = new Receiver[current.length + 1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                grown[current.length] = receiver;
+                receivers = grown;
+                id = current.length;
+                receiverIdMap.put(receiver, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * One record copied out of the ring.
+     */
+    private static final class Copy {
+        long sequence;
+        long eventTime;
+        int keyCode;
+        int action;
+        int receiverId;
+        int path;
+        final int[] stages = new int[STAGES.length];
+
+        /**
+         * @return Whether the record with {@code sequence} was still in the
+         *         ring and was copied whole.
+         */
+        boolean copy(long sequence) {
+            int slot = (int) sequence & MASK;
+            long stamp = stamps.get(slot);
+            if (stamp != sequence + 1) {
+                return false;
+            }
+            this.sequence = sequence;
+            eventTime = eventTimes[slot];
+            keyCode = keyCodes[slot];
+            action = actions[slot];
+            receiverId = receiverIds[slot];
+            path = paths[slot];
+            System.arraycopy(stageNanos, slot * STAGES.length, stages, 0, STAGES.length);
+            return stamps.get(slot) == stamp;
+        }
+    }
+
+    /**
+     * Prints the records oldest first, with stage times in microseconds.
+     *
+     * @param writer
+     *            Where to print.
+     */
+    public static void dump(PrintWriter writer) {
+        Receiver[] knownReceivers = receivers;
+        long end = next.get();
+        writer.println("Flight recorder (" + Math.min(end, CAPACITY) + " of " + end + " events):");
+        Copy record = new Copy();
+        for (long sequence = Math.max(0, end - CAPACITY); sequence < end; sequence++) {
+            if (!record.copy(sequence)) {
+                continue;
+            }
+            StringBuilder line = new StringBuilder();
+            line.append("  #").append(sequence).append(" t=").append(record.eventTime).append(" key=")
+                    .append(record.keyCode).append(record.action == 0 ? " down" : (record.action == 1 ? " up"
+                            : " action=" + record.action)).append(' ').append(PATHS[record.path].name());
+            if (record.receiverId != NO_RECEIVER && record.receiverId < knownReceivers.length) {
+                line.append(" -> ").append(knownReceivers[record.receiverId]);
+            }
+            for (int i = 0; i < STAGES.length; i++) {
+                if (record.stages[i] != 0) {
+                    line.append(' ').append(STAGES[i].name()).append('=').append(record.stages[i] / 1000);
+                }
+            }
+            writer.println(line);
+        }
+    }
+
+    /**
+     * Writes the records oldest first in a compact binary format: a header of
+     * {@link #MAGIC}, {@link #FORMAT_VERSION}, the stage, path and receiver
+     * names each as a count followed by UTF strings, then the record count
+     * and per record its sequence, event time, key code, action, receiver id,
+     * path ordinal and one int of nanoseconds per stage.
+     *
+     * @param out
+     *            Where to write.
+     * @throws IOException
+     *             If writing fails.
+     */
+    public static void writeTo(DataOutputStream out) throws IOException {
+        long end = next.get();
+        long start = Math.max(0, end - CAPACITY);
+        Copy[] copies = new Copy[(int) (end - start)];
+        int count = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            Copy record = new Copy();
+            if (record.copy(sequence)) {
+                copies[count++] = record;
+            }
+        }
+        // After copying, so it has every receiver the records refer to
+        Receiver[] knownReceivers = receivers;
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(STAGES.length);
+        for (Stage stage : STAGES) {
+            out.writeUTF(stage.name());
+        }
+        out.writeInt(PATHS.length);
+        for (Path path : PATHS) {
+            out.writeUTF(path.name());
+        }
+        out.writeInt(knownReceivers.length);
+        for (Receiver receiver : knownReceivers) {
+            out.writeUTF(receiver.flattenToString());
+        }
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            Copy record = copies[i];
+            out.writeLong(record.sequence);
+            out.writeLong(record.eventTime);
+            out.writeShort(record.keyCode);
+            out.writeByte(record.action);
+            out.writeInt(record.receiverId);
+            out.writeByte(record.path);
+            for (int nanos : record.stages) {
+                out.writeInt(nanos);
+            }
+        }
+    }
+}
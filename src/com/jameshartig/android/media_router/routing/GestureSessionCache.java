@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+/**
+ * Remembers the routing decision for each key gesture in progress, so the key
+ * repeats and the final up event of a held button reuse the decision made on
+ * the first down event. A gesture is identified by its down time, which all of
+ * its events share, and its key code.
+ *
+ * Only a handful of gestures can be in progress at once, so entries live in
+ * small fixed arrays. A gesture that sees no events for
+ * {@link #TIMEOUT_MILLIS} is treated as abandoned, e.g. when its up event went
+ * to another receiver.
+ *
+ * @author James Hartig
+ */
+public final class GestureSessionCache {
+
+    /**
+     * How long after its last event a gesture is forgotten. Key repeats arrive
+     * every 50ms or so while a button is held.
+     */
+    public static final long TIMEOUT_MILLIS = 3000;
+
+    private static final int CAPACITY = 4;
+
+    private final long[] downTimes = new long[CAPACITY];
+    private final int[] keyCodes = new int[CAPACITY];
+    private final long[] lastSeen = new long[CAPACITY];
+    private final RoutingDecision[] decisions = new RoutingDecision[CAPACITY];
+
+    /**
+     * Looks up the decision for a gesture and marks the gesture as still
+     * active.
+     *
+     * @param downTime
+     *            The down time of the key event.
+     * @param keyCode
+     *            The key code of the key event.
+     * @param now
+     *            The current time, on the same clock as {@code downTime}.
+     * @return The decision made for the gesture, or null if there isn't one.
+     */
+    public synchronized RoutingDecision get(long downTime, int keyCode, long now) {
+        int slot = find(downTime, keyCode, now);
+        if (slot < 0) {
+            return null;
+        }
+        lastSeen[slot] = now;
+        return decisions[slot];
+    }
+
+    /**
+     * Stores the decision for a new gesture, replacing an abandoned or the
+     * oldest one if full.
+     */
+    public synchronized void put(long downTime, int keyCode, RoutingDecision decision, long now) {
+        int slot = find(downTime, keyCode, now);
+        if (slot < 0) {
+            slot = 0;
+            for (int i = 0; i < CAPACITY; i++) {
+                if (decisions[i] == null || now - lastSeen[i] > TIMEOUT_MILLIS) {
+                    slot = i;
+                    break;
+                }
+                if (lastSeen[i] < lastSeen[slot]) {
+                    slot = i;
+                }
+            }
+        }
+        downTimes[slot] = downTime;
+        keyCodes[slot] = keyCode;
+        lastSeen[slot] = now;
+        decisions[slot] = decision;
+    }
+
+    /**
+     * Forgets a gesture, called once its up event has been routed.
+     */
+    public synchronized void remove(long downTime, int keyCode) {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (decisions[i] != null && downTimes[i] == downTime && keyCodes[i] == keyCode) {
+                decisions[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Forgets every gesture, e.g. when routing state changes underneath them.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            decisions[i] = null;
+        }
+    }
+
+    private int find(long downTime, int keyCode, long now) {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (decisions[i] != null && downTimes[i] == downTime && keyCodes[i] == keyCode) {
+                if (now - lastSeen[i] > TIMEOUT_MILLIS) {
+                    decisions[i] = null;
+                    return -1;
+                }
+                return i;
+            }
+        }
+        return -1;
+    }
+}
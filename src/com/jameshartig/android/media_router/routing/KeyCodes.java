@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+/**
+ * Key code classification shared by {@code Utils} and the plain JVM tools.
+ * The values mirror {@code android.view.KeyEvent}.
+ *
+ * @author James Hartig
+ */
+public final class KeyCodes {
+
+    public static final int KEYCODE_HEADSETHOOK = 79;
+    public static final int KEYCODE_MEDIA_PLAY_PAUSE = 85;
+    public static final int KEYCODE_MEDIA_STOP = 86;
+    public static final int KEYCODE_MEDIA_NEXT = 87;
+    public static final int KEYCODE_MEDIA_PREVIOUS = 88;
+    public static final int KEYCODE_MEDIA_REWIND = 89;
+    public static final int KEYCODE_MEDIA_FAST_FORWARD = 90;
+    public static final int KEYCODE_MEDIA_PLAY = 126;
+    public static final int KEYCODE_MEDIA_PAUSE = 127;
+    public static final int KEYCODE_MUSIC = 209;
+    public static final int KEYCODE_MEDIA_AUDIO_TRACK = 222;
+
+    /** {@code Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1} */
+    private static final int ICE_CREAM_SANDWICH_MR1 = 15;
+    /** {@code Build.VERSION_CODES.KITKAT} */
+    private static final int KITKAT = 19;
+
+    /**
+     * Prevent instantiation.
+     */
+    private KeyCodes() {
+        // Intentionally blank
+    }
+
+    /**
+     * Whether the keyCode represents a media button that we handle.
+     * 
+     * @param keyCode
+     *            The key code.
+     * @param sdkInt
+     *            The platform version, newer platforms have more media keys.
+     * @return
+     */
+    public static boolean isMediaButton(int keyCode, int sdkInt) {
+        //handle special keys for newer devices
+        if (sdkInt >= KITKAT && keyCode == KEYCODE_MEDIA_AUDIO_TRACK) {
+            return true;
+        } else if (sdkInt >= ICE_CREAM_SANDWICH_MR1 && keyCode == KEYCODE_MUSIC) {
+            return true;
+        }
+        return keyCode == KEYCODE_MEDIA_PLAY
+                || keyCode == KEYCODE_MEDIA_PAUSE
+                || keyCode == KEYCODE_MEDIA_PLAY_PAUSE
+                || keyCode == KEYCODE_MEDIA_NEXT
+                || keyCode == KEYCODE_MEDIA_PREVIOUS
+                || keyCode == KEYCODE_MEDIA_REWIND
+                || keyCode == KEYCODE_MEDIA_FAST_FORWARD
+                || keyCode == KEYCODE_HEADSETHOOK;
+        //not including KEYCODE_MEDIA_STOP because if something sends stop, it should actually stop the music
+        //todo: make sure that stop doesn't cause random music apps to open
+    }
+
+    /**
+     * Maps play and pause to play/pause, since we can't tell what the target
+     * supports.
+     * 
+     * @param keyCode
+     *            The key code.
+     * @return The key code to forward.
+     */
+    public static int getAdjustedKeyCode(int keyCode) {
+        if (keyCode == KEYCODE_MEDIA_PLAY || keyCode == KEYCODE_MEDIA_PAUSE) {
+            return KEYCODE_MEDIA_PLAY_PAUSE;
+        }
+        return keyCode;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides which media button events are routed at all, protecting routing
+ * from event storms. Two things are dropped:
+ * <ul>
+ * <li>Exact duplicates, the same down time, event time, key code and action
+ * as one of the last {@link #RECENT_EVENTS} events. We get every event twice
+ * when both the manifest receiver and the audio manager registration deliver
+ * it, and some headsets resend events.</li>
+ * <li>Presses over a per key token bucket that holds {@link #BURST} presses
+ * and refills one every {@link #REFILL_MILLIS}. Only a new down time counts
+ * as a press, so key repeats and the up event follow whatever happened to
+ * the press's first event.</li>
+ * </ul>
+ * Everything lives in small fixed arrays, like {@link GestureSessionCache}.
+ *
+ * @author James Hartig
+ */
+public final class KeyEventAdmission {
+
+    /**
+     * The outcome of {@link KeyEventAdmission#admit}.
+     */
+    public enum Result {
+        ADMITTED,
+        DUPLICATE,
+        RATE_LIMITED
+    }
+
+    /**
+     * How many recent events duplicates are looked for in.
+     */
+    public static final int RECENT_EVENTS = 16;
+
+    /**
+     * Presses of one key allowed back to back.
+     */
+    public static final int BURST = 8;
+
+    /**
+     * How often a key gets another press back.
+     */
+    public static final long REFILL_MILLIS = 250;
+
+    /**
+     * How many keys have their own bucket. There are only a handful of media
+     * keys, the least recently used one is replaced.
+     */
+    private static final int KEYS = 8;
+
+    private final long[] recentDownTimes = new long[RECENT_EVENTS];
+    private final long[] recentEventTimes = new long[RECENT_EVENTS];
+    private final int[] recentKeys = new int[RECENT_EVENTS];
+    private int recentCount;
+    private int recentNext;
+
+    private final int[] bucketKeys = new int[KEYS];
+    private final double[] tokens = new double[KEYS];
+    private final long[] refilledAt = new long[KEYS];
+    /** Down time of the last press admitted, per bucket. */
+    private final long[] admittedDownTimes = new long[KEYS];
+    /** Down time of the last press dropped, per bucket. */
+    private final long[] droppedDownTimes = new long[KEYS];
+    private int bucketCount;
+
+    private int admitted;
+    private int duplicates;
+    private int rateLimited;
+
+    /**
+     * Decides whether an event is routed.
+     *
+     * @param downTime
+     *            The key event's down time.
+     * @param eventTime
+     *            The key event's event time.
+     * @param keyCode
+     *            The key code.
+     * @param action
+     *            The key event's action, 0 for down and 1 for up.
+     * @param now
+     *            The current time, on the same clock as {@code eventTime}.
+     * @return Whether to route it, or why not.
+     */
+    public synchronized Result admit(long downTime, long eventTime, int keyCode, int action, long now) {
+        // Key code and action packed together, both are small
+        int key = keyCode << 8 | action & 0xff;
+        for (int i = 0; i < recentCount; i++) {
+            if (recentKeys[i] == key && recentEventTimes[i] == eventTime && recentDownTimes[i] == downTime) {
+                duplicates++;
+                return Result.DUPLICATE;
+            }
+        }
+        recentDownTimes[recentNext] = downTime;
+        recentEventTimes[recentNext] = eventTime;
+        recentKeys[recentNext] = key;
+        recentNext = (recentNext + 1) % RECENT_EVENTS;
+        if (recentCount < RECENT_EVENTS) {
+            recentCount++;
+        }
+
+        int bucket = findBucket(keyCode, now);
+        if (downTime == admittedDownTimes[bucket]) {
+            admitted++;
+            return Result.ADMITTED;
+        }
+        if (downTime == droppedDownTimes[bucket]) {
+            rateLimited++;
+            return Result.RATE_LIMITED;
+        }
+        // A new press
+        tokens[bucket] = Math.min(BURST, tokens[bucket] + (double) Math.max(0, now - refilledAt[bucket])
+                / REFILL_MILLIS);
+        refilledAt[bucket] = now;
+        if (tokens[bucket] < 1) {
+            droppedDownTimes[bucket] = downTime;
+            rateLimited++;
+            return Result.RATE_LIMITED;
+        }
+        tokens[bucket] -= 1;
+        admittedDownTimes[bucket] = downTime;
+        admitted++;
+        return Result.ADMITTED;
+    }
+
+    /**
+     * @return The bucket for {@code keyCode}, creating a full one if needed.
+     */
+    private int findBucket(int keyCode, long now) {
+        int oldest = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            if (bucketKeys[i] == keyCode) {
+                return i;
+            }
+            if (refilledAt[i] < refilledAt[oldest]) {
+                oldest = i;
+            }
+        }
+        int bucket = bucketCount < KEYS ? bucketCount++ : oldest;
+        bucketKeys[bucket] = keyCode;
+        tokens[bucket] = BURST;
+        refilledAt[bucket] = now;
+        admittedDownTimes[bucket] = -1;
+        droppedDownTimes[bucket] = -1;
+        return bucket;
+    }
+
+    /**
+     * Prints the admission counters.
+     *
+     * @param writer
+     *            Where to print.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Key admission: admitted=" + admitted + " duplicates=" + duplicates + " rateLimited="
+                + rateLimited);
+    }
+
+    /**
+     * Clears the admission counters.
+     */
+    public synchronized void reset() {
+        admitted = 0;
+        duplicates = 0;
+        rateLimited = 0;
+    }
+
+    /**
+     * Forgets the recent events and the buckets as well as the counters, e.g.
+     * when the clock they were measured on is gone.
+     */
+    public synchronized void clear() {
+        recentCount = 0;
+        recentNext = 0;
+        bucketCount = 0;
+        reset();
+    }
+}
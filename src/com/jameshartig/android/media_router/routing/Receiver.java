@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+/**
+ * A media button {@code BroadcastReceiver} as seen by the
+ * {@link RoutingEngine}. Plain Java stand-in for a {@code ComponentName} so
+ * routing can run without Android.
+ *
+ * @author James Hartig
+ */
+public final class Receiver {
+
+    private final String packageName;
+    private final String className;
+
+    public Receiver(String packageName, String className) {
+        if (packageName == null || className == null) {
+            throw new NullPointerException("packageName and className are required");
+        }
+        this.packageName = packageName;
+        this.className = className;
+    }
+
+    /**
+     * Parses the format written by {@link #flattenToString()}, which is the
+     * same as {@code ComponentName#flattenToString()}.
+     *
+     * @param flattened
+     *            The flattened receiver, may be null.
+     * @return The receiver, or null if {@code flattened} isn't valid.
+     */
+    public static Receiver unflattenFromString(String flattened) {
+        if (flattened == null) {
+            return null;
+        }
+        int separator = flattened.indexOf('/');
+        if (separator < 0 || separator + 1 >= flattened.length()) {
+            return null;
+        }
+        String packageName = flattened.substring(0, separator);
+        String className = flattened.substring(separator + 1);
+        if (className.length() > 0 && className.charAt(0) == '.') {
+            className = packageName + className;
+        }
+        return new Receiver(packageName, className);
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String flattenToString() {
+        return packageName + "/" + className;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Receiver)) {
+            return false;
+        }
+        Receiver other = (Receiver) o;
+        return packageName.equals(other.packageName) && className.equals(other.className);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * packageName.hashCode() + className.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return flattenToString();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+/**
+ * What to do with a media button event, as decided by a
+ * {@link RoutingPolicy}. The same decision applies to the down and up events
+ * of a press; the key is only forwarded on up.
+ *
+ * @author James Hartig
+ */
+public final class RoutingDecision {
+
+    /**
+     * What the receiver does with the event.
+     */
+    public enum Action {
+        /** Abort the broadcast and forward the key to the target. */
+        FORWARD,
+        /** Abort the broadcast and show the selector. */
+        PROMPT,
+        /** Abort the broadcast and do nothing else. */
+        CONSUME,
+        /** Let the broadcast continue to other receivers. */
+        PASS
+    }
+
+    /**
+     * Which rule produced the decision. The ordinal is stable and used in
+     * stats and traces, so only add new paths at the end.
+     */
+    public enum Path {
+        LAST_RECEIVER_SERVICE(Action.FORWARD, false),
+        LAST_RECEIVER_TASK(Action.FORWARD, false),
+        FOREGROUND_SERVICE(Action.FORWARD, false),
+        NO_FOREGROUND_SERVICE(Action.PASS, false),
+        FOREGROUND_TASK(Action.FORWARD, true),
+        IGNORED(Action.CONSUME, false),
+        NO_RECEIVERS(Action.CONSUME, false),
+        SOLE_RECEIVER(Action.FORWARD, false),
+        PROMPT(Action.PROMPT, false),
+        NOT_ROUTED(Action.PASS, false),
+        /** Forwarded to the previous target first, and routed afterwards. */
+        SPECULATIVE(Action.FORWARD, false),
+        /** Forwarded to the player we saw start playing. */
+        ACTIVE_PLAYER(Action.FORWARD, false);
+
+        private final Action action;
+        private final boolean remember;
+
+        private Path(Action action, boolean remember) {
+            this.action = action;
+            this.remember = remember;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        /**
+         * @return Whether the target should be stored as the last receiver,
+         *         since the monitor service doesn't always see it.
+         */
+        public boolean isRemembered() {
+            return remember;
+        }
+    }
+
+    public static final RoutingDecision NO_FOREGROUND_SERVICE = new RoutingDecision(Path.NO_FOREGROUND_SERVICE, null);
+    public static final RoutingDecision IGNORED = new RoutingDecision(Path.IGNORED, null);
+    public static final RoutingDecision NO_RECEIVERS = new RoutingDecision(Path.NO_RECEIVERS, null);
+    public static final RoutingDecision PROMPT = new RoutingDecision(Path.PROMPT, null);
+    public static final RoutingDecision NOT_ROUTED = new RoutingDecision(Path.NOT_ROUTED, null);
+
+    private final Path path;
+    private final Receiver target;
+
+    private RoutingDecision(Path path, Receiver target) {
+        this.path = path;
+        this.target = target;
+    }
+
+    /**
+     * Creates a decision to forward to {@code target}.
+     *
+     * @param path
+     *            Must be a path with {@link Action#FORWARD}.
+     * @param target
+     *            The receiver to forward to.
+     * @return The decision.
+     */
+    public static RoutingDecision forward(Path path, Receiver target) {
+        if (path.getAction() != Action.FORWARD || target == null) {
+            throw new IllegalArgumentException("Forward decisions need a forward path and a target");
+        }
+        return new RoutingDecision(path, target);
+    }
+
+    /**
+     * Creates a decision from its parts, e.g. when reading one back.
+     *
+     * @param path
+     *            The path.
+     * @param target
+     *            The receiver to forward to. Required for paths with
+     *            {@link Action#FORWARD}, ignored otherwise.
+     * @return The decision.
+     */
+    public static RoutingDecision of(Path path, Receiver target) {
+        return path.getAction() == Action.FORWARD ? forward(path, target) : new RoutingDecision(path, null);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Action getAction() {
+        return path.getAction();
+    }
+
+    /**
+     * @return The receiver to forward to, or null unless the action is
+     *         {@link Action#FORWARD}.
+     */
+    public Receiver getTarget() {
+        return target;
+    }
+
+    @Override
+    public String toString() {
+        return target != null ? path + " -> " + target : path.toString();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+import java.util.List;
+
+/**
+ * Decides where a media button event goes by running a {@link RoutingInput}
+ * through an ordered chain of {@link RoutingPolicy}s. The first policy that
+ * returns a decision wins. Has no Android dependencies so it can be measured
+ * and tested on a plain JVM.
+ *
+ * @author James Hartig
+ */
+public final class RoutingEngine {
+
+    private final RoutingPolicy[] policies;
+
+    /**
+     * Creates an engine with the built-in policies.
+     */
+    public RoutingEngine() {
+        this(RoutingPolicies.defaults());
+    }
+
+    /**
+     * @param policies
+     *            The policies to apply, in order. Copied.
+     */
+    public RoutingEngine(List<RoutingPolicy> policies) {
+        this.policies = policies.toArray(new RoutingPolicy[policies.size()]);
+    }
+
+    /**
+     * Routes an event.
+     *
+     * @param input
+     *            The state to route with.
+     * @return The decision of the first policy that made one, or
+     *         {@link RoutingDecision#NOT_ROUTED} if none did.
+     */
+    public RoutingDecision route(RoutingInput input) {
+        for (RoutingPolicy policy : policies) {
+            RoutingDecision decision = policy.decide(input);
+            if (decision != null) {
+                return decision;
+            }
+        }
+        return RoutingDecision.NOT_ROUTED;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Everything the {@link RoutingEngine} needs to route one media button event.
+ * Callers must not modify the collections after handing them over.
+ *
+ * @author James Hartig
+ */
+public final class RoutingInput {
+
+    private final List<Receiver> receivers;
+    private final Set<String> foregroundServicePackages;
+    private final String topPackageName;
+    private final boolean musicActive;
+    private final Receiver lastReceiver;
+    private final boolean ignoreNewReceiver;
+    private final String activePlayerPackage;
+
+    /**
+     * @param receivers
+     *            The visible media button receivers in priority order, not
+     *            including our own.
+     * @param foregroundServicePackages
+     *            Packages with a started foreground service, or null if the
+     *            running services weren't needed.
+     * @param topPackageName
+     *            Package of the top task, or null.
+     * @param musicActive
+     *            Whether music is currently playing.
+     * @param lastReceiver
+     *            The receiver we last forwarded to, or null.
+     * @param ignoreNewReceiver
+     *            Whether the user asked to never be prompted.
+     */
+    public RoutingInput(List<Receiver> receivers, Set<String> foregroundServicePackages, String topPackageName,
+            boolean musicActive, Receiver lastReceiver, boolean ignoreNewReceiver) {
+        this(receivers, foregroundServicePackages, topPackageName, musicActive, lastReceiver, ignoreNewReceiver, null);
+    }
+
+    /**
+     * @param receivers
+     *            The visible media button receivers in priority order, not
+     *            including our own.
+     * @param foregroundServicePackages
+     *            Packages with a started foreground service, or null if the
+     *            running services weren't needed.
+     * @param topPackageName
+     *            Package of the top task, or null.
+     * @param musicActive
+     *            Whether music is currently playing.
+     * @param lastReceiver
+     *            The receiver we last forwarded to, or null.
+     * @param ignoreNewReceiver
+     *            Whether the user asked to never be prompted.
+     * @param activePlayerPackage
+     *            The package known to have started playing last, or null.
+     */
+    public RoutingInput(List<Receiver> receivers, Set<String> foregroundServicePackages, String topPackageName,
+            boolean musicActive, Receiver lastReceiver, boolean ignoreNewReceiver, String activePlayerPackage) {
+        this.receivers = receivers != null ? receivers : Collections.<Receiver> emptyList();
+        this.foregroundServicePackages = foregroundServicePackages != null ? foregroundServicePackages : Collections
+                .<String> emptySet();
+        this.topPackageName = topPackageName;
+        this.musicActive = musicActive;
+        this.lastReceiver = lastReceiver;
+        this.ignoreNewReceiver = ignoreNewReceiver;
+        this.activePlayerPackage = activePlayerPackage;
+    }
+
+    public List<Receiver> getReceivers() {
+        return receivers;
+    }
+
+    public Set<String> getForegroundServicePackages() {
+        return foregroundServicePackages;
+    }
+
+    public String getTopPackageName() {
+        return topPackageName;
+    }
+
+    public boolean isMusicActive() {
+        return musicActive;
+    }
+
+    public Receiver getLastReceiver() {
+        return lastReceiver;
+    }
+
+    public boolean isIgnoreNewReceiver() {
+        return ignoreNewReceiver;
+    }
+
+    public String getActivePlayerPackage() {
+        return activePlayerPackage;
+    }
+
+    /**
+     * @return Whether {@code packageName} has a started foreground service.
+     */
+    public boolean hasForegroundService(String packageName) {
+        return packageName != null && foregroundServicePackages.contains(packageName);
+    }
+
+    /**
+     * @return Whether {@code packageName} owns the top task.
+     */
+    public boolean isTopPackage(String packageName) {
+        return packageName != null && packageName.equals(topPackageName);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+
+/**
+ * The built-in routing policies, in the order media button router has always
+ * applied them, after the tracked active player. That is only known once
+ * playback confirmed it, and tells us what is playing even when several apps
+ * have a foreground service.
+ *
+ * @author James Hartig
+ */
+public final class RoutingPolicies {
+
+    /**
+     * If music is active, the receiver of the app we saw start playing, if we
+     * know it.
+     */
+    public static final RoutingPolicy ACTIVE_PLAYER = new RoutingPolicy() {
+
+        @Override
+        public RoutingDecision decide(RoutingInput input) {
+            if (!input.isMusicActive()) {
+                return null;
+            }
+            Receiver receiver = findReceiver(input.getReceivers(), input.getActivePlayerPackage());
+            return receiver != null ? RoutingDecision.forward(Path.ACTIVE_PLAYER, receiver) : null;
+        }
+    };
+
+    /**
+     * If music is active we assume the last receiver is the thing playing
+     * music, as long as it still has a foreground service or the top task.
+     */
+    public static final RoutingPolicy LAST_RECEIVER = new RoutingPolicy() {
+
+        @Override
+        public RoutingDecision decide(RoutingInput input) {
+            Receiver lastReceiver = input.getLastReceiver();
+            if (!input.isMusicActive() || lastReceiver == null) {
+                return null;
+            }
+            if (input.hasForegroundService(lastReceiver.getPackageName())) {
+                return RoutingDecision.forward(Path.LAST_RECEIVER_SERVICE, lastReceiver);
+            }
+            if (input.isTopPackage(lastReceiver.getPackageName())) {
+                return RoutingDecision.forward(Path.LAST_RECEIVER_TASK, lastReceiver);
+            }
+            return null;
+        }
+    };
+
+    /**
+     * If music is active, the highest priority receiver with a foreground
+     * service.
+     */
+    public static final RoutingPolicy FOREGROUND_SERVICE = new RoutingPolicy() {
+
+        @Override
+        public RoutingDecision decide(RoutingInput input) {
+            if (!input.isMusicActive()) {
+                return null;
+            }
+            List<Receiver> receivers = input.getReceivers();
+            for (int i = 0, size = receivers.size(); i < size; i++) {
+                Receiver receiver = receivers.get(i);
+                if (input.hasForegroundService(receiver.getPackageName())) {
+                    return RoutingDecision.forward(Path.FOREGROUND_SERVICE, receiver);
+                }
+            }
+            return null;
+        }
+    };
+
+    /**
+     * If music is active and we couldn't tell what is playing it, something
+     * we don't know about is, so let it have the press.
+     */
+    public static final RoutingPolicy UNKNOWN_PLAYER = new RoutingPolicy() {
+
+        @Override
+        public RoutingDecision decide(RoutingInput input) {
+            return input.isMusicActive() ? RoutingDecision.NO_FOREGROUND_SERVICE : null;
+        }
+    };
+
+    /**
+     * The receiver belonging to the app that is immediately foreground.
+     */
+    public static final RoutingPolicy FOREGROUND_TASK = new RoutingPolicy() {
+
+        @Override
+        public RoutingDecision decide(RoutingInput input) {
+            if (input.getTopPackageName() == null) {
+                return null;
+            }
+            List<Receiver> receivers = input.getReceivers();
+            for (int i = 0, size = receivers.size(); i < size; i++) {
+                Receiver receiver = receivers.get(i);
+                if (input.isTopPackage(receiver.getPackageName())) {
+                    return RoutingDecision.forward(Path.FOREGROUND_TASK, receiver);
+                }
+            }
+            return null;
+        }
+    };
+
+    /**
+     * The user asked never to be prompted.
+     */
+    public static final RoutingPolicy IGNORE = new RoutingPolicy() {
+
+        @Override
+        public RoutingDecision decide(RoutingInput input) {
+            return input.isIgnoreNewReceiver() ? RoutingDecision.IGNORED : null;
+        }
+    };
+
+    /**
+     * Nothing to choose from, or only one thing to choose so skip the prompt.
+     */
+    public static final RoutingPolicy SOLE_RECEIVER = new RoutingPolicy() {
+
+        @Override
+        public RoutingDecision decide(RoutingInput input) {
+            List<Receiver> receivers = input.getReceivers();
+            if (receivers.isEmpty()) {
+                return RoutingDecision.NO_RECEIVERS;
+            }
+            if (receivers.size() == 1) {
+                return RoutingDecision.forward(Path.SOLE_RECEIVER, receivers.get(0));
+            }
+            return null;
+        }
+    };
+
+    /**
+     * Let the user pick.
+     */
+    public static final RoutingPolicy PROMPT = new RoutingPolicy() {
+
+        @Override
+        public RoutingDecision decide(RoutingInput input) {
+            return RoutingDecision.PROMPT;
+        }
+    };
+
+    /**
+     * Prevent instantiation.
+     */
+    private RoutingPolicies() {
+        // Intentionally blank
+    }
+
+    /**
+     * @return A new modifiable list of the built-in policies in order.
+     */
+    public static List<RoutingPolicy> defaults() {
+        List<RoutingPolicy> policies = new ArrayList<RoutingPolicy>();
+        Collections.addAll(policies, ACTIVE_PLAYER, LAST_RECEIVER, FOREGROUND_SERVICE, UNKNOWN_PLAYER, FOREGROUND_TASK,
+                IGNORE, SOLE_RECEIVER, PROMPT);
+        return policies;
+    }
+
+    /**
+     * @return The highest priority receiver in {@code packageName}, or null.
+     */
+    public static Receiver findReceiver(List<Receiver> receivers, String packageName) {
+        if (packageName == null) {
+            return null;
+        }
+        for (int i = 0, size = receivers.size(); i < size; i++) {
+            Receiver receiver = receivers.get(i);
+            if (packageName.equals(receiver.getPackageName())) {
+                return receiver;
+            }
+        }
+        return null;
+    }
+}
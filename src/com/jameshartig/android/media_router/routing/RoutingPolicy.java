@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+/**
+ * One step in the {@link RoutingEngine} chain.
+ *
+ * @author James Hartig
+ */
+public interface RoutingPolicy {
+
+    /**
+     * Decides what to do with an event, or defers to the next policy.
+     *
+     * @param input
+     *            The state to route with.
+     * @return The decision, or null if this policy doesn't apply.
+     */
+    RoutingDecision decide(RoutingInput input);
+}
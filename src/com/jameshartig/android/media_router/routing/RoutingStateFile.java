@@ -0,0 +1,416 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed-layout binary file holding the routing state: the last receiver, the
+ * ignore flag, per-receiver usage counters and the most recent receivers.
+ * Accessed through a {@code MappedByteBuffer}, so loading it is a single
+ * small read with no parsing, and writes land in the page cache right away
+ * where they survive the process dying.
+ *
+ * The file holds two copies of the record. Each write goes to the older copy
+ * with a higher sequence number and a CRC32, so a write torn by a crash
+ * leaves the other copy intact, and opening picks the newest valid copy.
+ * {@link #force()} flushes to the storage device and is left to the caller
+ * to schedule.
+ *
+ * Record layout, little endian:
+ *
+ * <pre>
+ *   0  int    magic
+ *   4  short  version
+ *   6  short  flags
+ *   8  int    sequence
+ *  12  int    CRC32 of the whole record except these four bytes
+ *  16  short  last receiver length, then up to 256 bytes of UTF-8
+ * 274  int    history head
+ * 278  int[]  history, receiver name hashes, newest at head - 1
+ * 310  slot[] usage counters: int name hash, int count, long last used
+ * </pre>
+ *
+ * Receivers are identified in the history and counters by the
+ * {@code hashCode()} of their flattened component name, which keeps the
+ * layout fixed. A last receiver too long for the record isn't stored, only
+ * flagged, see {@link #isLastReceiverTooLong()}. Version 1 records, whose
+ * CRC only covered the bytes from 16 on, are still read.
+ *
+ * @author James Hartig
+ */
+public final class RoutingStateFile {
+
+    public static final int MAGIC = 0x4d425253; // MBRS
+    public static final short VERSION = 2;
+
+    /**
+     * The version whose CRC didn't cover the header.
+     */
+    private static final short VERSION_PAYLOAD_CRC = 1;
+
+    static final int RECORD_SIZE = 512;
+    static final int FILE_SIZE = RECORD_SIZE * 2;
+
+    public static final int HISTORY_SIZE = 8;
+    public static final int COUNTER_SLOTS = 12;
+    static final int MAX_RECEIVER_BYTES = 256;
+
+    private static final short FLAG_IGNORE_NEW_RECEIVER = 1;
+    private static final short FLAG_RECEIVER_TOO_LONG = 2;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_FLAGS = 6;
+    private static final int OFFSET_SEQUENCE = 8;
+    private static final int OFFSET_CRC = 12;
+    private static final int OFFSET_PAYLOAD = 16;
+    private static final int OFFSET_RECEIVER = 16;
+    private static final int OFFSET_HISTORY_HEAD = OFFSET_RECEIVER + 2 + MAX_RECEIVER_BYTES;
+    private static final int OFFSET_HISTORY = OFFSET_HISTORY_HEAD + 4;
+    private static final int OFFSET_COUNTERS = OFFSET_HISTORY + HISTORY_SIZE * 4;
+    private static final int COUNTER_SLOT_SIZE = 16;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final byte[] scratch = new byte[RECORD_SIZE];
+    private final CRC32 crc = new CRC32();
+
+    private int sequence;
+    private int activeRecord;
+    private boolean hasRecord;
+    private boolean loaded;
+
+    private String lastReceiver;
+    private boolean receiverTooLong;
+    private boolean ignoreNewReceiver;
+    private int historyHead;
+    private final int[] history = new int[HISTORY_SIZE];
+    private final int[] counterHashes = new int[COUNTER_SLOTS];
+    private final int[] counterCounts = new int[COUNTER_SLOTS];
+    private final long[] counterLastUsed = new long[COUNTER_SLOTS];
+
+    private RoutingStateFile(RandomAccessFile file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        load();
+    }
+
+    /**
+     * Opens or creates the state file.
+     *
+     * @param path
+     *            Where the file lives.
+     * @return The opened file. Check {@link #isLoaded()} to see whether it
+     *         held valid state.
+     * @throws IOException
+     *             If the file can't be created or mapped.
+     */
+    public static RoutingStateFile open(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            if (file.length() != FILE_SIZE) {
+                file.setLength(FILE_SIZE);
+            }
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            return new RoutingStateFile(file, buffer);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Whether a valid record was found when opening. False for a new
+     *         or corrupt file, in which case the state starts empty.
+     */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized String getLastReceiver() {
+        return lastReceiver;
+    }
+
+    /**
+     * @return Whether the last receiver set was longer than
+     *         {@link #MAX_RECEIVER_BYTES} and so isn't in the file. After
+     *         reopening, {@link #getLastReceiver()} is null and the caller has
+     *         to keep the name elsewhere.
+     */
+    public synchronized boolean isLastReceiverTooLong() {
+        return receiverTooLong;
+    }
+
+    /**
+     * @return Whether {@code flattenedReceiver} fits in the record.
+     */
+    public static boolean canStore(String flattenedReceiver) {
+        return encode(flattenedReceiver).length <= MAX_RECEIVER_BYTES;
+    }
+
+    public synchronized boolean isIgnoringNewReceivers() {
+        return ignoreNewReceiver;
+    }
+
+    /**
+     * Sets the last receiver and clears the ignore flag.
+     *
+     * @param flattenedReceiver
+     *            The flattened component name, or null to clear it.
+     * @return Whether anything changed.
+     */
+    public synchronized boolean setLastReceiver(String flattenedReceiver) {
+        if (!ignoreNewReceiver && (flattenedReceiver == null ? lastReceiver == null : flattenedReceiver
+                .equals(lastReceiver))) {
+            return false;
+        }
+        lastReceiver = flattenedReceiver;
+        receiverTooLong = flattenedReceiver != null && !canStore(flattenedReceiver);
+        ignoreNewReceiver = false;
+        write();
+        return true;
+    }
+
+    /**
+     * Sets the ignore flag and clears the last receiver.
+     *
+     * @return Whether anything changed.
+     */
+    public synchronized boolean ignoreNewReceivers() {
+        if (ignoreNewReceiver) {
+            return false;
+        }
+        lastReceiver = null;
+        receiverTooLong = false;
+        ignoreNewReceiver = true;
+        write();
+        return true;
+    }
+
+    /**
+     * Counts a forward to a receiver and adds it to the history.
+     *
+     * @param flattenedReceiver
+     *            The flattened component name.
+     * @param now
+     *            Wall clock time in milliseconds.
+     */
+    public synchronized void recordUse(String flattenedReceiver, long now) {
+        int hash = flattenedReceiver.hashCode();
+        int slot = findSlot(hash);
+        if (slot < 0) {
+            // Evict the least recently used receiver
+            slot = 0;
+            for (int i = 1; i < COUNTER_SLOTS; i++) {
+                if (counterLastUsed[i] < counterLastUsed[slot]) {
+                    slot = i;
+                }
+            }
+            counterHashes[slot] = hash;
+            counterCounts[slot] = 0;
+        }
+        if (counterCounts[slot] < Integer.MAX_VALUE) {
+            counterCounts[slot]++;
+        }
+        counterLastUsed[slot] = now;
+        history[historyHead] = hash;
+        historyHead = (historyHead + 1) % HISTORY_SIZE;
+        write();
+    }
+
+    /**
+     * @return How many times we forwarded to the receiver, 0 if it isn't one
+     *         of the {@link #COUNTER_SLOTS} most recently used.
+     */
+    public synchronized int getUseCount(String flattenedReceiver) {
+        int slot = findSlot(flattenedReceiver.hashCode());
+        return slot >= 0 ? counterCounts[slot] : 0;
+    }
+
+    /**
+     * @return When we last forwarded to the receiver, 0 if unknown.
+     */
+    public synchronized long getLastUsed(String flattenedReceiver) {
+        int slot = findSlot(flattenedReceiver.hashCode());
+        return slot >= 0 ? counterLastUsed[slot] : 0;
+    }
+
+    /**
+     * @return The name hashes of the most recently used receivers, newest
+     *         first. Empty entries are 0.
+     */
+    public synchronized int[] getHistory() {
+        int[] ordered = new int[HISTORY_SIZE];
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            ordered[i] = history[(historyHead - 1 - i + HISTORY_SIZE) % HISTORY_SIZE];
+        }
+        return ordered;
+    }
+
+    /**
+     * Flushes written records to the storage device. Blocks, so call it off
+     * the main thread.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Unmaps as far as Java allows and closes the file.
+     */
+    public synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    private int findSlot(int hash) {
+        for (int i = 0; i < COUNTER_SLOTS; i++) {
+            if (counterHashes[i] == hash && counterCounts[i] > 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void load() {
+        int best = -1;
+        int bestSequence = 0;
+        for (int record = 0; record < 2; record++) {
+            int base = record * RECORD_SIZE;
+            if (!isValid(base)) {
+                continue;
+            }
+            int recordSequence = buffer.getInt(base + OFFSET_SEQUENCE);
+            // Compare with wraparound in mind
+            if (best < 0 || recordSequence - bestSequence > 0) {
+                best = record;
+                bestSequence = recordSequence;
+            }
+        }
+        if (best < 0) {
+            return;
+        }
+        int base = best * RECORD_SIZE;
+        activeRecord = best;
+        sequence = bestSequence;
+        short flags = buffer.getShort(base + OFFSET_FLAGS);
+        ignoreNewReceiver = (flags & FLAG_IGNORE_NEW_RECEIVER) != 0;
+        receiverTooLong = (flags & FLAG_RECEIVER_TOO_LONG) != 0;
+        int receiverLength = buffer.getShort(base + OFFSET_RECEIVER);
+        if (receiverLength > 0 && receiverLength <= MAX_RECEIVER_BYTES) {
+            byte[] bytes = new byte[receiverLength];
+            for (int i = 0; i < receiverLength; i++) {
+                bytes[i] = buffer.get(base + OFFSET_RECEIVER + 2 + i);
+            }
+            lastReceiver = decode(bytes);
+        }
+        hasRecord = true;
+        historyHead = Math.abs(buffer.getInt(base + OFFSET_HISTORY_HEAD)) % HISTORY_SIZE;
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            history[i] = buffer.getInt(base + OFFSET_HISTORY + i * 4);
+        }
+        for (int i = 0; i < COUNTER_SLOTS; i++) {
+            int offset = base + OFFSET_COUNTERS + i * COUNTER_SLOT_SIZE;
+            counterHashes[i] = buffer.getInt(offset);
+            counterCounts[i] = buffer.getInt(offset + 4);
+            counterLastUsed[i] = buffer.getLong(offset + 8);
+        }
+        loaded = true;
+    }
+
+    private boolean isValid(int base) {
+        short version = buffer.getShort(base + OFFSET_VERSION);
+        if (buffer.getInt(base + OFFSET_MAGIC) != MAGIC || version != VERSION && version != VERSION_PAYLOAD_CRC) {
+            return false;
+        }
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            scratch[i] = buffer.get(base + i);
+        }
+        crc.reset();
+        if (version != VERSION_PAYLOAD_CRC) {
+            crc.update(scratch, 0, OFFSET_CRC);
+        }
+        crc.update(scratch, OFFSET_PAYLOAD, RECORD_SIZE - OFFSET_PAYLOAD);
+        return (int) crc.getValue() == buffer.getInt(base + OFFSET_CRC);
+    }
+
+    /**
+     * Serializes the state into the inactive record and makes it active.
+     */
+    private void write() {
+        ByteBuffer record = ByteBuffer.wrap(scratch).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            scratch[i] = 0;
+        }
+        byte[] receiverBytes = lastReceiver != null && !receiverTooLong ? encode(lastReceiver) : null;
+        if (receiverBytes != null) {
+            record.putShort(OFFSET_RECEIVER, (short) receiverBytes.length);
+            System.arraycopy(receiverBytes, 0, scratch, OFFSET_RECEIVER + 2, receiverBytes.length);
+        }
+        record.putInt(OFFSET_HISTORY_HEAD, historyHead);
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            record.putInt(OFFSET_HISTORY + i * 4, history[i]);
+        }
+        for (int i = 0; i < COUNTER_SLOTS; i++) {
+            int offset = OFFSET_COUNTERS + i * COUNTER_SLOT_SIZE;
+            record.putInt(offset, counterHashes[i]);
+            record.putInt(offset + 4, counterCounts[i]);
+            record.putLong(offset + 8, counterLastUsed[i]);
+        }
+        sequence++;
+        record.putInt(OFFSET_MAGIC, MAGIC);
+        record.putShort(OFFSET_VERSION, VERSION);
+        record.putShort(OFFSET_FLAGS, (short) ((ignoreNewReceiver ? FLAG_IGNORE_NEW_RECEIVER : 0)
+                | (receiverTooLong ? FLAG_RECEIVER_TOO_LONG : 0)));
+        record.putInt(OFFSET_SEQUENCE, sequence);
+        crc.reset();
+        crc.update(scratch, 0, OFFSET_CRC);
+        crc.update(scratch, OFFSET_PAYLOAD, RECORD_SIZE - OFFSET_PAYLOAD);
+        record.putInt(OFFSET_CRC, (int) crc.getValue());
+
+        int target = hasRecord ? 1 - activeRecord : 0;
+        buffer.position(target * RECORD_SIZE);
+        buffer.put(scratch, 0, RECORD_SIZE);
+        activeRecord = target;
+        hasRecord = true;
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String decode(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
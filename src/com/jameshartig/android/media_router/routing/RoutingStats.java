@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+import java.io.PrintWriter;
+
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+
+/**
+ * Process-wide latency histograms for the media button path, per stage and
+ * per routing outcome. Printed by {@code adb shell dumpsys activity service
+ * MediaButtonMonitorService}.
+ *
+ * @author James Hartig
+ */
+public final class RoutingStats {
+
+    /**
+     * The timed stages of routing one media button event.
+     */
+    public enum Stage {
+        /** Reading the last receiver and ignore flag from the routing state store. */
+        PREFERENCES,
+        /** Getting the media button receivers. */
+        RECEIVER_QUERY,
+        /** Getting the running services and top task. */
+        RUNNING_SERVICES,
+        /** Reading whether music is active from the tracker, or the audio manager once that is old. */
+        MUSIC_ACTIVE,
+        /** Running the routing engine. */
+        MATCHING,
+        /** Forwarding the key to the target receiver. */
+        FORWARD,
+        /** Starting the selector activity. */
+        SELECTOR_LAUNCH,
+        /** Storing the last receiver. */
+        STATE_WRITE,
+        /** From starting the selector activity to its first frame. */
+        SELECTOR_FIRST_FRAME
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final Path[] PATHS = Path.values();
+
+    private static final LatencyHistogram[] stageHistograms = newHistograms(STAGES.length);
+    private static final LatencyHistogram[] outcomeHistograms = newHistograms(PATHS.length);
+
+    /**
+     * Stage times of the event being routed on each thread, for the
+     * {@link FlightRecorder}.
+     */
+    private static final ThreadLocal<long[]> eventStages = new ThreadLocal<long[]>() {
+
+        @Override
+        protected long[] initialValue() {
+            return new long[STAGES.length];
+        }
+    };
+
+    /**
+     * Prevent instantiation.
+     */
+    private RoutingStats() {
+        // Intentionally blank
+    }
+
+    private static LatencyHistogram[] newHistograms(int count) {
+        LatencyHistogram[] histograms = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    /**
+     * Records how long a stage took.
+     *
+     * @param stage
+     *            The stage.
+     * @param startNanos
+     *            {@code System.nanoTime()} when the stage started.
+     * @return {@code System.nanoTime()} now, to start the next stage with.
+     */
+    public static long recordStage(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        stageHistograms[stage.ordinal()].record(now - startNanos);
+        eventStages.get()[stage.ordinal()] += now - startNanos;
+        return now;
+    }
+
+    /**
+     * Starts collecting the stage times of a new event on this thread.
+     */
+    public static void beginEvent() {
+        long[] stages = eventStages.get();
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = 0;
+        }
+    }
+
+    /**
+     * @return Nanoseconds spent per stage, by ordinal, since
+     *         {@link #beginEvent()} was last called on this thread. Don't
+     *         keep it, it is reused.
+     */
+    public static long[] getEventStages() {
+        return eventStages.get();
+    }
+
+    /**
+     * Records how long routing an event took from start to finish.
+     *
+     * @param path
+     *            How the event was routed.
+     * @param startNanos
+     *            {@code System.nanoTime()} when routing started.
+     */
+    public static void recordOutcome(Path path, long startNanos) {
+        outcomeHistograms[path.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public static LatencyHistogram getStageHistogram(Stage stage) {
+        return stageHistograms[stage.ordinal()];
+    }
+
+    public static LatencyHistogram getOutcomeHistogram(Path path) {
+        return outcomeHistograms[path.ordinal()];
+    }
+
+    /**
+     * Clears all histograms.
+     */
+    public static void reset() {
+        for (LatencyHistogram histogram : stageHistograms) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : outcomeHistograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Prints every non-empty histogram, in microseconds.
+     *
+     * @param writer
+     *            Where to print.
+     */
+    public static void dump(PrintWriter writer) {
+        writer.println("Routing latency by stage (us):");
+        for (Stage stage : STAGES) {
+            dumpHistogram(writer, stage.name(), stageHistograms[stage.ordinal()]);
+        }
+        writer.println("Routing latency by outcome (us):");
+        for (Path path : PATHS) {
+            dumpHistogram(writer, path.name(), outcomeHistograms[path.ordinal()]);
+        }
+    }
+
+    private static void dumpHistogram(PrintWriter writer, String name, LatencyHistogram histogram) {
+        long count = histogram.getCount();
+        if (count == 0) {
+            return;
+        }
+        writer.printf("  %-22s count=%d p50=%d p95=%d p99=%d max=%d%n", name, count,
+                histogram.getPercentile(50) / 1000, histogram.getPercentile(95) / 1000,
+                histogram.getPercentile(99) / 1000, histogram.getMax() / 1000);
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+
+/**
+ * A recorded sequence of routed key events, each with the decision that was
+ * made and, if the routing engine made it, the full {@link RoutingInput} it
+ * was routed with, so routing can be replayed and checked off the device.
+ * Events whose decision was reused or speculated are recorded without an
+ * input, see {@link Source}.
+ *
+ * The stream starts with {@link #MAGIC} and {@link #FORMAT_VERSION} and is
+ * followed by events until the end of the stream. Strings are written once
+ * and referred to by index afterwards, since the same receivers and services
+ * show up in every event. Version 1 traces, which only held engine
+ * decisions, are still read.
+ *
+ * @author James Hartig
+ */
+public final class RoutingTrace {
+
+    /**
+     * "MBRT".
+     */
+    public static final int MAGIC = 0x4d425254;
+
+    public static final int FORMAT_VERSION = 2;
+
+    /**
+     * The version before events had a {@link Source}.
+     */
+    private static final int FORMAT_VERSION_ENGINE_ONLY = 1;
+
+    /**
+     * Where an event's decision came from. Stored by ordinal, so only add
+     * new sources at the end.
+     */
+    public enum Source {
+        /** The routing engine, from the recorded input. */
+        ENGINE,
+        /** Reused from an earlier event of the same press. */
+        GESTURE_CACHE,
+        /** Sent where the previous press went, without routing. */
+        SPECULATION
+    }
+
+    private static final Source[] SOURCES = Source.values();
+
+    /**
+     * Marks a string that isn't in the table yet and follows inline.
+     */
+    private static final int NEW_STRING = -1;
+
+    /**
+     * Marks a null string.
+     */
+    private static final int NULL_STRING = -2;
+
+    /**
+     * Prevent instantiation.
+     */
+    private RoutingTrace() {
+        // Intentionally blank
+    }
+
+    /**
+     * One routed key event.
+     */
+    public static final class Event {
+        private final long eventTime;
+        private final int keyCode;
+        private final int action;
+        private final Source source;
+        private final RoutingInput input;
+        private final RoutingDecision decision;
+
+        /**
+         * Creates an event routed by the engine.
+         *
+         * @param eventTime
+         *            The key event's event time.
+         * @param keyCode
+         *            The adjusted key code.
+         * @param action
+         *            The key event's action.
+         * @param input
+         *            What it was routed with.
+         * @param decision
+         *            How it was routed.
+         */
+        public Event(long eventTime, int keyCode, int action, RoutingInput input, RoutingDecision decision) {
+            this(eventTime, keyCode, action, Source.ENGINE, input, decision);
+        }
+
+        /**
+         * @param eventTime
+         *            The key event's event time.
+         * @param keyCode
+         *            The adjusted key code.
+         * @param action
+         *            The key event's action.
+         * @param source
+         *            Where the decision came from.
+         * @param input
+         *            What it was routed with, required for
+         *            {@link Source#ENGINE} and ignored otherwise.
+         * @param decision
+         *            How it was routed.
+         */
+        public Event(long eventTime, int keyCode, int action, Source source, RoutingInput input,
+                RoutingDecision decision) {
+            if (source == Source.ENGINE && input == null) {
+                throw new IllegalArgumentException("Engine events need an input");
+            }
+            this.eventTime = eventTime;
+            this.keyCode = keyCode;
+            this.action = action;
+            this.source = source;
+            this.input = source == Source.ENGINE ? input : null;
+            this.decision = decision;
+        }
+
+        public long getEventTime() {
+            return eventTime;
+        }
+
+        public int getKeyCode() {
+            return keyCode;
+        }
+
+        public int getAction() {
+            return action;
+        }
+
+        public Source getSource() {
+            return source;
+        }
+
+        /**
+         * @return What the event was routed with, or null unless the source
+         *         is {@link Source#ENGINE}.
+         */
+        public RoutingInput getInput() {
+            return input;
+        }
+
+        public RoutingDecision getDecision() {
+            return decision;
+        }
+    }
+
+    /**
+     * Writes events to a stream. Not thread safe.
+     */
+    public static final class Writer {
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        /**
+         * Writes the header.
+         *
+         * @param out
+         *            Where to write.
+         * @throws IOException
+         *             If writing fails.
+         */
+        public Writer(DataOutputStream out) throws IOException {
+            this.out = out;
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+        }
+
+        public void write(Event event) throws IOException {
+            out.writeLong(event.getEventTime());
+            out.writeShort(event.getKeyCode());
+            out.writeByte(event.getAction());
+            out.writeByte(event.getSource().ordinal());
+            if (event.getSource() == Source.ENGINE) {
+                writeInput(event.getInput());
+            }
+
+            RoutingDecision decision = event.getDecision();
+            // By name, so paths can be added or reordered
+            writeString(decision.getPath().name());
+            writeReceiver(decision.getTarget());
+        }
+
+        private void writeInput(RoutingInput input) throws IOException {
+            List<Receiver> receivers = input.getReceivers();
+            out.writeShort(receivers.size());
+            for (int i = 0, size = receivers.size(); i < size; i++) {
+                writeReceiver(receivers.get(i));
+            }
+            Set<String> services = input.getForegroundServicePackages();
+            out.writeShort(services.size());
+            for (String packageName : services) {
+                writeString(packageName);
+            }
+            writeString(input.getTopPackageName());
+            out.writeBoolean(input.isMusicActive());
+            writeReceiver(input.getLastReceiver());
+            out.writeBoolean(input.isIgnoreNewReceiver());
+            writeString(input.getActivePlayerPackage());
+        }
+
+        private void writeReceiver(Receiver receiver) throws IOException {
+            writeString(receiver != null ? receiver.flattenToString() : null);
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(NULL_STRING);
+                return;
+            }
+            Integer index = strings.get(value);
+            if (index != null) {
+                out.writeInt(index);
+                return;
+            }
+            strings.put(value, strings.size());
+            out.writeInt(NEW_STRING);
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads events from a stream. Not thread safe.
+     */
+    public static final class Reader {
+        private final DataInputStream in;
+        private final int version;
+        private final List<String> strings = new ArrayList<String>();
+        /**
+         * Receivers already parsed, by their flattened form.
+         */
+        private final Map<String, Receiver> receivers = new HashMap<String, Receiver>();
+
+        /**
+         * Reads and checks the header.
+         *
+         * @param in
+         *            Where to read from.
+         * @throws IOException
+         *             If reading fails or this isn't a trace this version can
+         *             read.
+         */
+        public Reader(DataInputStream in) throws IOException {
+            this.in = in;
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a routing trace");
+            }
+            version = in.readInt();
+            if (version != FORMAT_VERSION && version != FORMAT_VERSION_ENGINE_ONLY) {
+                throw new IOException("Unsupported routing trace version " + version);
+            }
+        }
+
+        /**
+         * @return The next event, or null at the end of the stream.
+         * @throws IOException
+         *             If reading fails or the trace is corrupt.
+         */
+        public Event read() throws IOException {
+            long eventTime;
+            try {
+                eventTime = in.readLong();
+            } catch (EOFException e) {
+                return null;
+            }
+            int keyCode = in.readShort();
+            int action = in.readByte();
+            Source source = Source.ENGINE;
+            if (version != FORMAT_VERSION_ENGINE_ONLY) {
+                int ordinal = in.readByte();
+                if (ordinal < 0 || ordinal >= SOURCES.length) {
+                    throw new IOException("Unknown decision source " + ordinal);
+                }
+                source = SOURCES[ordinal];
+            }
+            RoutingInput input = source == Source.ENGINE ? readInput() : null;
+
+            String pathName = readString();
+            Path path;
+            try {
+                path = Path.valueOf(pathName);
+            } catch (RuntimeException e) {
+                throw new IOException("Unknown routing path " + pathName);
+            }
+            Receiver target = readReceiver();
+            RoutingDecision decision;
+            try {
+                decision = RoutingDecision.of(path, target);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Forward to " + path + " without a target");
+            }
+            return new Event(eventTime, keyCode, action, source, input, decision);
+        }
+
+        private RoutingInput readInput() throws IOException {
+            int receiverCount = in.readShort();
+            List<Receiver> inputReceivers = new ArrayList<Receiver>(receiverCount);
+            for (int i = 0; i < receiverCount; i++) {
+                inputReceivers.add(readReceiver());
+            }
+            int serviceCount = in.readShort();
+            Set<String> services = new LinkedHashSet<String>();
+            for (int i = 0; i < serviceCount; i++) {
+                services.add(readString());
+            }
+            String topPackageName = readString();
+            boolean musicActive = in.readBoolean();
+            Receiver lastReceiver = readReceiver();
+            boolean ignoreNewReceiver = in.readBoolean();
+            String activePlayerPackage = readString();
+            return new RoutingInput(Collections.unmodifiableList(inputReceivers),
+                    Collections.unmodifiableSet(services), topPackageName, musicActive, lastReceiver,
+                    ignoreNewReceiver, activePlayerPackage);
+        }
+
+        private Receiver readReceiver() throws IOException {
+            String flattened = readString();
+            if (flattened == null) {
+                return null;
+            }
+            Receiver receiver = receivers.get(flattened);
+            if (receiver == null) {
+                receiver = Receiver.unflattenFromString(flattened);
+                if (receiver == null) {
+                    throw new IOException("Invalid receiver " + flattened);
+                }
+                receivers.put(flattened, receiver);
+            }
+            return receiver;
+        }
+
+        private String readString() throws IOException {
+            int index = in.readInt();
+            if (index == NULL_STRING) {
+                return null;
+            }
+            if (index == NEW_STRING) {
+                String value = in.readUTF();
+                strings.add(value);
+                return value;
+            }
+            if (index < 0 || index >= strings.size()) {
+                throw new IOException("Invalid string index " + index);
+            }
+            return strings.get(index);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ServiceController;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.view.KeyEvent;
+
+import com.jameshartig.android.media_router.receivers.MediaButtonReceiver;
+import com.jameshartig.android.media_router.routing.FlightRecorder;
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+import com.jameshartig.android.media_router.routing.RoutingStats;
+import com.jameshartig.android.media_router.routing.RoutingTrace;
+
+/**
+ * The monitor service registering our receiver, keeping the music activity
+ * known between presses and its dump commands.
+ *
+ * @author James Hartig
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18, shadows = { ShadowDeviceActivityManager.class, ShadowDeviceAudioManager.class,
+        ShadowDeviceApplication.class, ShadowDeviceContext.class, ShadowDeviceKeyEvent.class })
+public class MediaButtonMonitorServiceTest {
+
+    private static final String RADIO = "com.example.radio";
+
+    private SyntheticDevice device;
+    private MediaButtonReceiver receiver;
+    private ResolveInfo radio;
+    private ServiceController<MediaButtonMonitorService> controller;
+    private MediaButtonMonitorService service;
+
+    @Before
+    public void setUp() {
+        device = new SyntheticDevice();
+        receiver = new MediaButtonReceiver();
+        device.addReceiver("com.example.player", 100);
+        radio = device.addReceiver(RADIO, 50);
+        device.setMusicActive(true);
+        device.addService(RADIO, true, true);
+        controller = Robolectric.buildService(MediaButtonMonitorService.class);
+        service = controller.attach().create().startCommand(0, 1).get();
+    }
+
+    @After
+    public void tearDown() {
+        device.release();
+    }
+
+    private String dump(String... args) {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        service.dump(null, writer, args);
+        writer.flush();
+        return out.toString();
+    }
+
+    @Test
+    public void registersOurReceiver() {
+        assertEquals(new ComponentName(device.getApplication(), MediaButtonReceiver.class), device
+                .getAudioManager().getMediaButtonReceiver());
+        controller.destroy();
+        assertNull(device.getAudioManager().getMediaButtonReceiver());
+    }
+
+    @Test
+    public void playbackBroadcastsSaveAudioQueries() {
+        // The player says it's playing after the key is forwarded
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        device.getApplication().sendBroadcast(
+                new Intent("com.android.music.playstatechanged").putExtra("playing", true));
+        assertTrue(MusicActivityTracker.isKnownActive());
+
+        device.advance(MusicActivityTracker.MAX_AGE_MILLIS / 2);
+        int queries = device.getAudioManager().getMusicActiveQueries();
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertEquals(4, device.getForwarded().size());
+        assertEquals(4, RoutingStats.getOutcomeHistogram(Path.FOREGROUND_SERVICE).getCount());
+        assertEquals(queries, device.getAudioManager().getMusicActiveQueries());
+    }
+
+    @Test
+    public void onePlayerStoppingChecksAgain() {
+        device.getApplication().sendBroadcast(
+                new Intent("com.android.music.playstatechanged").putExtra("playing", true));
+        // Another player is still playing
+        device.getApplication().sendBroadcast(
+                new Intent("com.android.music.playstatechanged").putExtra("playing", false));
+        assertFalse(MusicActivityTracker.isKnownActive());
+        int queries = device.getAudioManager().getMusicActiveQueries();
+        device.advance(MusicActivityTracker.SETTLE_MILLIS);
+        assertEquals(queries + 1, device.getAudioManager().getMusicActiveQueries());
+        assertTrue(MusicActivityTracker.isKnownActive());
+    }
+
+    @Test
+    public void registeredPlayerOnlyCountsOnceMusicStarts() {
+        ComponentName player = new ComponentName("com.example.player", "com.example.player.MediaButtonReceiver");
+        device.setMusicActive(false);
+        device.getApplication().sendBroadcast(
+                new Intent("com.android.music.playstatechanged").putExtra("playing", false));
+        device.advance(MusicActivityTracker.SETTLE_MILLIS);
+        assertFalse(MusicActivityTracker.isKnownActive());
+        ActivePlayerTracker.onMediaButtonReceiverRegistered(player);
+        assertNull(ActivePlayerTracker.getPlayingPackage());
+
+        // The player's own foreground service isn't needed, and outranks the
+        // radio's once it plays
+        device.setMusicActive(true);
+        device.getApplication().sendBroadcast(
+                new Intent("com.android.music.playstatechanged").putExtra("playing", true));
+        assertEquals(player.getPackageName(), ActivePlayerTracker.getPlayingPackage());
+        int queries = device.getActivityManager().getServiceQueries();
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertEquals(player, device.getForwarded().get(1).getComponent());
+        assertEquals(2, RoutingStats.getOutcomeHistogram(Path.ACTIVE_PLAYER).getCount());
+        assertEquals(queries, device.getActivityManager().getServiceQueries());
+    }
+
+    @Test
+    public void registrationWithoutPlaybackFallsBackToScan() {
+        ComponentName player = new ComponentName("com.example.player", "com.example.player.MediaButtonReceiver");
+        ActivePlayerTracker.onPlaybackStarted(new ComponentName(RADIO, RADIO + ".MediaButtonReceiver"));
+        ActivePlayerTracker.onMediaButtonReceiverRegistered(player);
+        assertNull(ActivePlayerTracker.getPlayingPackage());
+
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertEquals(radio.activityInfo.name, device.getForwarded().get(1).getComponent().getClassName());
+        assertEquals(2, RoutingStats.getOutcomeHistogram(Path.FOREGROUND_SERVICE).getCount());
+    }
+
+    @Test
+    public void dumpsEverySection() {
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        String dump = dump();
+        assertTrue(dump, dump.contains("Key delivery: delivered=0 missed=0 fellBack=0"));
+        assertTrue(dump, dump.contains("Speculative routing: target=null"));
+        assertTrue(dump, dump.contains("Key admission: admitted=2 duplicates=0 rateLimited=0"));
+        assertTrue(dump, dump.contains(radio.activityInfo.name));
+
+        dump("reset");
+        dump = dump();
+        assertTrue(dump, dump.contains("Key admission: admitted=0 duplicates=0 rateLimited=0"));
+        assertEquals(0, RoutingStats.getOutcomeHistogram(Path.FOREGROUND_SERVICE).getCount());
+    }
+
+    @Test
+    public void tracesToInternalStorage() throws IOException {
+        File file = new File(service.getFilesDir(), "routing_trace.bin");
+        dump("trace-start");
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        String dump = dump("trace-stop");
+        assertTrue(dump, dump.contains("stopped, 2 events in " + file));
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            RoutingTrace.Reader reader = new RoutingTrace.Reader(in);
+            RoutingTrace.Event down = reader.read();
+            assertEquals(RoutingTrace.Source.ENGINE, down.getSource());
+            assertEquals(KeyEvent.ACTION_DOWN, down.getAction());
+            assertEquals(Path.FOREGROUND_SERVICE, down.getDecision().getPath());
+            assertTrue(down.getInput().getForegroundServicePackages().contains(RADIO));
+            RoutingTrace.Event up = reader.read();
+            assertEquals(RoutingTrace.Source.GESTURE_CACHE, up.getSource());
+            assertEquals(KeyEvent.ACTION_UP, up.getAction());
+            assertNull(up.getInput());
+            assertNull(reader.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void exportsFlightRecorderToInternalStorage() throws IOException {
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        File file = new File(service.getFilesDir(), "flight_recorder.bin");
+        String dump = dump("export");
+        assertTrue(dump, dump.contains("Flight recorder written to " + file));
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            assertEquals(FlightRecorder.MAGIC, in.readInt());
+        } finally {
+            in.close();
+        }
+    }
+}
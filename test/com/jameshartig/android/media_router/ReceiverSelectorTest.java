@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ActivityController;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.os.Bundle;
+import android.view.KeyEvent;
+
+import com.jameshartig.android.media_router.receivers.MediaButtonReceiver;
+
+/**
+ * Pressing buttons while the selector is open: the presses still come in
+ * through {@link MediaButtonReceiver} and are handed to the selector, which
+ * moves through the players and forwards to the one picked.
+ *
+ * @author James Hartig
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18, shadows = { ShadowDeviceActivityManager.class, ShadowDeviceAudioManager.class,
+        ShadowDeviceApplication.class, ShadowDeviceContext.class, ShadowDeviceKeyEvent.class })
+public class ReceiverSelectorTest {
+
+    private SyntheticDevice device;
+    private MediaButtonReceiver receiver;
+    private ResolveInfo radio;
+    private ActivityController<ReceiverSelector> controller;
+
+    @Before
+    public void setUp() {
+        device = new SyntheticDevice();
+        receiver = new MediaButtonReceiver();
+        device.addReceiver("com.example.player", 100);
+        radio = device.addReceiver("com.example.radio", 50);
+        device.addReceiver("com.example.podcasts", 10);
+    }
+
+    @After
+    public void tearDown() {
+        device.release();
+    }
+
+    /**
+     * Presses play with nothing playing, and opens the selector the press
+     * started.
+     */
+    @SuppressWarnings("unchecked")
+    private ReceiverSelector showSelector(Class<? extends ReceiverSelector> expected) {
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        Intent started = Robolectric.getShadowApplication().getNextStartedActivity();
+        assertEquals(new ComponentName(device.getApplication(), expected), started.getComponent());
+        assertTrue(device.getForwarded().isEmpty());
+        try {
+            controller = Robolectric.buildActivity((Class<ReceiverSelector>) Class.forName(started.getComponent()
+                    .getClassName()));
+        } catch (ClassNotFoundException e) {
+            throw new AssertionError(e);
+        }
+        controller.withIntent(started).create().start().resume();
+        assertTrue(SelectorVisibility.isVisible());
+        return controller.get();
+    }
+
+    private void assertForwardedTo(ResolveInfo target, int keyCode) {
+        List<Intent> forwarded = device.getForwarded();
+        assertEquals(2, forwarded.size());
+        for (Intent intent : forwarded) {
+            assertEquals(target.activityInfo.name, intent.getComponent().getClassName());
+            assertEquals(keyCode, ((KeyEvent) intent.getParcelableExtra(Intent.EXTRA_KEY_EVENT)).getKeyCode());
+        }
+    }
+
+    @Test
+    public void handsPressesToSelector() {
+        ReceiverSelector selector = showSelector(ReceiverSelector.class);
+        // Starts on the first player, next moves to the radio and play picks
+        // it
+        device.advance(1000);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertTrue(device.getForwarded().isEmpty());
+        assertFalse(selector.isFinishing());
+        device.advance(1000);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        assertForwardedTo(radio, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        assertTrue(selector.isFinishing());
+        assertEquals(1, RoutingStateStore.getInstance(device.getApplication()).getUseCount(
+                new ComponentName(radio.activityInfo.packageName, radio.activityInfo.name).flattenToString()));
+    }
+
+    @Test
+    public void lockedSelectorTakesPressesToo() {
+        device.setLocked(true);
+        ReceiverSelector selector = showSelector(ReceiverSelectorLocked.class);
+        device.advance(1000);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PREVIOUS);
+        device.advance(1000);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PREVIOUS);
+        device.advance(1000);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        // Previous wraps around from the first player to the last
+        assertForwardedTo(radio, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        assertTrue(selector.isFinishing());
+    }
+
+    @Test
+    public void pressesAreRoutedAgainOnceClosed() {
+        ReceiverSelector selector = showSelector(ReceiverSelector.class);
+        selector.findViewById(R.id.cancelButton).performClick();
+        assertTrue(selector.isFinishing());
+        controller.pause();
+        assertFalse(SelectorVisibility.isVisible());
+
+        device.advance(1000);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        assertEquals(new ComponentName(device.getApplication(), ReceiverSelector.class), Robolectric
+                .getShadowApplication().getNextStartedActivity().getComponent());
+    }
+
+    @Test
+    public void ignoreStopsPrompting() {
+        ReceiverSelector selector = showSelector(ReceiverSelector.class);
+        selector.findViewById(R.id.ignoreButton).performClick();
+        assertTrue(selector.isFinishing());
+        controller.pause();
+
+        device.advance(1000);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        assertNull(Robolectric.getShadowApplication().getNextStartedActivity());
+        assertTrue(device.getForwarded().isEmpty());
+    }
+
+    @Test
+    public void timeoutSurvivesRecreation() {
+        device.getPreferences().edit().putString(Constants.TIMEOUT_KEY, "10").commit();
+        // Otherwise starting the activity runs everything it posts, timeout
+        // included
+        Robolectric.pauseMainLooper();
+        ReceiverSelector selector = showSelector(ReceiverSelector.class);
+        device.advance(6000);
+
+        // Rotating recreates the selector with only the time it had left
+        Bundle state = new Bundle();
+        controller.saveInstanceState(state).pause().stop().destroy();
+        controller = Robolectric.buildActivity(ReceiverSelector.class).withIntent(selector.getIntent());
+        selector = controller.create(state).start().resume().get();
+        device.advance(3000);
+        assertFalse(selector.isFinishing());
+        device.advance(1500);
+        assertTrue(selector.isFinishing());
+    }
+}
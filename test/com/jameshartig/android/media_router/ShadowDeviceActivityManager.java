@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowActivityManager;
+
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningServiceInfo;
+
+/**
+ * Adds the running services to Robolectric's {@code ActivityManager}, and
+ * counts how often they're asked for since that is the expensive call
+ * routing tries to avoid.
+ *
+ * @author James Hartig
+ */
+@Implements(ActivityManager.class)
+public class ShadowDeviceActivityManager extends ShadowActivityManager {
+
+    private final List<RunningServiceInfo> services = new ArrayList<RunningServiceInfo>();
+    private int serviceQueries;
+
+    @Implementation
+    public List<RunningServiceInfo> getRunningServices(int maxNum) {
+        serviceQueries++;
+        // A copy, like the real one
+        return new ArrayList<RunningServiceInfo>(services.subList(0, Math.min(maxNum, services.size())));
+    }
+
+    public void setServices(List<RunningServiceInfo> services) {
+        this.services.clear();
+        this.services.addAll(services);
+    }
+
+    /**
+     * @return How many times the running services were asked for.
+     */
+    public int getServiceQueries() {
+        return serviceQueries;
+    }
+}
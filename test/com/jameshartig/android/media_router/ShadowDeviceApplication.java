@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowApplication;
+
+import android.app.Application;
+import android.content.Intent;
+
+/**
+ * Keeps unordered broadcasts to a component away from our own receivers,
+ * like {@link ShadowDeviceContext} does for ordered ones, and records them
+ * there instead.
+ *
+ * @author James Hartig
+ */
+@Implements(Application.class)
+public class ShadowDeviceApplication extends ShadowApplication {
+
+    @Override
+    @Implementation
+    public void sendBroadcast(Intent intent) {
+        if (intent.getComponent() != null) {
+            ShadowDeviceContext.recordSent(intent);
+            return;
+        }
+        super.sendBroadcast(intent);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowAudioManager;
+
+import android.content.ComponentName;
+import android.media.AudioManager;
+
+/**
+ * Adds whether music is playing and the registered media button receiver to
+ * Robolectric's {@code AudioManager}.
+ *
+ * @author James Hartig
+ */
+@Implements(AudioManager.class)
+public class ShadowDeviceAudioManager extends ShadowAudioManager {
+
+    private boolean musicActive;
+    private int musicActiveQueries;
+    private ComponentName mediaButtonReceiver;
+
+    @Implementation
+    public boolean isMusicActive() {
+        musicActiveQueries++;
+        return musicActive;
+    }
+
+    @Implementation
+    public void registerMediaButtonEventReceiver(ComponentName eventReceiver) {
+        mediaButtonReceiver = eventReceiver;
+    }
+
+    @Implementation
+    public void unregisterMediaButtonEventReceiver(ComponentName eventReceiver) {
+        if (eventReceiver.equals(mediaButtonReceiver)) {
+            mediaButtonReceiver = null;
+        }
+    }
+
+    public void setMusicActive(boolean musicActive) {
+        this.musicActive = musicActive;
+    }
+
+    /**
+     * @return How many times the audio service was asked whether music is
+     *         playing.
+     */
+    public int getMusicActiveQueries() {
+        return musicActiveQueries;
+    }
+
+    /**
+     * @return The receiver that gets media buttons, or null.
+     */
+    public ComponentName getMediaButtonReceiver() {
+        return mediaButtonReceiver;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.robolectric.Robolectric;
+import org.robolectric.SdkConfig;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.annotation.RealObject;
+import org.robolectric.shadows.ShadowContextImpl;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+
+/**
+ * Ordered broadcasts with a result receiver, which Robolectric doesn't
+ * support. Broadcasts to a component, ordered or not, are other apps'
+ * business and are only recorded, Robolectric would hand them to every
+ * receiver with a matching filter, ours included. Unordered ones are sent
+ * through the application, so {@link ShadowDeviceApplication} passes them
+ * on to be recorded here. The result receiver is kept until the test says
+ * the receivers are done with {@link #completeOrderedBroadcasts()}, like a
+ * player finishing with a key.
+ *
+ * @author James Hartig
+ */
+@Implements(className = ShadowContextImpl.CLASS_NAME)
+public class ShadowDeviceContext extends ShadowContextImpl {
+
+    private static final List<Intent> sent = new ArrayList<Intent>();
+    private static final List<Intent> pendingIntents = new ArrayList<Intent>();
+    private static final List<BroadcastReceiver> pendingReceivers = new ArrayList<BroadcastReceiver>();
+    private static final List<Context> pendingContexts = new ArrayList<Context>();
+
+    @RealObject
+    private Context realContext;
+
+    public ShadowDeviceContext(SdkConfig sdkConfig) {
+        super(sdkConfig);
+    }
+
+    @Implementation
+    public void sendOrderedBroadcast(Intent intent, String receiverPermission, BroadcastReceiver resultReceiver,
+            Handler scheduler, int initialCode, String initialData, Bundle initialExtras) {
+        if (intent.getComponent() == null) {
+            Robolectric.getShadowApplication().sendOrderedBroadcast(intent, receiverPermission);
+        }
+        sent.add(intent);
+        if (resultReceiver != null) {
+            pendingIntents.add(intent);
+            pendingReceivers.add(resultReceiver);
+            pendingContexts.add(realContext);
+        }
+    }
+
+    /**
+     * Records an unordered broadcast to a component, see
+     * {@link ShadowDeviceApplication}.
+     */
+    static void recordSent(Intent intent) {
+        sent.add(intent);
+    }
+
+    /**
+     * @return The broadcasts sent to a component, and all ordered
+     *         broadcasts, since the last {@link #clear()}.
+     */
+    public static List<Intent> getSent() {
+        return sent;
+    }
+
+    /**
+     * Finishes every ordered broadcast sent so far, calling its result
+     * receiver.
+     *
+     * @return How many were finished.
+     */
+    public static int completeOrderedBroadcasts() {
+        int count = pendingReceivers.size();
+        for (int i = 0; i < count; i++) {
+            pendingReceivers.get(i).onReceive(pendingContexts.get(i), pendingIntents.get(i));
+        }
+        pendingIntents.clear();
+        pendingReceivers.clear();
+        pendingContexts.clear();
+        return count;
+    }
+
+    /**
+     * Forgets the ordered broadcasts sent so far without finishing them, like
+     * a receiver that never returns.
+     */
+    public static void clear() {
+        sent.clear();
+        pendingIntents.clear();
+        pendingReceivers.clear();
+        pendingContexts.clear();
+    }
+}
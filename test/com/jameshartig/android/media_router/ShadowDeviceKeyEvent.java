@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowInputEvent;
+
+import android.view.KeyEvent;
+
+/**
+ * Lets {@code KeyEvent} keep its real action and key code. Robolectric's
+ * shadow only knows the ones from the two argument constructor, and media
+ * button events carry their down and event times.
+ *
+ * @author James Hartig
+ */
+@Implements(KeyEvent.class)
+public class ShadowDeviceKeyEvent extends ShadowInputEvent {
+}
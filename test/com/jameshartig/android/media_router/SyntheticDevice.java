@@ -0,0 +1,368 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.robolectric.Robolectric;
+import org.robolectric.res.builder.RobolectricPackageManager;
+import org.robolectric.shadows.ShadowKeyguardManager;
+import org.robolectric.shadows.ShadowLooper;
+
+import android.app.ActivityManager.RunningServiceInfo;
+import android.app.ActivityManager.RunningTaskInfo;
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.view.KeyEvent;
+
+import com.jameshartig.android.media_router.receivers.MediaButtonReceiver;
+import com.jameshartig.android.media_router.routing.RoutingStats;
+
+/**
+ * The device a Robolectric test routes on: the media button receivers in
+ * the package manager, the running services and top task in the activity
+ * manager, whether music is playing, the keyguard and the user's hidden
+ * apps. Needs {@link ShadowDeviceActivityManager},
+ * {@link ShadowDeviceAudioManager}, {@link ShadowDeviceContext} and
+ * {@link ShadowDeviceKeyEvent}.
+ *
+ * Robolectric runs every test in one process, with a new application and
+ * a clock starting at 0 each time, so a new device also resets the routing
+ * state our process keeps in static fields.
+ *
+ * @author James Hartig
+ */
+public final class SyntheticDevice {
+
+    private final Application application;
+    private final RobolectricPackageManager packageManager;
+    private final ShadowDeviceActivityManager activityManager;
+    private final ShadowDeviceAudioManager audioManager;
+    private final ShadowKeyguardManager keyguardManager;
+
+    /** Highest priority first, like the package manager returns them. */
+    private final List<ResolveInfo> receivers = new ArrayList<ResolveInfo>();
+    private final List<RunningServiceInfo> services = new ArrayList<RunningServiceInfo>();
+
+    /**
+     * How long {@link #press(BroadcastReceiver, int)} holds a button.
+     */
+    public static final long PRESS_MILLIS = 80;
+
+    public SyntheticDevice() {
+        application = Robolectric.application;
+        packageManager = (RobolectricPackageManager) application.getPackageManager();
+        activityManager = Robolectric.shadowOf_(application.getSystemService(Context.ACTIVITY_SERVICE));
+        audioManager = Robolectric.shadowOf_(application.getSystemService(Context.AUDIO_SERVICE));
+        keyguardManager = Robolectric.shadowOf_(application.getSystemService(Context.KEYGUARD_SERVICE));
+        resetProcess();
+        // Our own receiver is always installed, ahead of everything else
+        addReceiver(application.getPackageName(), MediaButtonReceiver.class.getName(), Integer.MAX_VALUE);
+        // Key events never have a down time of 0
+        advance(1000);
+    }
+
+    public Application getApplication() {
+        return application;
+    }
+
+    public ShadowDeviceActivityManager getActivityManager() {
+        return activityManager;
+    }
+
+    public ShadowDeviceAudioManager getAudioManager() {
+        return audioManager;
+    }
+
+    /**
+     * Installs a media button receiver in its own package.
+     *
+     * @param packageName
+     *            The package.
+     * @param priority
+     *            Its intent filter's priority.
+     * @return The receiver.
+     */
+    public ResolveInfo addReceiver(String packageName, int priority) {
+        return addReceiver(packageName, packageName + ".MediaButtonReceiver", priority);
+    }
+
+    private ResolveInfo addReceiver(String packageName, String className, int priority) {
+        ApplicationInfo applicationInfo = new ApplicationInfo();
+        applicationInfo.packageName = packageName;
+        applicationInfo.sourceDir = "/data/app/" + packageName + "-1.apk";
+        ActivityInfo activityInfo = new ActivityInfo();
+        activityInfo.packageName = packageName;
+        activityInfo.name = className;
+        activityInfo.applicationInfo = applicationInfo;
+        ResolveInfo resolveInfo = new ResolveInfo();
+        resolveInfo.activityInfo = activityInfo;
+        resolveInfo.priority = priority;
+
+        int index = 0;
+        while (index < receivers.size() && receivers.get(index).priority >= priority) {
+            index++;
+        }
+        receivers.add(index, resolveInfo);
+        publish(packageName);
+        return resolveInfo;
+    }
+
+    /**
+     * Uninstalls a package and tells the app, like the system does.
+     *
+     * @param packageName
+     *            The package.
+     */
+    public void uninstall(String packageName) {
+        for (int i = receivers.size() - 1; i >= 0; i--) {
+            if (packageName.equals(receivers.get(i).activityInfo.packageName)) {
+                receivers.remove(i);
+            }
+        }
+        publish(packageName);
+        application.sendBroadcast(new Intent(Intent.ACTION_PACKAGE_REMOVED, Uri.fromParts("package", packageName,
+                null)));
+    }
+
+    /**
+     * Updates the package manager's answers for all receivers and for the
+     * package's own.
+     */
+    private void publish(String packageName) {
+        packageManager.addResolveInfoForIntent(new Intent(Intent.ACTION_MEDIA_BUTTON),
+                new ArrayList<ResolveInfo>(receivers));
+        List<ResolveInfo> packageReceivers = new ArrayList<ResolveInfo>();
+        for (ResolveInfo resolveInfo : receivers) {
+            if (packageName.equals(resolveInfo.activityInfo.packageName)) {
+                packageReceivers.add(resolveInfo);
+            }
+        }
+        packageManager.addResolveInfoForIntent(new Intent(Intent.ACTION_MEDIA_BUTTON).setPackage(packageName),
+                packageReceivers);
+    }
+
+    /**
+     * Adds a running service.
+     *
+     * @param packageName
+     *            Its package.
+     * @param started
+     *            Whether it was started rather than only bound.
+     * @param foreground
+     *            Whether it is in the foreground, like a playing player's.
+     */
+    public void addService(String packageName, boolean started, boolean foreground) {
+        RunningServiceInfo service = new RunningServiceInfo();
+        service.service = new ComponentName(packageName, packageName + ".PlaybackService");
+        service.started = started;
+        service.foreground = foreground;
+        services.add(service);
+        activityManager.setServices(services);
+    }
+
+    /**
+     * Stops a package's services.
+     *
+     * @param packageName
+     *            The package.
+     */
+    public void removeServices(String packageName) {
+        for (int i = services.size() - 1; i >= 0; i--) {
+            if (packageName.equals(services.get(i).service.getPackageName())) {
+                services.remove(i);
+            }
+        }
+        activityManager.setServices(services);
+    }
+
+    /**
+     * Stops every service.
+     */
+    public void clearServices() {
+        services.clear();
+        activityManager.setServices(services);
+    }
+
+    /**
+     * @param packageName
+     *            The package of the activity on top, or null for no tasks.
+     */
+    public void setTopPackage(String packageName) {
+        if (packageName == null) {
+            activityManager.setTasks(Collections.<RunningTaskInfo> emptyList());
+            return;
+        }
+        RunningTaskInfo task = new RunningTaskInfo();
+        task.topActivity = new ComponentName(packageName, packageName + ".MainActivity");
+        activityManager.setTasks(Collections.singletonList(task));
+    }
+
+    /**
+     * Starts or stops music, and lets our process know like a player's
+     * playback broadcast would.
+     *
+     * @param musicActive
+     *            Whether music is playing.
+     */
+    public void setMusicActive(boolean musicActive) {
+        audioManager.setMusicActive(musicActive);
+        MusicActivityTracker.invalidate();
+    }
+
+    public void setLocked(boolean locked) {
+        keyguardManager.setinRestrictedInputMode(locked);
+    }
+
+    /**
+     * Hides receivers from routing and the selector, like the settings
+     * screen does. Replaces the receivers hidden before.
+     *
+     * @param hidden
+     *            The receivers.
+     */
+    public void hide(List<ResolveInfo> hidden) {
+        StringBuilder hiddenApps = new StringBuilder();
+        for (ResolveInfo resolveInfo : hidden) {
+            if (hiddenApps.length() > 0) {
+                hiddenApps.append(',');
+            }
+            hiddenApps.append(ReceiverRegistry.getReceiverKey(resolveInfo));
+        }
+        getPreferences().edit().putString(Constants.HIDDEN_APPS_KEY, hiddenApps.toString()).commit();
+    }
+
+    public SharedPreferences getPreferences() {
+        return PreferenceManager.getDefaultSharedPreferences(application);
+    }
+
+    /**
+     * Moves the clock forward, running whatever was due on the main thread.
+     *
+     * @param millis
+     *            How far.
+     */
+    public void advance(long millis) {
+        Robolectric.getUiThreadScheduler().advanceBy(millis);
+    }
+
+    /**
+     * Runs what was posted to our background threads. Robolectric never runs
+     * them on their own, so this is when the background catches up.
+     */
+    public void runBackgroundTasks() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread instanceof HandlerThread && thread.isAlive()) {
+                Looper looper = ((HandlerThread) thread).getLooper();
+                if (looper != null) {
+                    ShadowLooper shadowLooper = Robolectric.shadowOf_(looper);
+                    shadowLooper.idle();
+                }
+            }
+        }
+    }
+
+    /**
+     * Presses and releases a button, the way the system delivers it to the
+     * highest priority receiver.
+     *
+     * @param receiver
+     *            The receiver the system delivers to.
+     * @param keyCode
+     *            The button.
+     */
+    public void press(BroadcastReceiver receiver, int keyCode) {
+        long downTime = SystemClock.uptimeMillis();
+        receiver.onReceive(application, mediaButton(downTime, downTime, KeyEvent.ACTION_DOWN, keyCode));
+        advance(PRESS_MILLIS);
+        receiver.onReceive(application,
+                mediaButton(downTime, SystemClock.uptimeMillis(), KeyEvent.ACTION_UP, keyCode));
+    }
+
+    /**
+     * @return The keys forwarded to players, as the media button intents that
+     *         were sent.
+     */
+    public List<Intent> getForwarded() {
+        return ShadowDeviceContext.getSent();
+    }
+
+    /**
+     * Creates a media button intent, like the system sends.
+     *
+     * @param downTime
+     *            When the key went down, the same for every event of a press.
+     * @param eventTime
+     *            When this event happened.
+     * @param action
+     *            {@link KeyEvent#ACTION_DOWN} or {@link KeyEvent#ACTION_UP}.
+     * @param keyCode
+     *            The key.
+     * @return The intent.
+     */
+    public static Intent mediaButton(long downTime, long eventTime, int action, int keyCode) {
+        Intent intent = new Intent(Intent.ACTION_MEDIA_BUTTON);
+        intent.putExtra(Intent.EXTRA_KEY_EVENT, new KeyEvent(downTime, eventTime, action, keyCode, 0));
+        return intent;
+    }
+
+    /**
+     * Stops our background threads while the application they were started
+     * for is still there, so none of them starts looping after Robolectric
+     * has torn it down. Call from {@code @After}.
+     */
+    public void release() {
+        resetProcess();
+    }
+
+    /**
+     * Forgets everything our process keeps between events, as if it had
+     * just started.
+     */
+    private static void resetProcess() {
+        // Threads and caches first, they belong to the last test's application
+        MediaButtonReceiver.resetForTest();
+        RoutingStateStore.resetForTest();
+        SelectorModel.resetForTest();
+        ReceiverIconCache.resetForTest();
+        ReceiverRegistry.resetForTest();
+        HiddenReceiverIndex.resetForTest();
+        KeyForwarder.resetForTest();
+        ActivePlayerTracker.resetForTest();
+        MusicActivityTracker.resetForTest();
+        SelectorVisibility.resetForTest();
+
+        RunningStateCache.invalidate();
+        TraceCapture.stop();
+        RoutingStats.reset();
+        DeliveryTracker.reset();
+        ShadowDeviceContext.clear();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.receivers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.os.SystemClock;
+import android.view.KeyEvent;
+
+import com.jameshartig.android.media_router.DeliveryTracker;
+import com.jameshartig.android.media_router.ReceiverSelector;
+import com.jameshartig.android.media_router.ReceiverSelectorLocked;
+import com.jameshartig.android.media_router.RunningStateCache;
+import com.jameshartig.android.media_router.ShadowDeviceActivityManager;
+import com.jameshartig.android.media_router.ShadowDeviceApplication;
+import com.jameshartig.android.media_router.ShadowDeviceAudioManager;
+import com.jameshartig.android.media_router.ShadowDeviceContext;
+import com.jameshartig.android.media_router.ShadowDeviceKeyEvent;
+import com.jameshartig.android.media_router.SyntheticDevice;
+import com.jameshartig.android.media_router.routing.LatencyHistogram;
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+import com.jameshartig.android.media_router.routing.RoutingStats;
+
+/**
+ * Performance gate for {@link MediaButtonReceiver#onReceive}, runnable without
+ * a phone. Thousands of presses on a large device, with every fourth
+ * receiver hidden, hundreds of background services and the keyguard
+ * locking and unlocking, checking where every press went and the time and
+ * allocation of every event. The budgets are loose enough for a slow
+ * machine and Robolectric's own overhead, they catch the hot path going
+ * back to the system or scaling with the device instead.
+ *
+ * @author James Hartig
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18, shadows = { ShadowDeviceActivityManager.class, ShadowDeviceAudioManager.class,
+        ShadowDeviceApplication.class, ShadowDeviceContext.class, ShadowDeviceKeyEvent.class })
+public class MediaButtonReceiverLoadTest {
+
+    private static final int RECEIVERS = 200;
+    private static final int SERVICES = 500;
+    private static final int WARMUP_PRESSES = 3000;
+    private static final int PRESSES = 2000;
+
+    /**
+     * Per event, down and up each count. The 95th percentile rather than the
+     * 99th, on a machine with a single core the tail is whatever else the
+     * JVM was doing.
+     */
+    private static final long MAX_P95_NANOS = 2000000;
+    private static final long MAX_MEAN_NANOS = 1000000;
+    private static final long MAX_BYTES_PER_EVENT = 64 * 1024;
+
+    /**
+     * Longer than a running state snapshot is reused, so every press sees
+     * the state it was set up with, and slow enough for admission.
+     */
+    private static final long BETWEEN_PRESSES_MILLIS = RunningStateCache.MAX_AGE_MILLIS + 100;
+
+    /**
+     * What the device is doing when a press arrives.
+     */
+    private enum Scenario {
+        /** Music from a visible receiver's foreground service. */
+        FOREGROUND_SERVICE,
+        /** Music from a hidden receiver's foreground service. */
+        HIDDEN_SERVICE,
+        /** No music, a visible receiver's app is on top. */
+        FOREGROUND_TASK,
+        /** No music and the launcher on top. */
+        PROMPT
+    }
+
+    private SyntheticDevice device;
+    private MediaButtonReceiver receiver;
+    private final List<ResolveInfo> visible = new ArrayList<ResolveInfo>();
+    private final List<ResolveInfo> hidden = new ArrayList<ResolveInfo>();
+
+    private final LatencyHistogram eventNanos = new LatencyHistogram();
+    private long totalNanos;
+    private long allocatedBytes;
+    private int forwards;
+
+    /**
+     * The receiver the last press on top went to, which is remembered.
+     */
+    private ResolveInfo lastReceiver;
+
+    @Before
+    public void setUp() {
+        device = new SyntheticDevice();
+        receiver = new MediaButtonReceiver();
+        for (int i = 0; i < RECEIVERS; i++) {
+            ResolveInfo resolveInfo = device.addReceiver("com.example.player" + i, RECEIVERS - i);
+            (i % 4 == 3 ? hidden : visible).add(resolveInfo);
+        }
+        device.hide(hidden);
+        for (int i = 0; i < SERVICES; i++) {
+            device.addService("com.example.service" + i, i % 2 == 0, i % 3 == 0);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        device.release();
+    }
+
+    /**
+     * @return Bytes allocated by this thread so far, or -1 if the JVM can't
+     *         tell.
+     */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void deliver(Intent intent, boolean measure) {
+        long allocated = measure ? getAllocatedBytes() : 0;
+        long start = System.nanoTime();
+        receiver.onReceive(device.getApplication(), intent);
+        long nanos = System.nanoTime() - start;
+        if (measure) {
+            eventNanos.record(nanos);
+            totalNanos += nanos;
+            allocatedBytes += getAllocatedBytes() - allocated;
+        }
+    }
+
+    private static ComponentName component(ResolveInfo resolveInfo) {
+        return new ComponentName(resolveInfo.activityInfo.packageName, resolveInfo.activityInfo.name);
+    }
+
+    /**
+     * Sets the device up for a scenario, presses a button and checks where it
+     * went.
+     */
+    private void press(Scenario scenario, Random random, boolean measure) {
+        ResolveInfo picked = visible.get(random.nextInt(visible.size()));
+        String playing = null;
+        String top = null;
+        ResolveInfo expected = null;
+        Path expectedPath;
+        switch (scenario) {
+            case FOREGROUND_SERVICE:
+                playing = picked.activityInfo.packageName;
+                expected = picked;
+                expectedPath = picked == lastReceiver ? Path.LAST_RECEIVER_SERVICE : Path.FOREGROUND_SERVICE;
+                break;
+            case HIDDEN_SERVICE:
+                playing = hidden.get(random.nextInt(hidden.size())).activityInfo.packageName;
+                expectedPath = Path.NO_FOREGROUND_SERVICE;
+                break;
+            case FOREGROUND_TASK:
+                top = picked.activityInfo.packageName;
+                expected = picked;
+                expectedPath = Path.FOREGROUND_TASK;
+                break;
+            default:
+                top = "com.example.launcher";
+                expectedPath = Path.PROMPT;
+                break;
+        }
+        boolean locked = random.nextBoolean();
+        device.setLocked(locked);
+        device.setMusicActive(playing != null);
+        if (playing != null) {
+            device.addService(playing, true, true);
+        }
+        device.setTopPackage(top);
+        long outcomes = RoutingStats.getOutcomeHistogram(expectedPath).getCount();
+        int keyCode = random.nextBoolean() ? KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE : KeyEvent.KEYCODE_MEDIA_NEXT;
+
+        long downTime = SystemClock.uptimeMillis();
+        deliver(SyntheticDevice.mediaButton(downTime, downTime, KeyEvent.ACTION_DOWN, keyCode), measure);
+        device.advance(SyntheticDevice.PRESS_MILLIS);
+        deliver(SyntheticDevice.mediaButton(downTime, SystemClock.uptimeMillis(), KeyEvent.ACTION_UP, keyCode),
+                measure);
+
+        String message = scenario + " press " + downTime;
+        assertEquals(message, outcomes + 2, RoutingStats.getOutcomeHistogram(expectedPath).getCount());
+        List<Intent> forwarded = device.getForwarded();
+        Intent started = Robolectric.getShadowApplication().getNextStartedActivity();
+        if (expected != null) {
+            forwards++;
+            assertEquals(message, forwards * 2, forwarded.size());
+            assertEquals(message, component(expected), forwarded.get(forwarded.size() - 1).getComponent());
+            // The player got it
+            assertEquals(message, 1, ShadowDeviceContext.completeOrderedBroadcasts());
+        } else {
+            assertEquals(message, forwards * 2, forwarded.size());
+        }
+        if (scenario == Scenario.PROMPT) {
+            assertEquals(message, new ComponentName(device.getApplication(),
+                    locked ? ReceiverSelectorLocked.class : ReceiverSelector.class), started.getComponent());
+        } else {
+            assertEquals(message, null, started);
+        }
+        if (expectedPath == Path.FOREGROUND_TASK) {
+            lastReceiver = expected;
+        }
+
+        if (playing != null) {
+            device.removeServices(playing);
+        }
+        device.advance(BETWEEN_PRESSES_MILLIS);
+    }
+
+    @Test
+    public void routesWithinBudget() {
+        Random random = new Random(RECEIVERS * 31L + SERVICES);
+        Scenario[] scenarios = Scenario.values();
+        for (int i = 0; i < WARMUP_PRESSES + PRESSES; i++) {
+            press(scenarios[random.nextInt(scenarios.length)], random, i >= WARMUP_PRESSES);
+        }
+
+        // Every forward was delivered where it was sent
+        device.advance(DeliveryTracker.DEADLINE_MILLIS);
+        StringWriter out = new StringWriter();
+        DeliveryTracker.dump(new PrintWriter(out, true));
+        assertTrue(out.toString(), out.toString().contains("delivered=" + forwards + " missed=0 fellBack=0"));
+
+        long events = PRESSES * 2;
+        long p95 = eventNanos.getPercentile(95);
+        long mean = totalNanos / events;
+        long bytesPerEvent = allocatedBytes / events;
+        String summary = " (" + events + " events, " + RECEIVERS + " receivers, " + SERVICES + " services: mean="
+                + mean + "ns p50=" + eventNanos.getPercentile(50) + "ns p95=" + p95 + "ns p99="
+                + eventNanos.getPercentile(99) + "ns max=" + eventNanos.getMax() + "ns, " + bytesPerEvent
+                + " bytes/event)";
+        assertTrue("p95 is over the " + MAX_P95_NANOS + "ns budget" + summary, p95 <= MAX_P95_NANOS);
+        assertTrue("mean is over the " + MAX_MEAN_NANOS + "ns budget" + summary, mean <= MAX_MEAN_NANOS);
+        assertTrue("allocations are over the " + MAX_BYTES_PER_EVENT + " byte budget" + summary,
+                bytesPerEvent <= MAX_BYTES_PER_EVENT);
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.receivers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.os.SystemClock;
+import android.view.KeyEvent;
+
+import com.jameshartig.android.media_router.Constants;
+import com.jameshartig.android.media_router.DeliveryTracker;
+import com.jameshartig.android.media_router.KeyForwarder;
+import com.jameshartig.android.media_router.MusicActivityTracker;
+import com.jameshartig.android.media_router.ReceiverSelector;
+import com.jameshartig.android.media_router.ReceiverSelectorLocked;
+import com.jameshartig.android.media_router.RoutingStateStore;
+import com.jameshartig.android.media_router.ShadowDeviceActivityManager;
+import com.jameshartig.android.media_router.ShadowDeviceApplication;
+import com.jameshartig.android.media_router.ShadowDeviceAudioManager;
+import com.jameshartig.android.media_router.ShadowDeviceContext;
+import com.jameshartig.android.media_router.ShadowDeviceKeyEvent;
+import com.jameshartig.android.media_router.SyntheticDevice;
+import com.jameshartig.android.media_router.routing.KeyEventAdmission;
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+import com.jameshartig.android.media_router.routing.RoutingStats;
+import com.jameshartig.android.media_router.routing.RoutingStats.Stage;
+
+/**
+ * Media button intents through {@link MediaButtonReceiver#onReceive}, on a
+ * device whose package manager, running services, audio and keyguard are
+ * set up by each test.
+ *
+ * @author James Hartig
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18, shadows = { ShadowDeviceActivityManager.class, ShadowDeviceAudioManager.class,
+        ShadowDeviceApplication.class, ShadowDeviceContext.class, ShadowDeviceKeyEvent.class })
+public class MediaButtonReceiverTest {
+
+    private static final String PLAYER = "com.example.player";
+    private static final String RADIO = "com.example.radio";
+
+    private SyntheticDevice device;
+    private MediaButtonReceiver receiver;
+    private ResolveInfo player;
+    private ResolveInfo radio;
+
+    @Before
+    public void setUp() {
+        device = new SyntheticDevice();
+        receiver = new MediaButtonReceiver();
+        player = device.addReceiver(PLAYER, 100);
+        radio = device.addReceiver(RADIO, 50);
+    }
+
+    @After
+    public void tearDown() {
+        device.release();
+    }
+
+    private static ComponentName component(ResolveInfo resolveInfo) {
+        return new ComponentName(resolveInfo.activityInfo.packageName, resolveInfo.activityInfo.name);
+    }
+
+    /**
+     * Checks that the forwarded keys from {@code from} on are a down and an
+     * up event for each target, in order.
+     */
+    private void assertForwarded(int from, int keyCode, ResolveInfo... targets) {
+        List<Intent> forwarded = device.getForwarded();
+        assertEquals(from + targets.length * 2, forwarded.size());
+        for (int i = 0; i < targets.length; i++) {
+            for (int action = KeyEvent.ACTION_DOWN; action <= KeyEvent.ACTION_UP; action++) {
+                Intent intent = forwarded.get(from + i * 2 + action);
+                assertEquals(Intent.ACTION_MEDIA_BUTTON, intent.getAction());
+                assertEquals(component(targets[i]), intent.getComponent());
+                KeyEvent keyEvent = (KeyEvent) intent.getParcelableExtra(Intent.EXTRA_KEY_EVENT);
+                assertEquals(action, keyEvent.getAction());
+                assertEquals(keyCode, keyEvent.getKeyCode());
+            }
+        }
+    }
+
+    private static String dump(Object section) {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        if (section == KeyEventAdmission.class) {
+            MediaButtonReceiver.dumpAdmission(writer, false);
+        } else if (section == SpeculativeRouting.class) {
+            SpeculativeRouting.dump(writer);
+        } else {
+            DeliveryTracker.dump(writer);
+        }
+        writer.flush();
+        return out.toString();
+    }
+
+    private static long getOutcomeCount(Path path) {
+        return RoutingStats.getOutcomeHistogram(path).getCount();
+    }
+
+    private ComponentName getStartedActivity() {
+        Intent started = Robolectric.getShadowApplication().getNextStartedActivity();
+        return started != null ? started.getComponent() : null;
+    }
+
+    @Test
+    public void forwardsToForegroundService() {
+        device.setMusicActive(true);
+        device.addService(PLAYER, true, false);
+        device.addService(RADIO, true, true);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_NEXT, radio);
+        // The up event reused the down event's decision
+        assertEquals(2, getOutcomeCount(Path.FOREGROUND_SERVICE));
+        assertEquals(1, device.getActivityManager().getServiceQueries());
+    }
+
+    @Test
+    public void ignoresVolumeAndWhenDisabled() {
+        device.setMusicActive(true);
+        device.addService(RADIO, true, true);
+        device.press(receiver, KeyEvent.KEYCODE_VOLUME_UP);
+        assertForwarded(0, KeyEvent.KEYCODE_VOLUME_UP);
+
+        device.getPreferences().edit().putBoolean(Constants.ENABLED_PREF_KEY, false).commit();
+        device.advance(1000);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertEquals(0, device.getActivityManager().getServiceQueries());
+    }
+
+    @Test
+    public void promptShowsSelectorWhenUnlocked() {
+        device.setLocked(false);
+        long downTime = SystemClock.uptimeMillis();
+        receiver.onReceive(device.getApplication(),
+                SyntheticDevice.mediaButton(downTime, downTime, KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE));
+        // Shown on up, while the button is held the rows are prepared
+        assertNull(getStartedActivity());
+        device.advance(SyntheticDevice.PRESS_MILLIS);
+        receiver.onReceive(device.getApplication(), SyntheticDevice.mediaButton(downTime,
+                SystemClock.uptimeMillis(), KeyEvent.ACTION_UP, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE));
+        assertEquals(new ComponentName(device.getApplication(), ReceiverSelector.class), getStartedActivity());
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        assertEquals(2, getOutcomeCount(Path.PROMPT));
+    }
+
+    @Test
+    public void promptShowsLockedSelectorWhenLocked() {
+        device.setLocked(true);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        assertEquals(new ComponentName(device.getApplication(), ReceiverSelectorLocked.class),
+                getStartedActivity());
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+    }
+
+    @Test
+    public void neverForwardsToOwnReceiver() {
+        device.uninstall(PLAYER);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        // Our receiver has the highest priority, the other one is sole
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE, radio);
+        assertEquals(2, getOutcomeCount(Path.SOLE_RECEIVER));
+
+        device.uninstall(RADIO);
+        device.advance(1000);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        assertForwarded(2, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        assertEquals(2, getOutcomeCount(Path.NO_RECEIVERS));
+    }
+
+    @Test
+    public void hiddenReceiversArentRoutedTo() {
+        device.hide(Arrays.asList(player));
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_NEXT, radio);
+    }
+
+    @Test
+    public void dropsDuplicates() {
+        device.setMusicActive(true);
+        device.addService(RADIO, true, true);
+        long downTime = SystemClock.uptimeMillis();
+        Intent down = SyntheticDevice.mediaButton(downTime, downTime, KeyEvent.ACTION_DOWN,
+                KeyEvent.KEYCODE_MEDIA_NEXT);
+        receiver.onReceive(device.getApplication(), down);
+        // Delivered again, e.g. to a second registration of our receiver
+        receiver.onReceive(device.getApplication(), down);
+        device.advance(SyntheticDevice.PRESS_MILLIS);
+        receiver.onReceive(device.getApplication(), SyntheticDevice.mediaButton(downTime,
+                SystemClock.uptimeMillis(), KeyEvent.ACTION_UP, KeyEvent.KEYCODE_MEDIA_NEXT));
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_NEXT, radio);
+        assertTrue(dump(KeyEventAdmission.class), dump(KeyEventAdmission.class).contains(" duplicates=1 "));
+    }
+
+    @Test
+    public void rateLimitsStorms() {
+        device.setMusicActive(true);
+        device.addService(RADIO, true, true);
+        // A stuck headset sending press after press without any time passing
+        long now = SystemClock.uptimeMillis();
+        int presses = KeyEventAdmission.BURST * 3;
+        for (int i = 0; i < presses; i++) {
+            receiver.onReceive(device.getApplication(),
+                    SyntheticDevice.mediaButton(now - i, now, KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_MEDIA_NEXT));
+            receiver.onReceive(device.getApplication(),
+                    SyntheticDevice.mediaButton(now - i, now, KeyEvent.ACTION_UP, KeyEvent.KEYCODE_MEDIA_NEXT));
+        }
+        ResolveInfo[] targets = new ResolveInfo[KeyEventAdmission.BURST];
+        Arrays.fill(targets, radio);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_NEXT, targets);
+        assertTrue(dump(KeyEventAdmission.class),
+                dump(KeyEventAdmission.class).contains(" rateLimited=" + (presses - KeyEventAdmission.BURST) * 2));
+
+        // Refilled once the storm is over
+        device.advance(KeyEventAdmission.REFILL_MILLIS);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertEquals((KeyEventAdmission.BURST + 1) * 2, device.getForwarded().size());
+    }
+
+    @Test
+    public void heldButtonKeepsItsTarget() {
+        device.setMusicActive(true);
+        device.addService(RADIO, true, true);
+        long downTime = SystemClock.uptimeMillis();
+        receiver.onReceive(device.getApplication(),
+                SyntheticDevice.mediaButton(downTime, downTime, KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_MEDIA_NEXT));
+        // The radio stops and the player starts while the button is held.
+        // Repeats and the up event still follow the first down event.
+        device.clearServices();
+        device.addService(PLAYER, true, true);
+        for (int repeat = 1; repeat <= 3; repeat++) {
+            device.advance(SyntheticDevice.PRESS_MILLIS);
+            receiver.onReceive(device.getApplication(), SyntheticDevice.mediaButton(downTime,
+                    SystemClock.uptimeMillis(), KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_MEDIA_NEXT));
+        }
+        device.advance(SyntheticDevice.PRESS_MILLIS);
+        receiver.onReceive(device.getApplication(), SyntheticDevice.mediaButton(downTime,
+                SystemClock.uptimeMillis(), KeyEvent.ACTION_UP, KeyEvent.KEYCODE_MEDIA_NEXT));
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_NEXT, radio);
+        assertEquals(1, device.getActivityManager().getServiceQueries());
+        assertEquals(5, getOutcomeCount(Path.FOREGROUND_SERVICE));
+
+        // The next press sees the change
+        device.advance(2000);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertForwarded(2, KeyEvent.KEYCODE_MEDIA_NEXT, player);
+    }
+
+    /**
+     * Sets up a press to be speculated: music is known to be playing, and the
+     * last press went to the radio as the last receiver.
+     */
+    private void speculateOnRadio() {
+        device.getPreferences().edit().putBoolean(Constants.SPECULATIVE_ROUTING_KEY, true).commit();
+        device.setMusicActive(true);
+        device.addService(RADIO, true, true);
+        RoutingStateStore.getInstance(device.getApplication()).setLastReceiver(component(radio).flattenToString());
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertEquals(2, getOutcomeCount(Path.LAST_RECEIVER_SERVICE));
+        // Forwarding invalidated it, wait until it is known again
+        device.advance(2000);
+        MusicActivityTracker.revalidate(device.getApplication());
+    }
+
+    @Test
+    public void speculationHit() {
+        speculateOnRadio();
+        int queries = device.getActivityManager().getServiceQueries();
+        long downTime = SystemClock.uptimeMillis();
+        receiver.onReceive(device.getApplication(),
+                SyntheticDevice.mediaButton(downTime, downTime, KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_MEDIA_NEXT));
+        // Nothing was asked to decide on the speculation
+        assertEquals(queries, device.getActivityManager().getServiceQueries());
+        long runningStages = RoutingStats.getStageHistogram(Stage.RUNNING_SERVICES).getCount();
+        device.runBackgroundTasks();
+        // The check asked, but it isn't a press so its stages aren't counted
+        assertEquals(queries + 1, device.getActivityManager().getServiceQueries());
+        assertEquals(runningStages, RoutingStats.getStageHistogram(Stage.RUNNING_SERVICES).getCount());
+        device.advance(SyntheticDevice.PRESS_MILLIS);
+        receiver.onReceive(device.getApplication(), SyntheticDevice.mediaButton(downTime,
+                SystemClock.uptimeMillis(), KeyEvent.ACTION_UP, KeyEvent.KEYCODE_MEDIA_NEXT));
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_NEXT, radio, radio);
+        assertEquals(2, getOutcomeCount(Path.SPECULATIVE));
+        assertTrue(dump(SpeculativeRouting.class), dump(SpeculativeRouting.class).contains(" hits=1 misses=0 "));
+    }
+
+    @Test
+    public void speculationMissCorrectsOnlyLaterPresses() {
+        speculateOnRadio();
+        long downTime = SystemClock.uptimeMillis();
+        receiver.onReceive(device.getApplication(),
+                SyntheticDevice.mediaButton(downTime, downTime, KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_MEDIA_NEXT));
+        // The player took over, which the check finds
+        device.clearServices();
+        device.addService(PLAYER, true, true);
+        device.runBackgroundTasks();
+        device.advance(SyntheticDevice.PRESS_MILLIS);
+        receiver.onReceive(device.getApplication(), SyntheticDevice.mediaButton(downTime,
+                SystemClock.uptimeMillis(), KeyEvent.ACTION_UP, KeyEvent.KEYCODE_MEDIA_NEXT));
+        // The key already went to the radio and isn't sent again
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_NEXT, radio, radio);
+        assertTrue(dump(SpeculativeRouting.class), dump(SpeculativeRouting.class).contains(" hits=0 misses=1 "));
+
+        device.advance(2000);
+        MusicActivityTracker.revalidate(device.getApplication());
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_NEXT, radio, radio, player);
+    }
+
+    @Test
+    public void fallsBackWhenReceiverIsGone() {
+        device.setMusicActive(true);
+        device.addService(PLAYER, true, true);
+        device.addService(RADIO, true, true);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE, player);
+
+        // Uninstalled before the key got there
+        device.uninstall(PLAYER);
+        device.advance(DeliveryTracker.DEADLINE_MILLIS);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE, player, radio);
+        assertTrue(dump(DeliveryTracker.class), dump(DeliveryTracker.class).contains(" fellBack=1"));
+    }
+
+    @Test
+    public void unorderedStrategyCountsAsDeliveredWhenSent() {
+        KeyForwarder.getInstance(device.getApplication()).setStrategy(component(radio),
+                KeyForwarder.Strategy.UNORDERED_BROADCAST);
+        device.setMusicActive(true);
+        device.addService(RADIO, true, true);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_NEXT, radio);
+        assertEquals(0, ShadowDeviceContext.completeOrderedBroadcasts());
+        device.advance(DeliveryTracker.DEADLINE_MILLIS);
+        assertTrue(dump(DeliveryTracker.class),
+                dump(DeliveryTracker.class).contains("delivered=1 missed=0 fellBack=0"));
+
+        // Everyone else still gets ordered broadcasts
+        device.addService(PLAYER, true, true);
+        device.advance(1000);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_NEXT);
+        assertForwarded(2, KeyEvent.KEYCODE_MEDIA_NEXT, player);
+        assertEquals(1, ShadowDeviceContext.completeOrderedBroadcasts());
+    }
+
+    @Test
+    public void confirmedPlayFallsBackWhenNoMusicStarts() {
+        device.getPreferences().edit().putBoolean(Constants.CONFIRM_DELIVERY_KEY, true).commit();
+        device.setTopPackage(PLAYER);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE, player);
+        // The player took the key but nothing started playing
+        assertEquals(1, ShadowDeviceContext.completeOrderedBroadcasts());
+        device.advance(DeliveryTracker.DEADLINE_MILLIS);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE, player, radio);
+        assertTrue(dump(DeliveryTracker.class),
+                dump(DeliveryTracker.class).contains("delivered=0 missed=1 fellBack=1"));
+    }
+
+    @Test
+    public void confirmedPlayOnlyFallsBackForTheLatestPress() {
+        device.getPreferences().edit().putBoolean(Constants.CONFIRM_DELIVERY_KEY, true).commit();
+        device.setTopPackage(PLAYER);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        device.advance(500);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        assertEquals(2, ShadowDeviceContext.completeOrderedBroadcasts());
+        // The user pressed again, so the first press isn't sent elsewhere
+        // on top of the second
+        device.advance(DeliveryTracker.DEADLINE_MILLIS - 500);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE, player, player);
+        device.advance(500);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE, player, player, radio);
+        assertTrue(dump(DeliveryTracker.class),
+                dump(DeliveryTracker.class).contains("delivered=0 missed=2 fellBack=1"));
+    }
+
+    @Test
+    public void slowReceiverIsntSentTheKeyAgain() {
+        device.setMusicActive(true);
+        device.addService(PLAYER, true, true);
+        device.addService(RADIO, true, true);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        // The ordered broadcast never completes, the player may still have
+        // acted on it
+        device.advance(DeliveryTracker.DEADLINE_MILLIS);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE, player);
+        assertTrue(dump(DeliveryTracker.class),
+                dump(DeliveryTracker.class).contains("delivered=0 missed=1 fellBack=0"));
+
+        device.advance(1000);
+        device.press(receiver, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        assertEquals(2, ShadowDeviceContext.completeOrderedBroadcasts());
+        device.advance(DeliveryTracker.DEADLINE_MILLIS);
+        assertForwarded(0, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE, player, player);
+        assertTrue(dump(DeliveryTracker.class),
+                dump(DeliveryTracker.class).contains("delivered=1 missed=1 fellBack=0"));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+
+/**
+ * The engine with the built-in policies, checking which one wins when several
+ * could decide.
+ *
+ * @author James Hartig
+ */
+public class RoutingEngineTest {
+
+    private static final Receiver PLAYER = new Receiver("com.example.player", "com.example.player.Receiver");
+    private static final Receiver RADIO = new Receiver("com.example.radio", "com.example.radio.Receiver");
+    private static final Receiver PODCASTS = new Receiver("com.example.podcasts", "com.example.podcasts.Receiver");
+    private static final List<Receiver> RECEIVERS = Arrays.asList(PLAYER, RADIO, PODCASTS);
+
+    private final RoutingEngine engine = new RoutingEngine();
+
+    private static Set<String> services(String... packageNames) {
+        return new HashSet<String>(Arrays.asList(packageNames));
+    }
+
+    private RoutingDecision route(List<Receiver> receivers, Set<String> services, String top, boolean musicActive,
+            Receiver lastReceiver, boolean ignore) {
+        return engine.route(new RoutingInput(receivers, services, top, musicActive, lastReceiver, ignore));
+    }
+
+    private static void assertForward(Path path, Receiver target, RoutingDecision decision) {
+        assertEquals(path, decision.getPath());
+        assertEquals(target, decision.getTarget());
+    }
+
+    @Test
+    public void lastReceiverBeatsForegroundService() {
+        RoutingDecision decision = route(RECEIVERS, services(PLAYER.getPackageName(), PODCASTS.getPackageName()),
+                null, true, PODCASTS, false);
+        assertForward(Path.LAST_RECEIVER_SERVICE, PODCASTS, decision);
+    }
+
+    @Test
+    public void lastReceiverOnTopBeatsForegroundService() {
+        RoutingDecision decision = route(RECEIVERS, services(PLAYER.getPackageName()), PODCASTS.getPackageName(),
+                true, PODCASTS, false);
+        assertForward(Path.LAST_RECEIVER_TASK, PODCASTS, decision);
+    }
+
+    @Test
+    public void foregroundServiceWhenLastReceiverStopped() {
+        RoutingDecision decision = route(RECEIVERS, services(PODCASTS.getPackageName()), null, true, RADIO, false);
+        assertForward(Path.FOREGROUND_SERVICE, PODCASTS, decision);
+    }
+
+    @Test
+    public void musicActiveWithoutForegroundServicePasses() {
+        // Even with a receiver on top and only one receiver, something we
+        // don't know about is playing so it gets the press
+        RoutingDecision decision = route(Collections.singletonList(RADIO), services(), RADIO.getPackageName(), true,
+                null, true);
+        assertSame(RoutingDecision.NO_FOREGROUND_SERVICE, decision);
+    }
+
+    @Test
+    public void activePlayerBeatsForegroundService() {
+        RoutingDecision decision = engine.route(new RoutingInput(RECEIVERS, services(RADIO.getPackageName(),
+                PODCASTS.getPackageName()), null, true, null, false, PODCASTS.getPackageName()));
+        assertForward(Path.ACTIVE_PLAYER, PODCASTS, decision);
+    }
+
+    @Test
+    public void activePlayerBeatsLastReceiver() {
+        RoutingDecision decision = engine.route(new RoutingInput(RECEIVERS, services(), RADIO.getPackageName(),
+                true, RADIO, false, PODCASTS.getPackageName()));
+        assertForward(Path.ACTIVE_PLAYER, PODCASTS, decision);
+    }
+
+    @Test
+    public void activePlayerWithoutRunningState() {
+        RoutingDecision decision = engine.route(new RoutingInput(RECEIVERS, null, null, true, RADIO, false,
+                PODCASTS.getPackageName()));
+        assertForward(Path.ACTIVE_PLAYER, PODCASTS, decision);
+    }
+
+    @Test
+    public void activePlayerWithoutForegroundService() {
+        RoutingDecision decision = engine.route(new RoutingInput(RECEIVERS, services("com.example.unknown"), null,
+                true, RADIO, false, PODCASTS.getPackageName()));
+        assertForward(Path.ACTIVE_PLAYER, PODCASTS, decision);
+    }
+
+    @Test
+    public void activePlayerIgnoredWithoutMusic() {
+        RoutingDecision decision = engine.route(new RoutingInput(RECEIVERS, services(), null, false, null, false,
+                PODCASTS.getPackageName()));
+        assertSame(RoutingDecision.PROMPT, decision);
+    }
+
+    @Test
+    public void foregroundTaskWithoutMusic() {
+        RoutingDecision decision = route(RECEIVERS, services(RADIO.getPackageName()), PODCASTS.getPackageName(),
+                false, RADIO, true);
+        assertForward(Path.FOREGROUND_TASK, PODCASTS, decision);
+    }
+
+    @Test
+    public void ignoreBeatsSoleReceiverAndPrompt() {
+        assertSame(RoutingDecision.IGNORED, route(RECEIVERS, services(), null, false, null, true));
+        assertSame(RoutingDecision.IGNORED,
+                route(Collections.singletonList(RADIO), services(), "com.example.launcher", false, null, true));
+        assertSame(RoutingDecision.IGNORED,
+                route(Collections.<Receiver> emptyList(), services(), null, false, null, true));
+    }
+
+    @Test
+    public void soleReceiverCountsOtherApps() {
+        // Our own receiver is never in the list: none left consumes the
+        // press, one is forwarded to and two already need the selector
+        assertSame(RoutingDecision.NO_RECEIVERS,
+                route(Collections.<Receiver> emptyList(), services(), null, false, null, false));
+        assertForward(Path.SOLE_RECEIVER, RADIO,
+                route(Collections.singletonList(RADIO), services(), null, false, null, false));
+        assertSame(RoutingDecision.PROMPT, route(Arrays.asList(PLAYER, RADIO), services(), null, false, null, false));
+    }
+
+    @Test
+    public void promptWhenNothingElseDecides() {
+        assertSame(RoutingDecision.PROMPT,
+                route(RECEIVERS, services(RADIO.getPackageName()), "com.example.launcher", false, RADIO, false));
+    }
+
+    @Test
+    public void notRoutedWithoutPolicies() {
+        RoutingEngine empty = new RoutingEngine(new ArrayList<RoutingPolicy>());
+        assertSame(RoutingDecision.NOT_ROUTED,
+                empty.route(new RoutingInput(RECEIVERS, services(), null, false, null, false)));
+    }
+
+    @Test
+    public void firstDecisionWins() {
+        List<RoutingPolicy> policies = new ArrayList<RoutingPolicy>();
+        policies.add(new RoutingPolicy() {
+
+            @Override
+            public RoutingDecision decide(RoutingInput input) {
+                return null;
+            }
+        });
+        policies.add(RoutingPolicies.PROMPT);
+        policies.add(RoutingPolicies.IGNORE);
+        RoutingEngine engine = new RoutingEngine(policies);
+        // Changing the list afterwards doesn't change the engine
+        policies.clear();
+        assertSame(RoutingDecision.PROMPT, engine.route(new RoutingInput(RECEIVERS, services(), null, false, null,
+                true)));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+
+/**
+ * Each built-in policy on its own, and the order they are applied in.
+ *
+ * @author James Hartig
+ */
+public class RoutingPoliciesTest {
+
+    private static final Receiver PLAYER = new Receiver("com.example.player", "com.example.player.Receiver");
+    private static final Receiver RADIO = new Receiver("com.example.radio", "com.example.radio.Receiver");
+    private static final Receiver PODCASTS = new Receiver("com.example.podcasts", "com.example.podcasts.Receiver");
+    private static final List<Receiver> RECEIVERS = Arrays.asList(PLAYER, RADIO, PODCASTS);
+
+    private static Set<String> services(String... packageNames) {
+        return new HashSet<String>(Arrays.asList(packageNames));
+    }
+
+    private static RoutingInput input(List<Receiver> receivers, Set<String> services, String top,
+            boolean musicActive, Receiver lastReceiver, boolean ignore) {
+        return new RoutingInput(receivers, services, top, musicActive, lastReceiver, ignore);
+    }
+
+    private static void assertForward(Path path, Receiver target, RoutingDecision decision) {
+        assertEquals(path, decision.getPath());
+        assertEquals(target, decision.getTarget());
+    }
+
+    @Test
+    public void lastReceiverWithForegroundService() {
+        RoutingInput input = input(RECEIVERS, services(RADIO.getPackageName()), null, true, RADIO, false);
+        assertForward(Path.LAST_RECEIVER_SERVICE, RADIO, RoutingPolicies.LAST_RECEIVER.decide(input));
+    }
+
+    @Test
+    public void lastReceiverOnTop() {
+        RoutingInput input = input(RECEIVERS, services(), RADIO.getPackageName(), true, RADIO, false);
+        assertForward(Path.LAST_RECEIVER_TASK, RADIO, RoutingPolicies.LAST_RECEIVER.decide(input));
+    }
+
+    @Test
+    public void lastReceiverNeedsMusic() {
+        RoutingInput input = input(RECEIVERS, services(RADIO.getPackageName()), null, false, RADIO, false);
+        assertNull(RoutingPolicies.LAST_RECEIVER.decide(input));
+    }
+
+    @Test
+    public void lastReceiverNoLongerRunning() {
+        RoutingInput input = input(RECEIVERS, services(PLAYER.getPackageName()), null, true, RADIO, false);
+        assertNull(RoutingPolicies.LAST_RECEIVER.decide(input));
+    }
+
+    @Test
+    public void foregroundServicePicksHighestPriorityReceiver() {
+        RoutingInput input = input(RECEIVERS, services(PODCASTS.getPackageName(), RADIO.getPackageName()), null,
+                true, null, false);
+        assertForward(Path.FOREGROUND_SERVICE, RADIO, RoutingPolicies.FOREGROUND_SERVICE.decide(input));
+    }
+
+    @Test
+    public void noForegroundService() {
+        RoutingInput input = input(RECEIVERS, services("com.example.unknown"), null, true, null, false);
+        assertNull(RoutingPolicies.FOREGROUND_SERVICE.decide(input));
+    }
+
+    @Test
+    public void foregroundServiceNeedsMusic() {
+        RoutingInput input = input(RECEIVERS, services(RADIO.getPackageName()), null, false, null, false);
+        assertNull(RoutingPolicies.FOREGROUND_SERVICE.decide(input));
+    }
+
+    @Test
+    public void activePlayer() {
+        RoutingInput input = new RoutingInput(RECEIVERS, services(), null, true, null, false,
+                PODCASTS.getPackageName());
+        assertForward(Path.ACTIVE_PLAYER, PODCASTS, RoutingPolicies.ACTIVE_PLAYER.decide(input));
+    }
+
+    @Test
+    public void activePlayerNeedsMusic() {
+        RoutingInput input = new RoutingInput(RECEIVERS, services(), null, false, null, false,
+                PODCASTS.getPackageName());
+        assertNull(RoutingPolicies.ACTIVE_PLAYER.decide(input));
+    }
+
+    @Test
+    public void activePlayerWithoutReceiver() {
+        RoutingInput input = new RoutingInput(RECEIVERS, services(), null, true, null, false, "com.example.unknown");
+        assertNull(RoutingPolicies.ACTIVE_PLAYER.decide(input));
+        assertNull(RoutingPolicies.ACTIVE_PLAYER.decide(input(RECEIVERS, services(), null, true, null, false)));
+    }
+
+    @Test
+    public void unknownPlayerPasses() {
+        assertSame(RoutingDecision.NO_FOREGROUND_SERVICE,
+                RoutingPolicies.UNKNOWN_PLAYER.decide(input(RECEIVERS, services(), null, true, null, false)));
+        assertEquals(RoutingDecision.Action.PASS, RoutingDecision.NO_FOREGROUND_SERVICE.getAction());
+        assertNull(RoutingPolicies.UNKNOWN_PLAYER.decide(input(RECEIVERS, services(), null, false, null, false)));
+    }
+
+    @Test
+    public void foregroundTask() {
+        RoutingInput input = input(RECEIVERS, services(), PODCASTS.getPackageName(), false, null, false);
+        assertForward(Path.FOREGROUND_TASK, PODCASTS, RoutingPolicies.FOREGROUND_TASK.decide(input));
+        assertEquals(true, Path.FOREGROUND_TASK.isRemembered());
+    }
+
+    @Test
+    public void foregroundTaskWithoutReceiver() {
+        RoutingInput input = input(RECEIVERS, services(), "com.example.launcher", false, null, false);
+        assertNull(RoutingPolicies.FOREGROUND_TASK.decide(input));
+        assertNull(RoutingPolicies.FOREGROUND_TASK.decide(input(RECEIVERS, services(), null, false, null, false)));
+    }
+
+    @Test
+    public void ignore() {
+        assertSame(RoutingDecision.IGNORED,
+                RoutingPolicies.IGNORE.decide(input(RECEIVERS, services(), null, false, null, true)));
+        assertNull(RoutingPolicies.IGNORE.decide(input(RECEIVERS, services(), null, false, null, false)));
+    }
+
+    @Test
+    public void soleReceiver() {
+        // The list never includes our own receiver, so one entry means one
+        // other app, where the original code checked for at most two
+        // including ours
+        RoutingInput input = input(Collections.singletonList(RADIO), services(), null, false, null, false);
+        assertForward(Path.SOLE_RECEIVER, RADIO, RoutingPolicies.SOLE_RECEIVER.decide(input));
+    }
+
+    @Test
+    public void noReceivers() {
+        RoutingInput input = input(Collections.<Receiver> emptyList(), services(), null, false, null, false);
+        assertSame(RoutingDecision.NO_RECEIVERS, RoutingPolicies.SOLE_RECEIVER.decide(input));
+    }
+
+    @Test
+    public void twoReceiversArentSole() {
+        RoutingInput input = input(Arrays.asList(PLAYER, RADIO), services(), null, false, null, false);
+        assertNull(RoutingPolicies.SOLE_RECEIVER.decide(input));
+    }
+
+    @Test
+    public void prompt() {
+        assertSame(RoutingDecision.PROMPT,
+                RoutingPolicies.PROMPT.decide(input(RECEIVERS, services(), null, false, null, false)));
+    }
+
+    @Test
+    public void defaultOrder() {
+        assertEquals(Arrays.asList(RoutingPolicies.ACTIVE_PLAYER, RoutingPolicies.LAST_RECEIVER,
+                RoutingPolicies.FOREGROUND_SERVICE, RoutingPolicies.UNKNOWN_PLAYER, RoutingPolicies.FOREGROUND_TASK,
+                RoutingPolicies.IGNORE, RoutingPolicies.SOLE_RECEIVER, RoutingPolicies.PROMPT),
+                RoutingPolicies.defaults());
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reopening the state file after writes, torn writes and the sequence number
+ * wrapping around.
+ *
+ * @author James Hartig
+ */
+public class RoutingStateFileTest {
+
+    private static final String PLAYER = "com.example.player/.Receiver";
+    private static final String RADIO = "com.example.radio/.Receiver";
+
+    private static final int OFFSET_FLAGS = 6;
+    private static final int OFFSET_SEQUENCE = 8;
+    private static final int OFFSET_CRC = 12;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File path;
+
+    @Before
+    public void setUp() throws IOException {
+        path = new File(folder.getRoot(), "routing_state.bin");
+    }
+
+    @Test
+    public void newFileIsEmpty() throws IOException {
+        RoutingStateFile file = RoutingStateFile.open(path);
+        assertFalse(file.isLoaded());
+        assertNull(file.getLastReceiver());
+        assertFalse(file.isIgnoringNewReceivers());
+        assertEquals(0, file.getUseCount(PLAYER));
+        file.close();
+        assertEquals(RoutingStateFile.FILE_SIZE, path.length());
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        RoutingStateFile file = RoutingStateFile.open(path);
+        assertTrue(file.setLastReceiver(RADIO));
+        assertFalse(file.setLastReceiver(RADIO));
+        file.recordUse(PLAYER, 1000);
+        file.recordUse(RADIO, 2000);
+        file.recordUse(RADIO, 3000);
+        file.close();
+
+        file = RoutingStateFile.open(path);
+        assertTrue(file.isLoaded());
+        assertEquals(RADIO, file.getLastReceiver());
+        assertFalse(file.isIgnoringNewReceivers());
+        assertEquals(1, file.getUseCount(PLAYER));
+        assertEquals(2, file.getUseCount(RADIO));
+        assertEquals(1000, file.getLastUsed(PLAYER));
+        assertEquals(3000, file.getLastUsed(RADIO));
+        int[] history = new int[RoutingStateFile.HISTORY_SIZE];
+        history[0] = RADIO.hashCode();
+        history[1] = RADIO.hashCode();
+        history[2] = PLAYER.hashCode();
+        assertArrayEquals(history, file.getHistory());
+
+        assertTrue(file.ignoreNewReceivers());
+        file.close();
+        file = RoutingStateFile.open(path);
+        assertTrue(file.isIgnoringNewReceivers());
+        assertNull(file.getLastReceiver());
+        file.close();
+    }
+
+    @Test
+    public void leastRecentlyUsedCounterIsEvicted() throws IOException {
+        RoutingStateFile file = RoutingStateFile.open(path);
+        for (int i = 0; i < RoutingStateFile.COUNTER_SLOTS; i++) {
+            file.recordUse("com.example.app" + i + "/.Receiver", 1000 + i);
+        }
+        file.recordUse(PLAYER, 5000);
+        file.close();
+
+        file = RoutingStateFile.open(path);
+        assertEquals(0, file.getUseCount("com.example.app0/.Receiver"));
+        assertEquals(1, file.getUseCount("com.example.app1/.Receiver"));
+        assertEquals(1, file.getUseCount(PLAYER));
+        file.close();
+    }
+
+    @Test
+    public void tornPayloadFallsBackToOtherCopy() throws IOException {
+        RoutingStateFile file = RoutingStateFile.open(path);
+        file.setLastReceiver(PLAYER);
+        file.setLastReceiver(RADIO);
+        file.close();
+
+        // The second write went to the second copy, tear its receiver name
+        corrupt(RoutingStateFile.RECORD_SIZE + 20);
+
+        file = RoutingStateFile.open(path);
+        assertTrue(file.isLoaded());
+        assertEquals(PLAYER, file.getLastReceiver());
+        // Writes go to the torn copy, not over the good one
+        file.setLastReceiver(RADIO);
+        file.close();
+        file = RoutingStateFile.open(path);
+        assertEquals(RADIO, file.getLastReceiver());
+        file.close();
+    }
+
+    @Test
+    public void tornHeaderFallsBackToOtherCopy() throws IOException {
+        RoutingStateFile file = RoutingStateFile.open(path);
+        file.setLastReceiver(PLAYER);
+        file.ignoreNewReceivers();
+        file.close();
+
+        // Only the flags of the newer copy made it to disk
+        corrupt(RoutingStateFile.RECORD_SIZE + OFFSET_FLAGS);
+
+        file = RoutingStateFile.open(path);
+        assertTrue(file.isLoaded());
+        assertFalse(file.isIgnoringNewReceivers());
+        assertEquals(PLAYER, file.getLastReceiver());
+        file.close();
+    }
+
+    @Test
+    public void bothCopiesTornStartsEmpty() throws IOException {
+        RoutingStateFile file = RoutingStateFile.open(path);
+        file.setLastReceiver(PLAYER);
+        file.setLastReceiver(RADIO);
+        file.close();
+
+        corrupt(20);
+        corrupt(RoutingStateFile.RECORD_SIZE + 20);
+
+        file = RoutingStateFile.open(path);
+        assertFalse(file.isLoaded());
+        assertNull(file.getLastReceiver());
+        file.close();
+    }
+
+    @Test
+    public void sequenceWrapsAround() throws IOException {
+        RoutingStateFile file = RoutingStateFile.open(path);
+        file.setLastReceiver(PLAYER);
+        file.close();
+        setSequence(0, Integer.MAX_VALUE);
+
+        file = RoutingStateFile.open(path);
+        assertEquals(PLAYER, file.getLastReceiver());
+        // Wraps to Integer.MIN_VALUE in the second copy, which is still newer
+        file.setLastReceiver(RADIO);
+        file.close();
+        assertEquals(Integer.MIN_VALUE, readInt(RoutingStateFile.RECORD_SIZE + OFFSET_SEQUENCE));
+
+        file = RoutingStateFile.open(path);
+        assertEquals(RADIO, file.getLastReceiver());
+        file.setLastReceiver(PLAYER);
+        file.close();
+        file = RoutingStateFile.open(path);
+        assertEquals(PLAYER, file.getLastReceiver());
+        file.close();
+    }
+
+    @Test
+    public void tooLongReceiverIsFlagged() throws IOException {
+        StringBuilder name = new StringBuilder("com.example.long/.");
+        while (name.length() <= RoutingStateFile.MAX_RECEIVER_BYTES) {
+            name.append("Receiver");
+        }
+        assertFalse(RoutingStateFile.canStore(name.toString()));
+        assertTrue(RoutingStateFile.canStore(RADIO));
+
+        RoutingStateFile file = RoutingStateFile.open(path);
+        file.setLastReceiver(RADIO);
+        file.setLastReceiver(name.toString());
+        assertEquals(name.toString(), file.getLastReceiver());
+        assertTrue(file.isLastReceiverTooLong());
+        file.close();
+
+        file = RoutingStateFile.open(path);
+        assertTrue(file.isLoaded());
+        assertTrue(file.isLastReceiverTooLong());
+        assertNull(file.getLastReceiver());
+        file.setLastReceiver(RADIO);
+        assertFalse(file.isLastReceiverTooLong());
+        file.close();
+    }
+
+    /**
+     * Flips the bits of one byte.
+     */
+    private void corrupt(int offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "rw");
+        try {
+            raf.seek(offset);
+            int value = raf.read();
+            raf.seek(offset);
+            raf.write(~value);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private int readInt(int offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            byte[] bytes = new byte[4];
+            raf.seek(offset);
+            raf.readFully(bytes);
+            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Rewrites a copy's sequence number, with a matching CRC.
+     */
+    private void setSequence(int record, int sequence) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "rw");
+        try {
+            byte[] bytes = new byte[RoutingStateFile.RECORD_SIZE];
+            raf.seek(record * RoutingStateFile.RECORD_SIZE);
+            raf.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(OFFSET_SEQUENCE, sequence);
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, OFFSET_CRC);
+            crc.update(bytes, OFFSET_CRC + 4, bytes.length - OFFSET_CRC - 4);
+            buffer.putInt(OFFSET_CRC, (int) crc.getValue());
+            raf.seek(record * RoutingStateFile.RECORD_SIZE);
+            raf.write(bytes);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 James Hartig
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jameshartig.android.media_router.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.jameshartig.android.media_router.routing.RoutingDecision.Path;
+
+/**
+ * Writing routing traces and reading them back.
+ *
+ * @author James Hartig
+ */
+public class RoutingTraceTest {
+
+    private static final Receiver PLAYER = new Receiver("com.example.player", "com.example.player.Receiver");
+    private static final Receiver RADIO = new Receiver("com.example.radio", "com.example.radio.Receiver");
+    private static final Receiver PODCASTS = new Receiver("com.example.podcasts", "com.example.podcasts.Receiver");
+    private static final List<Receiver> RECEIVERS = Arrays.asList(PLAYER, RADIO, PODCASTS);
+
+    private static final int KEYCODE_MEDIA_PLAY_PAUSE = 85;
+    private static final int KEYCODE_MEDIA_NEXT = 87;
+    private static final int ACTION_DOWN = 0;
+    private static final int ACTION_UP = 1;
+
+    private static Set<String> services(String... packageNames) {
+        return new HashSet<String>(Arrays.asList(packageNames));
+    }
+
+    private static byte[] write(RoutingTrace.Event... events) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        RoutingTrace.Writer writer = new RoutingTrace.Writer(out);
+        for (RoutingTrace.Event event : events) {
+            writer.write(event);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static RoutingTrace.Reader reader(byte[] bytes) throws IOException {
+        return new RoutingTrace.Reader(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static void assertEvent(RoutingTrace.Event expected, RoutingTrace.Event actual) {
+        assertEquals(expected.getEventTime(), actual.getEventTime());
+        assertEquals(expected.getKeyCode(), actual.getKeyCode());
+        assertEquals(expected.getAction(), actual.getAction());
+        assertSame(expected.getSource(), actual.getSource());
+        assertEquals(expected.getDecision().getPath(), actual.getDecision().getPath());
+        assertEquals(expected.getDecision().getTarget(), actual.getDecision().getTarget());
+        if (expected.getInput() == null) {
+            assertNull(actual.getInput());
+            return;
+        }
+        RoutingInput in = expected.getInput();
+        RoutingInput out = actual.getInput();
+        assertEquals(in.getReceivers(), out.getReceivers());
+        assertEquals(in.getForegroundServicePackages(), out.getForegroundServicePackages());
+        assertEquals(in.getTopPackageName(), out.getTopPackageName());
+        assertEquals(in.isMusicActive(), out.isMusicActive());
+        assertEquals(in.getLastReceiver(), out.getLastReceiver());
+        assertEquals(in.isIgnoreNewReceiver(), out.isIgnoreNewReceiver());
+        assertEquals(in.getActivePlayerPackage(), out.getActivePlayerPackage());
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        RoutingEngine engine = new RoutingEngine();
+        RoutingInput playing = new RoutingInput(RECEIVERS, services(RADIO.getPackageName(), "com.example.unknown"),
+                PODCASTS.getPackageName(), true, RADIO, false, PLAYER.getPackageName());
+        // Nothing optional set, and the same receivers again so they come
+        // from the string table
+        RoutingInput idle = new RoutingInput(RECEIVERS, services(), null, false, null, true);
+        RoutingInput none = new RoutingInput(Collections.<Receiver> emptyList(), services(), null, false, null,
+                false);
+        RoutingTrace.Event[] events = {
+                new RoutingTrace.Event(1000, KEYCODE_MEDIA_PLAY_PAUSE, ACTION_DOWN, playing, engine.route(playing)),
+                new RoutingTrace.Event(1100, KEYCODE_MEDIA_PLAY_PAUSE, ACTION_UP, RoutingTrace.Source.GESTURE_CACHE,
+                        null, engine.route(playing)),
+                new RoutingTrace.Event(2000, KEYCODE_MEDIA_NEXT, ACTION_DOWN, RoutingTrace.Source.SPECULATION, null,
+                        RoutingDecision.forward(Path.SPECULATIVE, RADIO)),
+                new RoutingTrace.Event(3000, KEYCODE_MEDIA_NEXT, ACTION_DOWN, idle, engine.route(idle)),
+                new RoutingTrace.Event(4000, KEYCODE_MEDIA_NEXT, ACTION_DOWN, none, engine.route(none)) };
+
+        RoutingTrace.Reader reader = reader(write(events));
+        for (RoutingTrace.Event event : events) {
+            assertEvent(event, reader.read());
+        }
+        assertNull(reader.read());
+    }
+
+    @Test
+    public void inputOnlyKeptForEngineEvents() {
+        RoutingInput input = new RoutingInput(RECEIVERS, services(), null, false, null, false);
+        RoutingTrace.Event event = new RoutingTrace.Event(1000, KEYCODE_MEDIA_NEXT, ACTION_DOWN,
+                RoutingTrace.Source.GESTURE_CACHE, input, RoutingDecision.PROMPT);
+        assertNull(event.getInput());
+        try {
+            new RoutingTrace.Event(1000, KEYCODE_MEDIA_NEXT, ACTION_DOWN, null, RoutingDecision.PROMPT);
+            fail("Engine event without an input");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void emptyTrace() throws IOException {
+        assertNull(reader(write()).read());
+    }
+
+    @Test(expected = IOException.class)
+    public void notATrace() throws IOException {
+        reader(new byte[] { 'n', 'o', 'p', 'e', 0, 0, 0, RoutingTrace.FORMAT_VERSION });
+    }
+
+    @Test(expected = IOException.class)
+    public void newerVersion() throws IOException {
+        byte[] bytes = write();
+        bytes[bytes.length - 1] = RoutingTrace.FORMAT_VERSION + 1;
+        reader(bytes);
+    }
+}